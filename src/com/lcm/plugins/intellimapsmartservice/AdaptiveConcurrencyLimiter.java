@@ -0,0 +1,250 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.net.http.HttpHeaders;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive limit on in-flight Azure OpenAI calls for one endpoint and deployment
+ * Uses additive increase / multiplicative decrease: the limit grows while calls
+ * succeed at no-load latency and shrinks on 429s and latency spikes. A
+ * Retry-After from the service pauses all new calls until it has passed
+ *
+ * The limit shrinks at most once per window: a call sent before the last
+ * decrease was part of the load that caused it, so its 429 or slow response
+ * does not shrink the limit again
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private static final ConcurrentHashMap<String, AdaptiveConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private int inFlight;
+    private long noLoadLatencyNanos;
+    private long blockedUntilNanos;
+    private long lastDecreaseNanos;
+    private boolean decreased;
+    private long throttledCount;
+    private long remainingRequests = -1;
+    private long remainingTokens = -1;
+
+    public AdaptiveConcurrencyLimiter() {
+        this(IntelliMapConfig.ADAPTIVE_CONCURRENCY_INITIAL_LIMIT, IntelliMapConfig.ADAPTIVE_CONCURRENCY_MIN_LIMIT,
+                IntelliMapConfig.ADAPTIVE_CONCURRENCY_MAX_LIMIT);
+    }
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Get the JVM-wide limiter for a rate limit key (endpoint and deployment)
+     */
+    public static AdaptiveConcurrencyLimiter forKey(String key) {
+        return limiters.computeIfAbsent(key, k -> new AdaptiveConcurrencyLimiter());
+    }
+
+    /**
+     * Wait up to maxWait for an in-flight slot
+     *
+     * @return true if a slot was taken, false if none became free in time
+     */
+    public synchronized boolean acquire(Duration maxWait) throws InterruptedException {
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        while (true) {
+            long now = System.nanoTime();
+            long blocked = blockedUntilNanos - now;
+            if (blocked <= 0 && inFlight < (int) limit) {
+                inFlight++;
+                return true;
+            }
+            long remaining = deadline - now;
+            if (remaining <= 0) {
+                return false;
+            }
+            long wait = blocked > 0 ? Math.min(blocked, remaining) : remaining;
+            TimeUnit.NANOSECONDS.timedWait(this, wait);
+        }
+    }
+
+    /**
+     * Release a slot after a response was received and adjust the limit from its
+     * status, rate limit headers and latency
+     *
+     * @param sentAtNanos  System.nanoTime() when the call was sent
+     * @param latencyNanos time from sending the call to its response (to the
+     *                     first byte for a streamed call)
+     */
+    public synchronized void release(int statusCode, HttpHeaders headers, long sentAtNanos, long latencyNanos) {
+        inFlight--;
+        if (statusCode == 429) {
+            throttledCount++;
+            decrease(IntelliMapConfig.ADAPTIVE_CONCURRENCY_BACKOFF_RATIO, sentAtNanos);
+            long retryAfter = parseRetryAfterNanos(headers);
+            if (retryAfter > 0) {
+                blockedUntilNanos = Math.max(blockedUntilNanos, System.nanoTime() + retryAfter);
+            }
+        } else if (statusCode >= 500) {
+            decrease(IntelliMapConfig.ADAPTIVE_CONCURRENCY_BACKOFF_RATIO, sentAtNanos);
+        } else if (statusCode == 200) {
+            onSuccess(headers, sentAtNanos, latencyNanos);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Release a slot after a call failed without a response; timeouts count as
+     * overload
+     *
+     * @param sentAtNanos System.nanoTime() when the call was sent
+     */
+    public synchronized void releaseFailed(boolean timedOut, long sentAtNanos) {
+        inFlight--;
+        if (timedOut) {
+            decrease(IntelliMapConfig.ADAPTIVE_CONCURRENCY_BACKOFF_RATIO, sentAtNanos);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Give back a slot for a call that was never sent
+     */
+    public synchronized void releaseUnsent() {
+        inFlight--;
+        notifyAll();
+    }
+
+    private void onSuccess(HttpHeaders headers, long sentAtNanos, long latencyNanos) {
+        remainingRequests = headerLong(headers, "x-ratelimit-remaining-requests");
+        remainingTokens = headerLong(headers, "x-ratelimit-remaining-tokens");
+
+        // Track the no-load latency as the recent minimum, drifting up slowly so
+        // it follows changes in payload size
+        if (noLoadLatencyNanos == 0 || latencyNanos < noLoadLatencyNanos) {
+            noLoadLatencyNanos = latencyNanos;
+        } else {
+            noLoadLatencyNanos += (latencyNanos - noLoadLatencyNanos) / 100;
+        }
+
+        if (latencyNanos > noLoadLatencyNanos * IntelliMapConfig.ADAPTIVE_CONCURRENCY_LATENCY_TOLERANCE) {
+            decrease(IntelliMapConfig.ADAPTIVE_CONCURRENCY_LATENCY_BACKOFF_RATIO, sentAtNanos);
+            return;
+        }
+
+        // Stop growing when the service reports the quota is nearly used up
+        if ((remainingRequests >= 0 && remainingRequests <= inFlight)
+                || (remainingTokens >= 0 && remainingTokens < IntelliMapConfig.MAX_TOKENS)) {
+            return;
+        }
+
+        // Only grow when the current limit is actually being used
+        if (inFlight + 1 >= (int) limit) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    /**
+     * Shrink the limit unless the call was sent before the last decrease
+     */
+    private void decrease(double ratio, long sentAtNanos) {
+        if (decreased && sentAtNanos - lastDecreaseNanos < 0) {
+            return;
+        }
+        limit = Math.max(minLimit, limit * ratio);
+        lastDecreaseNanos = System.nanoTime();
+        decreased = true;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Check whether new calls are paused by a server-requested Retry-After
+     */
+    public synchronized boolean isBlocked() {
+        return blockedUntilNanos - System.nanoTime() > 0;
+    }
+
+    /**
+     * Tokens left in the deployment's quota as last reported by the service, or
+     * -1 if unknown
+     */
+    public synchronized long getRemainingTokens() {
+        return remainingTokens;
+    }
+
+    /**
+     * Requests left in the deployment's quota as last reported by the service,
+     * or -1 if unknown
+     */
+    public synchronized long getRemainingRequests() {
+        return remainingRequests;
+    }
+
+    /**
+     * Summary of the limiter state for logging
+     */
+    public synchronized String getStats() {
+        return "limit=" + (int) limit + ", inFlight=" + inFlight + ", throttled=" + throttledCount
+                + ", noLoadLatencyMs=" + TimeUnit.NANOSECONDS.toMillis(noLoadLatencyNanos);
+    }
+
+    /**
+     * Read the server-requested delay from retry-after-ms or Retry-After
+     * (seconds or an HTTP date)
+     *
+     * @return the delay in nanoseconds, or -1 if there is none
+     */
+    public static long parseRetryAfterNanos(HttpHeaders headers) {
+        if (headers == null) {
+            return -1;
+        }
+        long millis = headerLong(headers, "retry-after-ms");
+        if (millis >= 0) {
+            return TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+        String retryAfter = headers.firstValue("retry-after").orElse(null);
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return -1;
+        }
+        retryAfter = retryAfter.trim();
+        try {
+            return TimeUnit.SECONDS.toNanos(Long.parseLong(retryAfter));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(retryAfter, DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).toNanos());
+            } catch (DateTimeParseException ex) {
+                return -1;
+            }
+        }
+    }
+
+    private static long headerLong(HttpHeaders headers, String name) {
+        if (headers == null) {
+            return -1;
+        }
+        String value = headers.firstValue(name).orElse(null);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return (long) Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
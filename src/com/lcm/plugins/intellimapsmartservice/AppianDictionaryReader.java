@@ -0,0 +1,216 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads Appian Dictionary text such as [*name:Bob, age:42]; [name:Al] one
+ * record at a time
+ * A character-level state machine walks the input once. It tracks nested
+ * brackets and braces and double-quoted values, so commas, colons and
+ * brackets inside them do not split them. Only the field names and values
+ * are copied out of the input; records are built as next() is called
+ */
+public final class AppianDictionaryReader implements Iterator<Map<String, Object>> {
+
+    private final CharSequence input;
+    private final int end;
+    private int position;
+    private Map<String, Object> nextRecord;
+
+    public AppianDictionaryReader(CharSequence input) {
+        this.input = input;
+        this.end = input.length();
+    }
+
+    /**
+     * Parse text as the fields of a single record, with or without its
+     * surrounding brackets
+     *
+     * @return the fields, empty if none were found
+     */
+    public static Map<String, Object> readRecord(CharSequence text) {
+        int start = 0;
+        int stop = text.length();
+        while (start < stop && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (stop > start && Character.isWhitespace(text.charAt(stop - 1))) {
+            stop--;
+        }
+        if (stop - start >= 2 && text.charAt(start) == '[' && text.charAt(stop - 1) == ']') {
+            start++;
+            stop--;
+        }
+        AppianDictionaryReader reader = new AppianDictionaryReader(text);
+        Map<String, Object> record = new LinkedHashMap<>();
+        reader.readFields(start, stop, false, record);
+        return record;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (nextRecord == null && position < end) {
+            Map<String, Object> record = readNextRecord();
+            if (record != null && !record.isEmpty()) {
+                nextRecord = record;
+            }
+        }
+        return nextRecord != null;
+    }
+
+    @Override
+    public Map<String, Object> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Map<String, Object> record = nextRecord;
+        nextRecord = null;
+        return record;
+    }
+
+    private Map<String, Object> readNextRecord() {
+        // Skip record separators ("; ", " ", ",") up to the next opening bracket
+        while (position < end && input.charAt(position) != '[') {
+            position++;
+        }
+        if (position >= end) {
+            return null;
+        }
+        Map<String, Object> record = new LinkedHashMap<>();
+        position = readFields(position + 1, end, true, record);
+        return record;
+    }
+
+    /**
+     * Read comma-separated name:value fields into the record
+     * A double quote only opens a string where a name or value starts, and only
+     * closes it when followed by a separator, so inch marks like 3/4" are plain
+     * characters
+     *
+     * @param closeOnBracket stop at the ] that closes the record
+     * @return the position after the last character read
+     */
+    private int readFields(int from, int to, boolean closeOnBracket, Map<String, Object> record) {
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        boolean atValueStart = true;
+        int fieldStart = from;
+        int colon = -1;
+
+        for (int i = from; i < to; i++) {
+            char c = input.charAt(i);
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"' && closesString(i + 1, to)) {
+                    inString = false;
+                }
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            boolean valueStart = atValueStart;
+            atValueStart = false;
+            switch (c) {
+                case '"':
+                    inString = valueStart;
+                    break;
+                case '[':
+                case '{':
+                    depth++;
+                    atValueStart = true;
+                    break;
+                case ']':
+                case '}':
+                    if (depth > 0) {
+                        depth--;
+                    } else if (closeOnBracket && c == ']') {
+                        addField(fieldStart, i, colon, record);
+                        return i + 1;
+                    }
+                    break;
+                case ',':
+                    atValueStart = true;
+                    if (depth == 0) {
+                        addField(fieldStart, i, colon, record);
+                        fieldStart = i + 1;
+                        colon = -1;
+                    }
+                    break;
+                case ':':
+                    atValueStart = true;
+                    if (depth == 0 && colon < 0) {
+                        colon = i;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        addField(fieldStart, to, colon, record);
+        return to;
+    }
+
+    /**
+     * Check whether a quote ending before the given position closes its string:
+     * it is followed by a field, record or nested separator or by the end
+     */
+    private boolean closesString(int from, int to) {
+        int i = skipWhitespace(from, to);
+        if (i >= to) {
+            return true;
+        }
+        char c = input.charAt(i);
+        return c == ',' || c == ']' || c == ';' || c == ':' || c == '}';
+    }
+
+    private void addField(int from, int to, int colon, Map<String, Object> record) {
+        int nameEnd = colon >= 0 ? colon : to;
+        int nameStart = skipWhitespace(from, nameEnd);
+        nameEnd = trimEnd(nameStart, nameEnd);
+        // Remove any leading asterisk from the field name
+        if (nameStart < nameEnd && input.charAt(nameStart) == '*') {
+            nameStart = skipWhitespace(nameStart + 1, nameEnd);
+        }
+        if (nameStart >= nameEnd) {
+            return;
+        }
+        String name = input.subSequence(nameStart, nameEnd).toString();
+
+        String value = null;
+        if (colon >= 0) {
+            int valueStart = skipWhitespace(colon + 1, to);
+            int valueEnd = trimEnd(valueStart, to);
+            if (valueStart < valueEnd && !isNull(valueStart, valueEnd)) {
+                value = input.subSequence(valueStart, valueEnd).toString();
+            }
+        }
+        record.put(name, value);
+    }
+
+    private boolean isNull(int from, int to) {
+        return to - from == 4 && input.charAt(from) == 'n' && input.charAt(from + 1) == 'u'
+                && input.charAt(from + 2) == 'l' && input.charAt(from + 3) == 'l';
+    }
+
+    private int skipWhitespace(int from, int to) {
+        while (from < to && Character.isWhitespace(input.charAt(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && Character.isWhitespace(input.charAt(to - 1))) {
+            to--;
+        }
+        return to;
+    }
+}
@@ -0,0 +1,244 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Single-pass reader for chat completion responses
+ * The response is scanned once for the message content and finish_reason, and
+ * the content once for the mapped records. Each record is copied token by token
+ * to its JSON text while its record_id and confidence_level are picked up, so
+ * no tree or map is built along the way
+ */
+public final class ChatCompletionReader {
+
+    private static final String CONFIDENCE_FIELD = "confidence_level";
+
+    private ChatCompletionReader() {
+    }
+
+    /**
+     * The parts of a chat completion response the mapping uses
+     */
+    public static final class Completion {
+        private String content;
+        private String finishReason;
+
+        public String getContent() {
+            return content;
+        }
+
+        public String getFinishReason() {
+            return finishReason;
+        }
+    }
+
+    /**
+     * One mapped record as JSON text, with the values pulled out while copying
+     */
+    public static final class MappedRecord {
+        private final String json;
+        private final String recordId;
+        private final boolean hasConfidence;
+        private final Double confidence;
+        private final int fieldCount;
+
+        MappedRecord(String json, String recordId, boolean hasConfidence, Double confidence, int fieldCount) {
+            this.json = json;
+            this.recordId = recordId;
+            this.hasConfidence = hasConfidence;
+            this.confidence = confidence;
+            this.fieldCount = fieldCount;
+        }
+
+        public String getJson() {
+            return json;
+        }
+
+        /**
+         * The batch record_id, which is left out of the JSON text, or null
+         */
+        public String getRecordId() {
+            return recordId;
+        }
+
+        public int getFieldCount() {
+            return fieldCount;
+        }
+    }
+
+    /**
+     * Read choices[0].message.content and choices[0].finish_reason
+     */
+    public static Completion readCompletion(String response, JsonFactory jsonFactory) throws IOException {
+        Completion completion = new Completion();
+        try (JsonParser parser = jsonFactory.createParser(response)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Chat completion response is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("choices".equals(field) && value == JsonToken.START_ARRAY) {
+                    if (parser.nextToken() == JsonToken.START_OBJECT) {
+                        readChoice(parser, completion);
+                    }
+                    while (parser.currentToken() != JsonToken.END_ARRAY && parser.nextToken() != null) {
+                        parser.skipChildren();
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return completion;
+    }
+
+    private static void readChoice(JsonParser parser, Completion completion) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("message".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String messageField = parser.currentName();
+                    JsonToken messageValue = parser.nextToken();
+                    if ("content".equals(messageField) && messageValue == JsonToken.VALUE_STRING) {
+                        completion.content = parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else if ("finish_reason".equals(field) && value == JsonToken.VALUE_STRING) {
+                completion.finishReason = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Read the mapped records from message content that is either an array of
+     * records or an object with a "result" array
+     *
+     * @param idField top-level field to take out of each record as its record
+     *                ID, or null
+     * @return the records, or null if the content has no result array
+     */
+    public static List<MappedRecord> readRecords(String content, String idField, JsonFactory jsonFactory)
+            throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(content)) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_ARRAY) {
+                return readRecordArray(parser, idField, jsonFactory);
+            }
+            if (token != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("result".equals(field) && value == JsonToken.START_ARRAY) {
+                    return readRecordArray(parser, idField, jsonFactory);
+                }
+                parser.skipChildren();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Copy every object in the array the parser is positioned at; other
+     * elements are skipped
+     */
+    public static List<MappedRecord> readRecordArray(JsonParser parser, String idField, JsonFactory jsonFactory)
+            throws IOException {
+        List<MappedRecord> records = new ArrayList<>();
+        StringWriter buffer = new StringWriter();
+        try (JsonGenerator generator = jsonFactory.createGenerator(buffer)) {
+            generator.setRootValueSeparator(null);
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+                if (token != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    continue;
+                }
+                records.add(copyRecord(parser, generator, buffer, idField));
+            }
+        }
+        return records;
+    }
+
+    private static MappedRecord copyRecord(JsonParser parser, JsonGenerator generator, StringWriter buffer,
+            String idField) throws IOException {
+        String recordId = null;
+        boolean hasConfidence = false;
+        Double confidence = null;
+        int fieldCount = 0;
+
+        generator.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (field.equals(idField)) {
+                recordId = value.isScalarValue() && value != JsonToken.VALUE_NULL ? parser.getText() : null;
+                parser.skipChildren();
+                continue;
+            }
+            if (CONFIDENCE_FIELD.equals(field)) {
+                hasConfidence = true;
+                confidence = parseConfidence(parser, value);
+            }
+            generator.writeFieldName(field);
+            generator.copyCurrentStructure(parser);
+            fieldCount++;
+        }
+        generator.writeEndObject();
+        generator.flush();
+
+        String json = buffer.toString();
+        buffer.getBuffer().setLength(0);
+        return new MappedRecord(json, recordId, hasConfidence, confidence, fieldCount);
+    }
+
+    private static Double parseConfidence(JsonParser parser, JsonToken value) throws IOException {
+        if (value.isNumeric()) {
+            return parser.getDoubleValue();
+        }
+        if (value == JsonToken.VALUE_STRING) {
+            try {
+                return Double.parseDouble(parser.getText().trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Average confidence_level of the records; records without one count as 75
+     * and records with an unreadable one are left out
+     */
+    public static double averageConfidence(List<MappedRecord> records) {
+        double totalConfidence = 0;
+        int validRecords = 0;
+        for (MappedRecord record : records) {
+            if (record.hasConfidence) {
+                if (record.confidence != null) {
+                    totalConfidence += record.confidence;
+                    validRecords++;
+                }
+            } else if (record.fieldCount > 0) {
+                totalConfidence += 75.0;
+                validRecords++;
+            }
+        }
+        return validRecords > 0 ? totalConfidence / validRecords : IntelliMapConfig.DEFAULT_CONFIDENCE_SCORE;
+    }
+}
@@ -0,0 +1,216 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Circuit breaker for one Azure OpenAI endpoint and deployment
+ * Tracks the outcome of the most recent calls and opens when too many failed or
+ * were slow, so calls fail immediately instead of waiting for timeouts. After a
+ * wait it lets a few trial calls through (half-open) and closes again if they
+ * succeed
+ *
+ * Every state change starts a new generation, and a permission is stamped with
+ * the generation it was granted in. A call that outlives its state, such as a
+ * slow call admitted while closed that ends after the circuit went half-open,
+ * neither counts as a trial nor gives back a trial slot it never took
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Returned by tryAcquirePermission when the call must fail immediately
+     */
+    public static final long NO_PERMISSION = -1;
+
+    private static final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final double slowCallRateThreshold;
+    private final long slowCallNanos;
+    private final long openWaitNanos;
+    private final int halfOpenTrialCalls;
+
+    // Ring buffer of recent outcomes; bit 0 = failed, bit 1 = slow
+    private final byte[] outcomes;
+    private int outcomeCount;
+    private int nextOutcome;
+    private int failedCount;
+    private int slowCount;
+
+    private State state = State.CLOSED;
+    private long generation;
+    private long openedAtNanos;
+    private int trialsStarted;
+    private int trialsSucceeded;
+    private long rejectedCount;
+
+    public CircuitBreaker() {
+        this(IntelliMapConfig.CIRCUIT_BREAKER_WINDOW_SIZE, IntelliMapConfig.CIRCUIT_BREAKER_MIN_CALLS,
+                IntelliMapConfig.CIRCUIT_BREAKER_FAILURE_RATE, IntelliMapConfig.CIRCUIT_BREAKER_SLOW_CALL_RATE,
+                IntelliMapConfig.CIRCUIT_BREAKER_SLOW_CALL_DURATION.toNanos(),
+                IntelliMapConfig.CIRCUIT_BREAKER_OPEN_WAIT.toNanos(), IntelliMapConfig.CIRCUIT_BREAKER_HALF_OPEN_CALLS);
+    }
+
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold,
+            double slowCallRateThreshold, long slowCallNanos, long openWaitNanos, int halfOpenTrialCalls) {
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallNanos = slowCallNanos;
+        this.openWaitNanos = openWaitNanos;
+        this.halfOpenTrialCalls = halfOpenTrialCalls;
+        this.outcomes = new byte[windowSize];
+    }
+
+    /**
+     * Get the JVM-wide breaker for a rate limit key (endpoint and deployment)
+     */
+    public static CircuitBreaker forKey(String key) {
+        return breakers.computeIfAbsent(key, k -> new CircuitBreaker());
+    }
+
+    /**
+     * Check whether a call could currently be let through, without taking a
+     * half-open trial slot
+     */
+    public synchronized boolean isCallPermitted() {
+        return state != State.OPEN || System.nanoTime() - openedAtNanos >= openWaitNanos;
+    }
+
+    /**
+     * Take permission for one call; every granted call must be followed by
+     * onSuccess, onFailure or releasePermission with the returned permission
+     *
+     * @return the permission, or NO_PERMISSION if the circuit is open and the
+     *         call should fail immediately
+     */
+    public synchronized long tryAcquirePermission() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAtNanos < openWaitNanos) {
+                rejectedCount++;
+                return NO_PERMISSION;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialsStarted >= halfOpenTrialCalls) {
+                rejectedCount++;
+                return NO_PERMISSION;
+            }
+            trialsStarted++;
+        }
+        return generation;
+    }
+
+    /**
+     * Give back a permission for a call that never reached the service
+     */
+    public synchronized void releasePermission(long permission) {
+        if (permission == generation && state == State.HALF_OPEN && trialsStarted > 0) {
+            trialsStarted--;
+        }
+    }
+
+    /**
+     * Record a call the service answered
+     */
+    public synchronized void onSuccess(long permission, long durationNanos) {
+        record(permission, false, durationNanos);
+    }
+
+    /**
+     * Record a call that failed because of the service (5xx, timeout, network
+     * error)
+     */
+    public synchronized void onFailure(long permission, long durationNanos) {
+        record(permission, true, durationNanos);
+    }
+
+    public synchronized State getState() {
+        // Report an open circuit whose wait has passed as half-open, since the
+        // next call will be let through as a trial
+        if (state == State.OPEN && System.nanoTime() - openedAtNanos >= openWaitNanos) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * Time until an open circuit lets trial calls through, or 0 if it is not open
+     */
+    public synchronized long getRemainingOpenNanos() {
+        return state == State.OPEN ? Math.max(0, openWaitNanos - (System.nanoTime() - openedAtNanos)) : 0;
+    }
+
+    /**
+     * Summary of the breaker state for logging
+     */
+    public synchronized String getStats() {
+        return "state=" + getState() + ", failureRate=" + percent(failedCount) + "%, slowCallRate="
+                + percent(slowCount) + "%, calls=" + outcomeCount + ", rejected=" + rejectedCount;
+    }
+
+    private void record(long permission, boolean failed, long durationNanos) {
+        if (permission != generation) {
+            // Granted in an earlier state; it says nothing about this one
+            return;
+        }
+        boolean slow = durationNanos >= slowCallNanos;
+
+        if (state == State.HALF_OPEN) {
+            if (failed || slow) {
+                transitionTo(State.OPEN);
+            } else if (++trialsSucceeded >= halfOpenTrialCalls) {
+                transitionTo(State.CLOSED);
+            }
+            return;
+        }
+        if (outcomeCount == windowSize) {
+            byte oldest = outcomes[nextOutcome];
+            failedCount -= oldest & 1;
+            slowCount -= (oldest >> 1) & 1;
+        } else {
+            outcomeCount++;
+        }
+        outcomes[nextOutcome] = (byte) ((failed ? 1 : 0) | (slow ? 2 : 0));
+        failedCount += failed ? 1 : 0;
+        slowCount += slow ? 1 : 0;
+        nextOutcome = (nextOutcome + 1) % windowSize;
+
+        if (outcomeCount >= minimumCalls
+                && (failedCount >= failureRateThreshold * outcomeCount
+                        || slowCount >= slowCallRateThreshold * outcomeCount)) {
+            transitionTo(State.OPEN);
+        }
+    }
+
+    private void transitionTo(State next) {
+        if (state == next) {
+            return;
+        }
+        System.err.println("Circuit breaker " + state + " -> " + next + " (failureRate=" + percent(failedCount)
+                + "%, slowCallRate=" + percent(slowCount) + "%)");
+        state = next;
+        generation++;
+        trialsStarted = 0;
+        trialsSucceeded = 0;
+        if (next == State.OPEN) {
+            openedAtNanos = System.nanoTime();
+        } else if (next == State.CLOSED) {
+            outcomeCount = 0;
+            nextOutcome = 0;
+            failedCount = 0;
+            slowCount = 0;
+        }
+    }
+
+    private int percent(int count) {
+        return outcomeCount == 0 ? 0 : (int) (100L * count / outcomeCount);
+    }
+}
@@ -0,0 +1,197 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Weighted pool of Azure OpenAI deployments
+ * Each call goes to a deployment picked at random in proportion to its weight,
+ * free in-flight slots, remaining token quota and recent latency. Deployments
+ * with an open circuit or a pending Retry-After are skipped, so load fails over
+ * to the rest of the pool
+ */
+public final class DeploymentPool {
+
+    private final List<DeploymentTarget> targets;
+
+    public DeploymentPool(List<DeploymentTarget> targets) {
+        this.targets = Collections.unmodifiableList(new ArrayList<>(targets));
+    }
+
+    /**
+     * Build a pool from the primary deployment and an optional JSON array of
+     * additional entries with endpoint, deploymentName, apiKey, apiVersion,
+     * weight and tokensPerMinute; missing values are taken from the primary
+     * deployment
+     */
+    public static DeploymentPool parse(DeploymentTarget primary, String poolJson, ObjectMapper objectMapper)
+            throws Exception {
+        List<DeploymentTarget> targets = new ArrayList<>();
+        targets.add(primary);
+        if (poolJson == null || poolJson.trim().isEmpty()) {
+            return new DeploymentPool(targets);
+        }
+
+        JsonNode entries = objectMapper.readTree(poolJson);
+        if (!entries.isArray()) {
+            throw new IllegalArgumentException("Deployment pool must be a JSON array");
+        }
+        for (JsonNode entry : entries) {
+            String deploymentName = entry.path("deploymentName").asText("");
+            if (deploymentName.trim().isEmpty()) {
+                throw new IllegalArgumentException("Deployment pool entry is missing deploymentName: " + entry);
+            }
+            DeploymentTarget target = new DeploymentTarget(
+                    entry.path("endpoint").asText(primary.getEndpoint()),
+                    deploymentName,
+                    entry.path("apiKey").asText(primary.getApiKey()),
+                    entry.path("apiVersion").asText(primary.getApiVersion()),
+                    entry.path("weight").asDouble(1.0),
+                    entry.path("tokensPerMinute").asInt(primary.getTokensPerMinute()));
+            if (target.getTokensPerMinute() <= 0) {
+                throw new IllegalArgumentException("Deployment pool entry has no positive tokensPerMinute: " + entry);
+            }
+            if (target.getWeight() <= 0) {
+                continue;
+            }
+            boolean duplicate = false;
+            for (DeploymentTarget existing : targets) {
+                duplicate |= existing.getKey().equals(target.getKey());
+            }
+            if (!duplicate) {
+                targets.add(target);
+            }
+        }
+        return new DeploymentPool(targets);
+    }
+
+    /**
+     * Pick the deployment for the next call
+     *
+     * @param exclude  deployments that already failed for this call
+     * @param tokens   estimated tokens for the call
+     * @return the chosen deployment, or null if every remaining deployment has
+     *         an open circuit
+     */
+    public DeploymentTarget select(Set<DeploymentTarget> exclude, int tokens, RateLimiter rateLimiter) {
+        List<DeploymentTarget> permitted = new ArrayList<>(targets.size());
+        for (DeploymentTarget target : targets) {
+            if (!exclude.contains(target) && target.getCircuitBreaker().isCallPermitted()) {
+                permitted.add(target);
+            }
+        }
+        if (permitted.size() <= 1) {
+            return permitted.isEmpty() ? null : permitted.get(0);
+        }
+
+        // Prefer deployments that can take the call right now
+        List<DeploymentTarget> ready = new ArrayList<>(permitted.size());
+        double[] scores = new double[permitted.size()];
+        double totalScore = 0;
+        DeploymentTarget soonest = null;
+        long soonestWait = Long.MAX_VALUE;
+        for (DeploymentTarget target : permitted) {
+            long wait = rateLimiter.peekWaitNanos(target.getKey(), tokens);
+            if (target.getConcurrencyLimiter().isBlocked()) {
+                wait = Math.max(wait, 1);
+            }
+            if (wait == 0) {
+                scores[ready.size()] = score(target);
+                totalScore += scores[ready.size()];
+                ready.add(target);
+            } else if (wait < soonestWait) {
+                soonestWait = wait;
+                soonest = target;
+            }
+        }
+        if (ready.isEmpty()) {
+            return soonest;
+        }
+
+        double pick = ThreadLocalRandom.current().nextDouble(totalScore);
+        for (int i = 0; i < ready.size(); i++) {
+            pick -= scores[i];
+            if (pick < 0) {
+                return ready.get(i);
+            }
+        }
+        return ready.get(ready.size() - 1);
+    }
+
+    /**
+     * Check whether a deployment other than the excluded ones could take a call
+     */
+    public boolean hasAlternative(Set<DeploymentTarget> exclude) {
+        for (DeploymentTarget target : targets) {
+            if (!exclude.contains(target) && target.getCircuitBreaker().isCallPermitted()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public DeploymentTarget getPrimary() {
+        return targets.get(0);
+    }
+
+    public int size() {
+        return targets.size();
+    }
+
+    /**
+     * The deployments a call may be answered by, sorted so the order of the pool
+     * definition does not matter
+     */
+    public String getFingerprint() {
+        TreeSet<String> keys = new TreeSet<>();
+        for (DeploymentTarget target : targets) {
+            keys.add(target.getKey());
+        }
+        return String.join("\n", keys);
+    }
+
+    public List<DeploymentTarget> getTargets() {
+        return targets;
+    }
+
+    /**
+     * Summary of every deployment for logging
+     */
+    public String getStats() {
+        StringBuilder stats = new StringBuilder();
+        for (DeploymentTarget target : targets) {
+            if (stats.length() > 0) {
+                stats.append("; ");
+            }
+            stats.append(target.getKey()).append(" [weight=").append(target.getWeight())
+                    .append(", ").append(target.getConcurrencyLimiter().getStats())
+                    .append(", ").append(target.getCircuitBreaker().getStats()).append(']');
+        }
+        return stats.toString();
+    }
+
+    private static double score(DeploymentTarget target) {
+        AdaptiveConcurrencyLimiter limiter = target.getConcurrencyLimiter();
+        int freeSlots = Math.max(0, limiter.getLimit() - limiter.getInFlight());
+
+        double quota = 1.0;
+        long remainingTokens = limiter.getRemainingTokens();
+        if (remainingTokens >= 0) {
+            quota = Math.max(0.05, Math.min(1.0, remainingTokens / (double) target.getTokensPerMinute()));
+        }
+
+        double latency = 1.0;
+        long p50 = target.getLatencyTracker().percentile(0.5);
+        if (p50 > 0) {
+            latency = 1.0 / (1.0 + p50 / 1e9);
+        }
+        return target.getWeight() * (1 + freeSlots) * quota * latency;
+    }
+}
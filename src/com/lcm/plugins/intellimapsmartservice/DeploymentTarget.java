@@ -0,0 +1,94 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+/**
+ * One Azure OpenAI endpoint, deployment and key that requests can be sent to
+ * Rate limits, adaptive concurrency, the circuit breaker and latency tracking
+ * are all shared JVM-wide per endpoint and deployment
+ */
+public final class DeploymentTarget {
+
+    private final String endpoint;
+    private final String deploymentName;
+    private final String apiKey;
+    private final String apiVersion;
+    private final double weight;
+    private final int tokensPerMinute;
+    private final String key;
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private final CircuitBreaker circuitBreaker;
+    private final LatencyTracker latencyTracker;
+
+    public DeploymentTarget(String endpoint, String deploymentName, String apiKey, String apiVersion, double weight) {
+        this(endpoint, deploymentName, apiKey, apiVersion, weight, IntelliMapConfig.MAX_TOKENS_PER_MINUTE);
+    }
+
+    /**
+     * @param tokensPerMinute the deployment's tokens-per-minute quota
+     */
+    public DeploymentTarget(String endpoint, String deploymentName, String apiKey, String apiVersion, double weight,
+            int tokensPerMinute) {
+        this.endpoint = endpoint.trim();
+        this.deploymentName = deploymentName.trim();
+        this.apiKey = apiKey;
+        this.apiVersion = apiVersion;
+        this.weight = weight;
+        this.tokensPerMinute = tokensPerMinute;
+        this.key = HttpClientRegistry.endpointKey(this.endpoint) + "|" + this.deploymentName;
+        this.concurrencyLimiter = AdaptiveConcurrencyLimiter.forKey(key);
+        this.circuitBreaker = CircuitBreaker.forKey(key);
+        this.latencyTracker = LatencyTracker.forKey(key);
+    }
+
+    public String getChatCompletionsUrl() {
+        return endpoint.replaceAll("/+$", "") + "/openai/deployments/" + deploymentName
+                + "/chat/completions?api-version=" + apiVersion;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public String getDeploymentName() {
+        return deploymentName;
+    }
+
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    public String getApiVersion() {
+        return apiVersion;
+    }
+
+    public double getWeight() {
+        return weight;
+    }
+
+    public int getTokensPerMinute() {
+        return tokensPerMinute;
+    }
+
+    /**
+     * Rate limit key (endpoint and deployment)
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public LatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
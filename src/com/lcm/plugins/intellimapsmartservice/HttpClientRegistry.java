@@ -0,0 +1,198 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JVM-wide registry of pooled HTTP clients for Azure OpenAI endpoints
+ * One HTTP/2 client is shared per endpoint so connections are kept alive and
+ * reused across records, retries and smart service invocations
+ * No thread outlives its use: the evictor runs only while clients exist and
+ * stops once the last one is evicted, and client executor threads time out
+ * when idle, so a redeployed plugin leaves no threads holding the old
+ * classloader. JVM-wide HttpClient settings are left to the administrator
+ */
+public final class HttpClientRegistry {
+
+    private static final ConcurrentHashMap<String, PooledClient> clients = new ConcurrentHashMap<>();
+    // Guarded by the class lock; null while there are no clients to evict
+    private static ScheduledExecutorService evictor;
+
+    private HttpClientRegistry() {
+    }
+
+    /**
+     * Send a request through the shared client for the given endpoint
+     */
+    public static <T> HttpResponse<T> send(String endpoint, HttpRequest request,
+            HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+        PooledClient pooled = acquire(endpoint);
+        try {
+            return pooled.client.send(request, bodyHandler);
+        } finally {
+            pooled.release();
+        }
+    }
+
+    /**
+     * Send a request asynchronously through the shared client for the given
+     * endpoint
+     * The client's own future is returned, so cancelling it aborts the
+     * exchange without relying on a dependent stage passing the cancel on
+     */
+    public static <T> CompletableFuture<HttpResponse<T>> sendAsync(String endpoint, HttpRequest request,
+            HttpResponse.BodyHandler<T> bodyHandler) {
+        PooledClient pooled = acquire(endpoint);
+        try {
+            CompletableFuture<HttpResponse<T>> exchange = pooled.client.sendAsync(request, bodyHandler);
+            exchange.whenComplete((response, error) -> pooled.release());
+            return exchange;
+        } catch (RuntimeException e) {
+            pooled.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the number of endpoints that currently have a pooled client
+     */
+    public static int getActiveClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Check out the client for an endpoint, creating it on first use
+     * Runs inside compute() so it cannot interleave with eviction of the same
+     * entry
+     */
+    private static PooledClient acquire(String endpoint) {
+        String key = endpointKey(endpoint);
+        PooledClient client = clients.compute(key, (k, existing) -> {
+            PooledClient pooled = existing != null ? existing : new PooledClient(k);
+            pooled.inFlight.incrementAndGet();
+            pooled.lastUsedNanos = System.nanoTime();
+            return pooled;
+        });
+        startEvictor();
+        return client;
+    }
+
+    private static synchronized void startEvictor() {
+        if (evictor == null) {
+            evictor = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("intellimap-http-evictor"));
+            long period = IntelliMapConfig.HTTP_CLIENT_EVICTION_INTERVAL.toMillis();
+            evictor.scheduleWithFixedDelay(HttpClientRegistry::evictIdleClients, period, period,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop the evictor once there is nothing left to evict; the next acquire
+     * starts a new one
+     */
+    private static synchronized void stopEvictorIfIdle() {
+        if (evictor != null && clients.isEmpty()) {
+            evictor.shutdown();
+            evictor = null;
+        }
+    }
+
+    /**
+     * Remove clients that have no requests in flight and have been idle longer
+     * than the configured timeout
+     */
+    static void evictIdleClients() {
+        long idleNanos = IntelliMapConfig.HTTP_CLIENT_IDLE_TIMEOUT.toNanos();
+        for (String key : clients.keySet()) {
+            clients.computeIfPresent(key, (k, pooled) -> {
+                if (pooled.inFlight.get() == 0 && System.nanoTime() - pooled.lastUsedNanos > idleNanos) {
+                    System.out.println("Evicting idle HTTP client for " + k);
+                    pooled.shutdown();
+                    return null;
+                }
+                return pooled;
+            });
+        }
+        stopEvictorIfIdle();
+    }
+
+    /**
+     * Normalize an endpoint URL to scheme://host:port so that trailing slashes
+     * or paths do not create separate pools
+     */
+    static String endpointKey(String endpoint) {
+        try {
+            URI uri = URI.create(endpoint.trim());
+            if (uri.getScheme() != null && uri.getHost() != null) {
+                String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+                int port = uri.getPort();
+                if (port == -1) {
+                    port = "http".equals(scheme) ? 80 : 443;
+                }
+                return scheme + "://" + uri.getHost().toLowerCase(Locale.ROOT) + ":" + port;
+            }
+        } catch (IllegalArgumentException e) {
+            // Fall back to the raw endpoint below
+        }
+        return endpoint.trim().replaceAll("/+$", "").toLowerCase(Locale.ROOT);
+    }
+
+    private static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A shared client together with its executor and usage bookkeeping
+     */
+    private static final class PooledClient {
+        private final ExecutorService executor;
+        private final HttpClient client;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile long lastUsedNanos = System.nanoTime();
+
+        PooledClient(String key) {
+            // Idle threads exit, so an unused client holds no threads
+            int threads = IntelliMapConfig.HTTP_CLIENT_EXECUTOR_THREADS;
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                    IntelliMapConfig.HTTP_CLIENT_THREAD_KEEP_ALIVE.toMillis(), TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(),
+                    daemonThreadFactory("intellimap-http-" + key.replaceAll("^[a-z]+://", "")));
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+            this.client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .connectTimeout(IntelliMapConfig.DEFAULT_TIMEOUT)
+                    .executor(executor)
+                    .build();
+            System.out.println("Created pooled HTTP client for " + key);
+        }
+
+        void release() {
+            lastUsedNanos = System.nanoTime();
+            inFlight.decrementAndGet();
+        }
+
+        void shutdown() {
+            executor.shutdown();
+        }
+    }
+}
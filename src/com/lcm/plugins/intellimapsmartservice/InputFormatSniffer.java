@@ -0,0 +1,211 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+/**
+ * Classifies string input as JSON, Appian Dictionary or key=value text
+ * A single left-to-right scan tracks string literals and bracket depth, looks
+ * for Appian Dictionary markers in a bounded prefix and checks JSON structure
+ * on the way, so detection stays linear in the input size with no regular
+ * expressions
+ */
+public final class InputFormatSniffer {
+
+    public enum Format {
+        JSON, MALFORMED_JSON, APPIAN_DICTIONARY, KEY_VALUE
+    }
+
+    // Unquoted words that make the JSON parser fail with "Unrecognized token"
+    private static final String[] PROBLEM_TOKENS = {
+            "Prod", "Product", "Production", "Prototype", "Professional",
+            "Process", "Program", "Project", "Property", "Provider"
+    };
+
+    private InputFormatSniffer() {
+    }
+
+    /**
+     * Classify an input string
+     * Input starting with [ is an Appian Dictionary when it holds several
+     * bracketed records ("]; [", "] [" or "],["), an unquoted name followed by
+     * a colon, or colon pairs in a single bracket without quotes; otherwise it
+     * is JSON. Input starting with { is JSON, anything else key=value text
+     */
+    public static Format sniff(CharSequence input) {
+        int start = firstNonWhitespace(input);
+        if (start < 0) {
+            return Format.KEY_VALUE;
+        }
+        char first = input.charAt(start);
+        if (first == '[') {
+            if (start + 1 < input.length() && input.charAt(start + 1) == '*') {
+                return Format.APPIAN_DICTIONARY;
+            }
+        } else if (first != '{') {
+            return Format.KEY_VALUE;
+        }
+        Scan scan = scan(input, first == '[');
+        if (scan.appianDictionary) {
+            return Format.APPIAN_DICTIONARY;
+        }
+        return scan.isJson() ? Format.JSON : Format.MALFORMED_JSON;
+    }
+
+    private static Scan scan(CharSequence input, boolean detectDictionary) {
+        Scan scan = new Scan();
+        int start = firstNonWhitespace(input);
+        int end = lastNonWhitespace(input);
+        scan.first = input.charAt(start);
+        scan.last = input.charAt(end);
+
+        int prefixEnd = Math.min(end + 1, start + IntelliMapConfig.FORMAT_SNIFF_PREFIX_CHARS);
+        boolean inString = false;
+        boolean escaped = false;
+        boolean quoteSeen = false;
+        boolean segmentOpen = false;
+        boolean segmentLetter = false;
+
+        for (int i = start; i <= end; i++) {
+            char c = input.charAt(i);
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    inString = false;
+                }
+                continue;
+            }
+
+            switch (c) {
+                case '"':
+                    inString = true;
+                    quoteSeen = true;
+                    segmentOpen = false;
+                    break;
+                case '{':
+                    scan.braceDepth++;
+                    break;
+                case '}':
+                    scan.braceDepth--;
+                    break;
+                case '[':
+                    scan.bracketDepth++;
+                    scan.maxBracketDepth = Math.max(scan.maxBracketDepth, scan.bracketDepth);
+                    segmentOpen = true;
+                    segmentLetter = false;
+                    break;
+                case ']':
+                    scan.bracketDepth--;
+                    segmentOpen = false;
+                    if (detectDictionary && scan.bracketDepth == 0 && i < prefixEnd
+                            && startsAnotherRecord(input, i + 1, end)) {
+                        scan.appianDictionary = true;
+                        return scan;
+                    }
+                    break;
+                case ':':
+                    scan.colonSeen = true;
+                    if (detectDictionary && segmentOpen && segmentLetter && i < prefixEnd) {
+                        scan.appianDictionary = true;
+                        return scan;
+                    }
+                    break;
+                default:
+                    if (Character.isLetter(c)) {
+                        segmentLetter = true;
+                        if (c == 'P' && scan.problemToken == null) {
+                            scan.problemToken = problemTokenAt(input, i);
+                        }
+                    }
+                    break;
+            }
+        }
+
+        // A single bracket of colon pairs without any quotes, like [a:1,b:2]
+        if (detectDictionary && !quoteSeen && scan.colonSeen && scan.maxBracketDepth == 1 && scan.last == ']') {
+            scan.appianDictionary = true;
+        }
+        if (scan.problemToken != null && !scan.appianDictionary) {
+            System.err.println("Found potentially problematic unquoted token: " + scan.problemToken);
+        }
+        return scan;
+    }
+
+    /**
+     * Check whether a closing bracket is followed by "; [", " [" or ",["
+     */
+    private static boolean startsAnotherRecord(CharSequence input, int from, int end) {
+        int i = from;
+        if (i <= end && (input.charAt(i) == ';' || input.charAt(i) == ',')) {
+            i++;
+        }
+        while (i <= end && Character.isWhitespace(input.charAt(i))) {
+            i++;
+        }
+        return i > from && i <= end && input.charAt(i) == '[';
+    }
+
+    private static String problemTokenAt(CharSequence input, int index) {
+        String found = null;
+        for (String token : PROBLEM_TOKENS) {
+            if (regionMatches(input, index, token) && (found == null || token.length() > found.length())) {
+                found = token;
+            }
+        }
+        return found;
+    }
+
+    private static boolean regionMatches(CharSequence input, int index, String token) {
+        if (index + token.length() > input.length()) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            if (input.charAt(index + i) != token.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int firstNonWhitespace(CharSequence input) {
+        for (int i = 0; i < input.length(); i++) {
+            if (!Character.isWhitespace(input.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastNonWhitespace(CharSequence input) {
+        for (int i = input.length() - 1; i >= 0; i--) {
+            if (!Character.isWhitespace(input.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * What one pass over the input found
+     */
+    private static final class Scan {
+        private char first;
+        private char last;
+        private int braceDepth;
+        private int bracketDepth;
+        private int maxBracketDepth;
+        private boolean colonSeen;
+        private String problemToken;
+        private boolean appianDictionary;
+
+        boolean isJson() {
+            if (problemToken != null) {
+                return false;
+            }
+            if (first == '{' && last == '}') {
+                return colonSeen && braceDepth == 0;
+            }
+            return first == '[' && last == ']' && bracketDepth == 0;
+        }
+    }
+}
@@ -9,19 +9,36 @@ import com.appiancorp.suiteapi.type.TypedValue;
 
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
 import java.time.Duration;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 @PaletteInfo(paletteCategory = "Map Tools", palette = "IntelliMap")
 public class IntelliMap extends AppianSmartService {
@@ -34,17 +51,38 @@ public class IntelliMap extends AppianSmartService {
     private String azureOpenAIApiVersion;
     private TypedValue targetFields;
     private String userPrompt;
+    private Integer maxConcurrentRecords;
+    private Integer recordsPerBatch;
+    private Boolean enableHedging;
+    private String hedgeDeploymentName;
+    private String deploymentPoolJson;
+    private Boolean enableStreaming;
+    private Integer streamDeadlineSeconds;
+    private Boolean enableStructuredOutput;
 
     // Output parameters
     private String mappedResult;
     private Double overallConfidence;
+    private String circuitBreakerState;
 
     // JSON parsing and utilities
     private static final ObjectMapper objectMapper = new ObjectMapper();
-    private static final RateLimiter rateLimiter = new RateLimiter();
+    private static final ObjectMapper canonicalMapper = new ObjectMapper()
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+    private static final RateLimiter rateLimiter = RateLimiter.shared();
+    private static final RetryPolicy retryPolicy = RetryPolicy.shared();
+    private static final MappingCache responseCache = new MappingCache();
 
-    // Client identifier for rate limiting
-    private String clientId;
+    // Deployments this invocation balances across; the first is the primary
+    // endpoint and deployment. Rate limits, concurrency and circuit breakers are
+    // shared per deployment across the JVM
+    private DeploymentPool deploymentPool;
+
+    // Prompt fingerprint for mapping cache keys
+    private String promptFingerprint;
+
+    // Compiled messages and system prompt for this invocation
+    private RequestTemplate requestTemplate;
 
     // Setters for input parameters
     @Input(required = Required.ALWAYS)
@@ -82,391 +120,97 @@ public class IntelliMap extends AppianSmartService {
         this.userPrompt = userPrompt;
     }
 
-    // Getters for output parameters
-    public String getMappedResult() {
-        return mappedResult;
+    @Input(required = Required.OPTIONAL)
+    public void setMaxConcurrentRecords(Integer maxConcurrentRecords) {
+        this.maxConcurrentRecords = maxConcurrentRecords;
     }
 
-    public Double getOverallConfidence() {
-        return overallConfidence;
+    @Input(required = Required.OPTIONAL)
+    public void setRecordsPerBatch(Integer recordsPerBatch) {
+        this.recordsPerBatch = recordsPerBatch;
     }
 
-    @Override
-    public void run() throws SmartServiceException {
-        try {
-            // Initialize client ID for rate limiting
-            clientId = generateClientId();
-
-            // Validate required inputs
-            validateInputs();
-
-            // Process multiple records
-            processMultipleRecords();
-
-        } catch (SmartServiceException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new SmartServiceException(
-                    IntelliMap.class,
-                    e,
-                    "Error processing data mapping: " + e.getMessage());
-        }
+    @Input(required = Required.OPTIONAL)
+    public void setEnableHedging(Boolean enableHedging) {
+        this.enableHedging = enableHedging;
     }
 
-    private boolean needsChunking(String inputData) {
-        // Estimate tokens (rough approximation: 1 token ≈ 4 characters)
-        int estimatedTokens = inputData.length() / 4;
-        return estimatedTokens > IntelliMapConfig.MAX_INPUT_TOKENS_PER_CHUNK;
+    @Input(required = Required.OPTIONAL)
+    public void setHedgeDeploymentName(String hedgeDeploymentName) {
+        this.hedgeDeploymentName = hedgeDeploymentName;
     }
 
-    private void processChunkedInput(String inputData) throws SmartServiceException {
-        try {
-            // Parse input data to get dictionary entries
-            Map<String, Object> inputMap = parseInputToMap(inputData);
-            List<String> inputKeys = new ArrayList<>(inputMap.keySet());
-
-            // Split into chunks
-            List<List<String>> chunks = createChunks(inputKeys, IntelliMapConfig.MAX_INPUT_KEYS_PER_CHUNK);
-
-            // Process each chunk
-            List<String> chunkResults = new ArrayList<>();
-            for (int i = 0; i < Math.min(chunks.size(), IntelliMapConfig.MAX_CHUNKS_PER_REQUEST); i++) {
-                List<String> chunk = chunks.get(i);
-                Map<String, Object> chunkData = createChunkData(inputMap, chunk);
-                String chunkJson = convertMapToJsonString(chunkData);
-
-                // Check rate limits before making API call
-                rateLimiter.checkRateLimit(clientId);
-
-                // Process chunk
-                String chunkResult = callAzureOpenAIWithRetry(chunkJson);
-                chunkResults.add(chunkResult);
-            }
-
-            // Merge results from all chunks
-            mergeChunkResults(chunkResults);
-
-        } catch (Exception e) {
-            throw new SmartServiceException(
-                    IntelliMap.class,
-                    e,
-                    "Error processing chunked input: " + e.getMessage());
-        }
+    @Input(required = Required.OPTIONAL)
+    public void setDeploymentPool(String deploymentPool) {
+        this.deploymentPoolJson = deploymentPool;
     }
 
-    private void processSingleRequest(String inputData) throws SmartServiceException {
-        try {
-            // Check rate limits before making API call
-            rateLimiter.checkRateLimit(clientId);
-
-            // Call Azure OpenAI with retry logic
-            String openAIResponse = callAzureOpenAIWithRetry(inputData);
-
-            // Parse the response using proper JSON parsing
-            parseOpenAIResponseWithJackson(openAIResponse);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new SmartServiceException(
-                    IntelliMap.class,
-                    e,
-                    "Processing interrupted during rate limiting");
-        }
+    @Input(required = Required.OPTIONAL)
+    public void setEnableStreaming(Boolean enableStreaming) {
+        this.enableStreaming = enableStreaming;
     }
 
-    private Map<String, Object> parseInputToMap(String inputData) throws SmartServiceException {
-        try {
-            // Try to parse as JSON first, but with better validation
-            if (inputData.trim().startsWith("{")) {
-                // Additional validation to ensure it's actually valid JSON before parsing
-                if (isValidJsonFormat(inputData.trim())) {
-                    try {
-                        return objectMapper.readValue(inputData, Map.class);
-                    } catch (JsonProcessingException e) {
-                        System.err.println("JSON parsing failed despite initial validation: " + e.getMessage());
-                        // Fall through to custom parsing
-                    }
-                } else {
-                    System.out.println("Input starts with '{' but doesn't appear to be valid JSON format");
-                }
-            }
-
-            // Handle non-JSON format (fallback)
-            Map<String, Object> result = new HashMap<>();
-            String[] lines = inputData.split("\n");
-            for (String line : lines) {
-                if (line.contains("=")) {
-                    String[] parts = line.split("=", 2);
-                    if (parts.length == 2) {
-                        result.put(parts[0].trim(), parts[1].trim());
-                    }
-                }
-            }
-            return result;
-        } catch (Exception e) {
-            throw new SmartServiceException(
-                    IntelliMap.class,
-                    e,
-                    "Error parsing input data: " + e.getMessage());
-        }
+    @Input(required = Required.OPTIONAL)
+    public void setStreamDeadlineSeconds(Integer streamDeadlineSeconds) {
+        this.streamDeadlineSeconds = streamDeadlineSeconds;
     }
 
-    /**
-     * Determines if the input string is in Appian Dictionary format
-     * Appian Dictionary format has patterns like: [field:value,field2:value2]
-     * This detection is based on STRUCTURE, not specific field names
-     */
-    private boolean isAppianDictionaryFormat(String input) {
-        if (input == null || input.trim().isEmpty()) {
-            return false;
-        }
-
-        String trimmed = input.trim();
-
-        // Must start with [ for both formats, but we need to distinguish
-        if (!trimmed.startsWith("[")) {
-            return false;
-        }
-
-        // Look for Appian Dictionary structural patterns:
-
-        // 1. Multiple records separated by ]; [ - this is definitely Appian Dictionary
-        if (trimmed.contains("]; [")) {
-            return true;
-        }
-
-        // 2. Alternative separators like ] [ or ],[
-        if (trimmed.contains("] [") || trimmed.contains("],[")) {
-            return true;
-        }
-
-        // 3. Look for unquoted field names followed by colons (typical of Appian
-        // Dictionary)
-        // JSON would have quoted field names like "fieldName":
-        // This regex looks for: [optionally preceded by *] word characters [possibly
-        // with spaces] followed by colon
-        if (trimmed.matches(".*\\[\\*?[A-Za-z][A-Za-z0-9\\s_-]*:.*")) {
-            return true;
-        }
-
-        // 4. Look for the general pattern of unquoted identifiers followed by colons
-        // This catches patterns like [SomeFieldName:value, AnotherField:value2]
-        if (trimmed.matches(".*\\[[^\\[\\]\"]*[A-Za-z][^\\[\\]\"]*:.*")) {
-            return true;
-        }
-
-        // 5. If it looks like JSON array (starts with [ but has quoted strings and
-        // proper JSON structure)
-        if (trimmed.matches("^\\[\\s*\\{.*") || trimmed.matches("^\\[\\s*\".*")) {
-            // Looks like JSON array
-            return false;
-        }
-
-        // 6. Check for comma-separated unquoted field:value pairs within brackets
-        // This pattern: [field1:value1,field2:value2,field3:value3]
-        if (trimmed.matches("^\\[[^\\[\\]]*:[^\\[\\]]*(?:,[^\\[\\]]*:[^\\[\\]]*)*\\]$")) {
-            return true;
-        }
-
-        // Default to false if we can't determine
-        return false;
+    @Input(required = Required.OPTIONAL)
+    public void setEnableStructuredOutput(Boolean enableStructuredOutput) {
+        this.enableStructuredOutput = enableStructuredOutput;
     }
 
-    /**
-     * Validates if a string is likely to be valid JSON format
-     * This helps avoid passing non-JSON strings to the JSON parser
-     */
-    private boolean isValidJsonFormat(String input) {
-        if (input == null || input.trim().isEmpty()) {
-            return false;
-        }
-
-        String trimmed = input.trim();
-
-        // Basic structural checks for JSON
-        if (trimmed.startsWith("{") && trimmed.endsWith("}")) {
-            // Check if it contains basic JSON structure indicators
-            // Must have at least one colon (for key-value pairs)
-            if (!trimmed.contains(":")) {
-                return false;
-            }
-
-            // Enhanced validation to catch common "Prod" token issues
-            // Check for unquoted words that might cause parsing errors
-            if (containsUnquotedProblemTokens(trimmed)) {
-                System.err.println("Input contains unquoted tokens that will cause JSON parsing errors");
-                return false;
-            }
-
-            // Quick check to see if it has balanced braces
-            int braceCount = 0;
-            boolean inQuotes = false;
-            char prevChar = ' ';
-
-            for (char c : trimmed.toCharArray()) {
-                if (c == '"' && prevChar != '\\') {
-                    inQuotes = !inQuotes;
-                } else if (!inQuotes) {
-                    if (c == '{')
-                        braceCount++;
-                    else if (c == '}')
-                        braceCount--;
-                }
-                prevChar = c;
-            }
-
-            return braceCount == 0;
-        } else if (trimmed.startsWith("[") && trimmed.endsWith("]")) {
-            // JSON array validation
-
-            // Enhanced validation for arrays containing problem tokens
-            if (containsUnquotedProblemTokens(trimmed)) {
-                System.err.println("Array input contains unquoted tokens that will cause JSON parsing errors");
-                return false;
-            }
-
-            int bracketCount = 0;
-            boolean inQuotes = false;
-            char prevChar = ' ';
-
-            for (char c : trimmed.toCharArray()) {
-                if (c == '"' && prevChar != '\\') {
-                    inQuotes = !inQuotes;
-                } else if (!inQuotes) {
-                    if (c == '[')
-                        bracketCount++;
-                    else if (c == ']')
-                        bracketCount--;
-                }
-                prevChar = c;
-            }
-
-            return bracketCount == 0;
-        }
-
-        return false;
+    // Getters for output parameters
+    public String getMappedResult() {
+        return mappedResult;
     }
 
-    /**
-     * Enhanced method to detect unquoted problematic tokens that cause JSON parsing
-     * errors
-     */
-    private boolean containsUnquotedProblemTokens(String input) {
-        // Common problematic tokens that cause "Unrecognized token" errors
-        String[] problemTokens = {
-                "Prod", "Product", "Production", "Prototype", "Professional",
-                "Process", "Program", "Project", "Property", "Provider"
-        };
-
-        // Remove all quoted strings first to check only unquoted content
-        String unquotedContent = removeQuotedStrings(input);
-
-        for (String token : problemTokens) {
-            // Check if the token appears outside of quotes
-            if (unquotedContent.contains(token)) {
-                System.err.println("Found potentially problematic unquoted token: " + token);
-                return true;
-            }
-        }
-
-        return false;
+    public Double getOverallConfidence() {
+        return overallConfidence;
     }
 
-    /**
-     * Helper method to remove quoted strings from input for analysis
-     */
-    private String removeQuotedStrings(String input) {
-        StringBuilder result = new StringBuilder();
-        boolean inQuotes = false;
-        char prevChar = ' ';
-
-        for (char c : input.toCharArray()) {
-            if (c == '"' && prevChar != '\\') {
-                inQuotes = !inQuotes;
-                result.append(c); // Keep the quote character
-            } else if (!inQuotes) {
-                result.append(c); // Only keep content outside quotes
-            }
-            prevChar = c;
-        }
-
-        return result.toString();
+    public String getCircuitBreakerState() {
+        return circuitBreakerState;
     }
 
-    private List<List<String>> createChunks(List<String> inputKeys, int maxKeysPerChunk) {
-        List<List<String>> chunks = new ArrayList<>();
-        for (int i = 0; i < inputKeys.size(); i += maxKeysPerChunk) {
-            int end = Math.min(i + maxKeysPerChunk, inputKeys.size());
-            chunks.add(inputKeys.subList(i, end));
-        }
-        return chunks;
-    }
+    @Override
+    public void run() throws SmartServiceException {
+        try {
+            // Validate required inputs
+            validateInputs();
 
-    private Map<String, Object> createChunkData(Map<String, Object> fullData, List<String> chunkKeys) {
-        Map<String, Object> chunkData = new HashMap<>();
-        for (String key : chunkKeys) {
-            if (fullData.containsKey(key)) {
-                chunkData.put(key, fullData.get(key));
-            }
-        }
-        return chunkData;
-    }
+            // Rate limits apply per endpoint and deployment across the JVM
+            deploymentPool = buildDeploymentPool();
 
-    private void mergeChunkResults(List<String> chunkResults) throws SmartServiceException {
-        try {
-            List<Map<String, Object>> allFields = new ArrayList<>();
-
-            for (String chunkResult : chunkResults) {
-                // Parse each chunk result
-                JsonNode responseNode = objectMapper.readTree(chunkResult);
-                String content = responseNode.path("choices")
-                        .path(0)
-                        .path("message")
-                        .path("content")
-                        .asText();
-
-                if (content != null && !content.trim().isEmpty()) {
-                    // Try to extract result array from content
-                    try {
-                        JsonNode contentNode = objectMapper.readTree(content);
-
-                        // Check if content is already an array (direct format)
-                        if (contentNode.isArray()) {
-                            for (JsonNode record : contentNode) {
-                                Map<String, Object> recordMap = objectMapper.convertValue(record, Map.class);
-                                allFields.add(recordMap);
-                            }
-                        } else {
-                            // Look for the result array (fallback format)
-                            JsonNode resultNode = contentNode.path("result");
-                            if (!resultNode.isMissingNode() && resultNode.isArray()) {
-                                for (JsonNode record : resultNode) {
-                                    Map<String, Object> recordMap = objectMapper.convertValue(record, Map.class);
-                                    allFields.add(recordMap);
-                                }
-                            }
-                        }
-                    } catch (JsonProcessingException e) {
-                        // Skip malformed chunk result
-                    }
-                }
-            }
+            // Compile (or reuse) the request template before any records are dispatched
+            getRequestTemplate();
 
-            // Create final merged result - return records directly as array
-            this.mappedResult = objectMapper.writeValueAsString(allFields);
-            this.overallConfidence = calculateOverallConfidence(this.mappedResult);
+            // Process multiple records
+            processMultipleRecords();
 
+        } catch (SmartServiceException e) {
+            throw e;
         } catch (Exception e) {
             throw new SmartServiceException(
                     IntelliMap.class,
                     e,
-                    "Error merging chunk results: " + e.getMessage());
+                    "Error processing data mapping: " + e.getMessage());
+        } finally {
+            // Lets process models route around a deployment that is failing
+            if (deploymentPool != null) {
+                circuitBreakerState = deploymentPool.getPrimary().getCircuitBreaker().getState().name();
+            }
         }
     }
 
+    private boolean needsChunking(String inputData) {
+        return estimateTokens(inputData) > IntelliMapConfig.MAX_INPUT_TOKENS_PER_CHUNK;
+    }
+
     private void processMultipleRecords() throws SmartServiceException {
         // Declare variables outside try block so they're accessible in catch block
-        List<Map<String, Object>> records = null;
-        int processedRecords = 0;
+        Iterator<Map<String, Object>> records;
+        ResultWriter writer = null;
 
         try {
             // Get the input records
@@ -497,23 +241,25 @@ public class IntelliMap extends AppianSmartService {
                 System.out.println("Map keys: " + mapValue.keySet());
             }
 
-            records = new ArrayList<>();
-
+            int totalRecords = -1;
             if (value instanceof List) {
-                @SuppressWarnings("unchecked")
-                List<Object> recordList = (List<Object>) value;
+                List<?> recordList = (List<?>) value;
+                List<Map<String, Object>> recordMaps = new ArrayList<>(recordList.size());
                 for (Object record : recordList) {
                     if (record instanceof Map) {
                         @SuppressWarnings("unchecked")
                         Map<String, Object> recordMap = (Map<String, Object>) record;
-                        records.add(recordMap);
+                        recordMaps.add(recordMap);
                     }
                 }
+                records = recordMaps.iterator();
+                totalRecords = recordMaps.size();
             } else if (value instanceof Map) {
                 // Single record case
                 @SuppressWarnings("unchecked")
                 Map<String, Object> recordMap = (Map<String, Object>) value;
-                records.add(recordMap);
+                records = List.of(recordMap).iterator();
+                totalRecords = 1;
             } else if (value instanceof String) {
                 // Handle string input (JSON or custom format)
                 String inputString = (String) value;
@@ -527,33 +273,35 @@ public class IntelliMap extends AppianSmartService {
                                 "Input string is empty");
                     }
 
-                    // Check if it looks like Appian Dictionary format
-                    // Appian Dictionary can start with [* or just [ followed by field names
-                    if (inputString.startsWith("[*") || isAppianDictionaryFormat(inputString)) {
+                    // Classify the format in one pass; Appian Dictionary can start with [* or
+                    // just [ followed by field names
+                    InputFormatSniffer.Format format = InputFormatSniffer.sniff(inputString);
+                    if (format == InputFormatSniffer.Format.APPIAN_DICTIONARY) {
                         // Try to parse as Appian Dictionary format
                         System.out.println("Parsing Appian Dictionary format");
                         System.out.println("Input format preview: "
                                 + (inputString.length() > 200 ? inputString.substring(0, 200) + "..." : inputString));
 
-                        // Always try to parse multiple records first for Appian Dictionary format
-                        List<Map<String, Object>> multipleRecords = parseMultipleRecordsFromAppianFormat(
-                                inputString);
-                        if (!multipleRecords.isEmpty()) {
-                            records.addAll(multipleRecords);
-                            System.out.println("Successfully parsed " + multipleRecords.size()
-                                    + " records from Appian Dictionary format");
+                        // Records are read one at a time as the pipeline asks for them, so
+                        // separators inside values do not split them and no copies of the
+                        // input are made
+                        AppianDictionaryReader reader = new AppianDictionaryReader(inputString);
+                        if (reader.hasNext()) {
+                            records = reader;
+                            System.out.println("Streaming records from Appian Dictionary format");
                         } else {
                             // Fall back to single record parsing
                             Map<String, Object> recordMap = parseCustomDelimitedFormat(inputString);
-                            records.add(recordMap);
+                            records = List.of(recordMap).iterator();
+                            totalRecords = 1;
                             System.out.println("Successfully parsed 1 record from Appian Dictionary format");
                         }
-                    } else if (inputString.startsWith("{")
-                            || (inputString.startsWith("[") && !isAppianDictionaryFormat(inputString))) {
+                    } else if (format == InputFormatSniffer.Format.JSON
+                            || format == InputFormatSniffer.Format.MALFORMED_JSON) {
                         // Try to parse as JSON (but not Appian Dictionary format)
                         try {
                             // Add validation before attempting JSON parsing
-                            if (!isValidJsonFormat(inputString)) {
+                            if (format == InputFormatSniffer.Format.MALFORMED_JSON) {
                                 System.err.println(
                                         "Input appears to start with JSON markers but is not valid JSON format");
                                 throw new SmartServiceException(
@@ -561,32 +309,8 @@ public class IntelliMap extends AppianSmartService {
                                         null,
                                         "Input appears to be malformed JSON. If your data starts with words like 'Prod', 'Product', etc., it should be formatted as Appian Dictionary format with [*field:value] structure.");
                             }
-
-                            JsonNode jsonNode = objectMapper.readTree(inputString);
-                            if (jsonNode.isArray()) {
-                                // It's a JSON array of records
-                                System.out.println("Parsing JSON array with " + jsonNode.size() + " elements");
-                                for (JsonNode node : jsonNode) {
-                                    if (node.isObject()) {
-                                        Map<String, Object> recordMap = objectMapper.convertValue(node, Map.class);
-                                        records.add(recordMap);
-                                    } else {
-                                        System.err.println("Skipping non-object element in JSON array");
-                                    }
-                                }
-                            } else if (jsonNode.isObject()) {
-                                // It's a single JSON object
-                                System.out.println("Parsing single JSON object");
-                                Map<String, Object> recordMap = objectMapper.convertValue(jsonNode, Map.class);
-                                records.add(recordMap);
-                            } else {
-                                throw new SmartServiceException(
-                                        IntelliMap.class,
-                                        null,
-                                        "JSON string must contain an object or array, got: " + jsonNode.getNodeType());
-                            }
-                            System.out.println("Successfully parsed " + records.size() + " records from JSON string");
-                        } catch (JsonProcessingException e) {
+                            records = streamJsonRecords(inputString);
+                        } catch (IOException e) {
                             // Provide specific guidance for the 'Prod' token error
                             String errorMsg = e.getMessage();
                             if (errorMsg != null && errorMsg.contains("Unrecognized token 'Prod'")) {
@@ -608,7 +332,8 @@ public class IntelliMap extends AppianSmartService {
                         System.out.println("Input format preview: "
                                 + (inputString.length() > 200 ? inputString.substring(0, 200) + "..." : inputString));
                         Map<String, Object> recordMap = parseCustomDelimitedFormat(inputString);
-                        records.add(recordMap);
+                        records = List.of(recordMap).iterator();
+                        totalRecords = 1;
                         System.out.println("Successfully parsed 1 record from custom delimited format");
                     }
                 } catch (Exception e) {
@@ -629,197 +354,810 @@ public class IntelliMap extends AppianSmartService {
                                 + value.getClass().getSimpleName());
             }
 
-            // Process each record
-            List<Map<String, Object>> allResults = new ArrayList<>();
-            double totalConfidence = 0.0;
-            int currentRecordIndex = 0;
+            // Stream records through a bounded pipeline: they are read one at a time,
+            // packed into requests, mapped with up to maxInFlight calls and written out
+            // in input order as soon as every earlier record is done
+            int maxInFlight = resolveMaxConcurrentRecords();
+            promptFingerprint = computePromptFingerprint();
+            int recordsPerBatch = resolveRecordsPerBatch();
+            if (maxInFlight > 1) {
+                System.out.println("Dispatching requests with up to " + maxInFlight + " in flight"
+                        + (RecordDispatcher.usesVirtualThreads() ? " on virtual threads" : ""));
+            }
+            final int knownTotal = totalRecords;
+            writer = new ResultWriter();
+            try (RecordPipeline<List<RecordResult>> pipeline = new RecordPipeline<>(maxInFlight,
+                    maxInFlight * IntelliMapConfig.PIPELINE_PENDING_PER_WORKER, writer::write)) {
+                RecordBatch batch = null;
+                int recordIndex = 0;
+                while (records.hasNext()) {
+                    final Map<String, Object> record = records.next();
+                    final int index = ++recordIndex;
+                    if (recordsPerBatch <= 1 || knownTotal == 1) {
+                        pipeline.submit(() -> List.of(processRecord(record, index, knownTotal)));
+                        continue;
+                    }
+
+                    String recordJson = record != null ? convertMapToJsonString(record) : null;
+                    int recordTokens = recordJson != null ? estimateTokens(recordJson) : 0;
+                    if (batch != null && (batch.size() >= recordsPerBatch
+                            || batch.estimatedTokens + recordTokens > IntelliMapConfig.MAX_BATCH_INPUT_TOKENS)) {
+                        submitBatch(pipeline, batch, knownTotal);
+                        batch = null;
+                    }
+                    if (batch == null) {
+                        batch = new RecordBatch();
+                    }
+
+                    // Tag each record so its results can be matched up after the call
+                    String recordId = generateRecordId(record);
+                    if (batch.recordIds.contains(recordId)) {
+                        recordId = recordId + "_" + index;
+                    }
+                    batch.add(index, record, recordJson, recordId, recordTokens);
+                }
+                if (batch != null) {
+                    submitBatch(pipeline, batch, knownTotal);
+                }
+                pipeline.finish();
+                System.out.println("Mapped " + writer.recordCount + " records with " + pipeline.getSubmitted()
+                        + " requests");
+            }
+
+            if (!writer.recordErrors.isEmpty()) {
+                System.err.println(writer.recordErrors.size() + " of " + writer.recordCount + " records failed: "
+                        + writer.recordErrors);
+            }
+            System.out.println("Mapping cache: " + responseCache.getStats());
+            System.out.println("Deployments: " + deploymentPool.getStats());
+            System.out.println("Retry policy: " + retryPolicy.getStats());
+            if (Boolean.TRUE.equals(enableHedging)) {
+                System.out.println("Latency and hedging: "
+                        + deploymentPool.getPrimary().getLatencyTracker().getStats());
+            }
+            if (PersistentMappingCache.shared() != null) {
+                System.out.println("Persistent mapping cache: " + PersistentMappingCache.shared().getStats());
+            }
+
+            // Create final result - return records directly as array
+            System.out.println("Final results count: " + writer.resultCount);
+            this.mappedResult = writer.finish();
+            System.out.println("Final mapped result length: " + this.mappedResult.length());
+
+            this.overallConfidence = writer.processedRecords > 0
+                    ? writer.totalConfidence / writer.processedRecords
+                    : 0.0;
+
+        } catch (Exception e) {
+            String errorMessage = e.getMessage();
+            if (errorMessage == null) {
+                errorMessage = e.getClass().getSimpleName() + " occurred";
+            }
+
+            // Log the full exception for debugging
+            System.err.println("Full exception in processMultipleRecords:");
+            e.printStackTrace();
+
+            // Provide more context about what might have failed
+            String contextMessage = "Error processing multiple records";
+            if (writer != null) {
+                contextMessage += " (processing " + writer.recordCount + " records)";
+                if (writer.processedRecords > 0) {
+                    contextMessage += " (successfully processed " + writer.processedRecords + " records)";
+                }
+            }
+
+            throw new SmartServiceException(
+                    IntelliMap.class,
+                    e,
+                    contextMessage + ": " + errorMessage);
+        }
+    }
+
+    /**
+     * Reads the records of a JSON array, or a single JSON object, one at a time
+     * Non-object array elements are skipped
+     */
+    private Iterator<Map<String, Object>> streamJsonRecords(String inputString)
+            throws IOException, SmartServiceException {
+        JsonParser parser = objectMapper.getFactory().createParser(inputString);
+        JsonToken first = parser.nextToken();
+        if (first == JsonToken.START_OBJECT) {
+            // It's a single JSON object
+            System.out.println("Parsing single JSON object");
+            try {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> recordMap = objectMapper.readValue(parser, Map.class);
+                return List.of(recordMap).iterator();
+            } finally {
+                parser.close();
+            }
+        }
+        if (first != JsonToken.START_ARRAY) {
+            parser.close();
+            throw new SmartServiceException(
+                    IntelliMap.class,
+                    null,
+                    "JSON string must contain an object or array, got: " + first);
+        }
+
+        // It's a JSON array of records, read as the pipeline asks for them
+        System.out.println("Streaming records from JSON array");
+        Iterator<Map<String, Object>> iterator = new Iterator<Map<String, Object>>() {
+            private Map<String, Object> nextRecord = readNext();
+
+            @Override
+            public boolean hasNext() {
+                return nextRecord != null;
+            }
+
+            @Override
+            public Map<String, Object> next() {
+                if (nextRecord == null) {
+                    throw new NoSuchElementException();
+                }
+                Map<String, Object> record = nextRecord;
+                nextRecord = readNext();
+                return record;
+            }
 
-            for (Map<String, Object> record : records) {
-                currentRecordIndex++;
+            @SuppressWarnings("unchecked")
+            private Map<String, Object> readNext() {
                 try {
-                    if (record == null) {
-                        System.err.println("Skipping null record " + currentRecordIndex);
-                        continue;
+                    JsonToken token;
+                    while ((token = parser.nextToken()) != null && token != JsonToken.END_ARRAY) {
+                        if (token == JsonToken.START_OBJECT) {
+                            return objectMapper.readValue(parser, Map.class);
+                        }
+                        System.err.println("Skipping non-object element in JSON array");
+                        parser.skipChildren();
                     }
+                    parser.close();
+                    return null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException("JSON parsing failed: " + e.getMessage(), e);
+                }
+            }
+        };
+        return iterator;
+    }
 
-                    // Convert record to JSON string
-                    String recordJson = convertMapToJsonString(record);
-                    if (recordJson == null || recordJson.trim().isEmpty()) {
-                        System.err.println("Skipping record " + currentRecordIndex + " with empty JSON");
-                        continue;
+    /**
+     * Submits a batch as one request, or as a single record request when only
+     * one record ended up in it
+     */
+    private void submitBatch(RecordPipeline<List<RecordResult>> pipeline, RecordBatch batch, int totalRecords)
+            throws Exception {
+        if (batch.size() == 1) {
+            Map<String, Object> record = batch.records.get(0);
+            int recordIndex = batch.recordIndexes.get(0);
+            pipeline.submit(() -> List.of(processRecord(record, recordIndex, totalRecords)));
+        } else {
+            pipeline.submit(() -> processRecordBatch(batch, totalRecords));
+        }
+    }
+
+    /**
+     * Maps a single input record through Azure OpenAI
+     * Errors are captured in the returned result so the remaining records keep
+     * processing
+     */
+    private RecordResult processRecord(Map<String, Object> record, int recordIndex, int totalRecords) {
+        return processRecord(record, recordIndex, totalRecords, null);
+    }
+
+    /**
+     * @param shardTemplate template for a shard of a wide record, mapping only
+     *                      some of the target fields; null for a whole record,
+     *                      which is sharded when over the input token budget
+     */
+    private RecordResult processRecord(Map<String, Object> record, int recordIndex, int totalRecords,
+            RequestTemplate shardTemplate) {
+        RecordResult result = new RecordResult(recordIndex);
+        try {
+            if (record == null) {
+                System.err.println("Skipping null record " + recordIndex);
+                return result;
+            }
+
+            // Convert record to JSON string
+            String recordJson = convertMapToJsonString(record);
+            if (recordJson == null || recordJson.trim().isEmpty()) {
+                System.err.println("Skipping record " + recordIndex + " with empty JSON");
+                return result;
+            }
+
+            // Too large for one request: send every field, in chunks packed by size
+            if (shardTemplate == null && record.size() > 1 && needsChunking(recordJson)) {
+                return processChunkedRecord(record, recordIndex, totalRecords);
+            }
+
+            // Serve repeated records from the mapping cache
+            String cacheKey = buildCacheKey(record);
+            if (cacheKey != null && shardTemplate != null) {
+                cacheKey = MappingCache.sha256Hex(cacheKey + "\n" + shardTemplate.getSystemPrompt());
+            }
+            if (applyCachedResult(cacheKey, result)) {
+                System.out.println("Record " + recordIndex + ofTotal(totalRecords) + " served from mapping cache");
+                return result;
+            }
+
+            // Process single record
+            System.out.println("Processing record " + recordIndex + ofTotal(totalRecords));
+            String openAIResponse = callAzureOpenAIWithRetry(recordJson, false,
+                    shardTemplate != null ? shardTemplate : getRequestTemplate());
+            if (openAIResponse == null || openAIResponse.trim().isEmpty()) {
+                System.err.println("Received null or empty response from OpenAI for record");
+                result.error = "Empty response from OpenAI";
+                return result;
+            }
+
+            // Parse the response and its content in one pass each
+            ChatCompletionReader.Completion completion;
+            try {
+                completion = ChatCompletionReader.readCompletion(openAIResponse, objectMapper.getFactory());
+            } catch (Exception e) {
+                String errorMsg = e.getMessage();
+                if (errorMsg != null && errorMsg.contains("Unrecognized token 'Prod'")) {
+                    System.err.println(
+                            "OpenAI response contains unrecognized 'Prod' token. This usually means the AI returned malformed JSON. Response preview: "
+                                    +
+                                    (openAIResponse.length() > 300 ? openAIResponse.substring(0, 300) + "..."
+                                            : openAIResponse));
+                } else {
+                    System.err.println("Error parsing OpenAI response JSON: " + errorMsg);
+                }
+                System.err.println("Skipping this record due to malformed OpenAI response");
+                result.error = "Malformed OpenAI response";
+                return result;
+            }
+
+            String content = completion.getContent();
+            if (content != null && !content.trim().isEmpty()) {
+                // Log the AI response content for debugging
+                System.out.println("AI Response Content Preview: " +
+                        (content.length() > 200 ? content.substring(0, 200) + "..." : content));
+
+                // Read the result array - either the content itself or wrapped in a
+                // "result" field
+                List<ChatCompletionReader.MappedRecord> mappedRecords;
+                try {
+                    mappedRecords = readContentRecords(content, null, completion.getFinishReason());
+                } catch (Exception e) {
+                    String errorMsg = e.getMessage();
+                    if (errorMsg != null && errorMsg.contains("Unrecognized token 'Prod'")) {
+                        System.err.println(
+                                "AI returned content with unrecognized 'Prod' token. The AI response is not valid JSON.");
+                        System.err.println("Content preview: "
+                                + (content.length() > 300 ? content.substring(0, 300) + "..." : content));
+                        System.err.println(
+                                "This usually means the AI needs better instructions to return valid JSON format.");
+                    } else {
+                        System.err.println("Error parsing AI response content as JSON: " + errorMsg);
                     }
+                    System.err.println("Skipping this record due to malformed AI response content");
+                    result.error = "Malformed AI response content";
+                    return result;
+                }
 
-                    // Process single record
-                    System.out.println("Processing record " + currentRecordIndex + " of " + records.size());
-                    String openAIResponse = callAzureOpenAIWithRetry(recordJson);
-                    if (openAIResponse == null || openAIResponse.trim().isEmpty()) {
-                        System.err.println("Received null or empty response from OpenAI for record");
-                        continue;
+                if (mappedRecords != null) {
+                    System.out.println("Found result array with " + mappedRecords.size() + " elements");
+                    for (ChatCompletionReader.MappedRecord mappedRecord : mappedRecords) {
+                        if (mappedRecord.getFieldCount() > 0) {
+                            result.records.add(mappedRecord.getJson());
+                            System.out.println("Added record with " + mappedRecord.getFieldCount() + " fields");
+                        }
                     }
 
-                    // Parse the response
-                    JsonNode responseNode = null;
-                    try {
-                        responseNode = objectMapper.readTree(openAIResponse);
-                    } catch (Exception e) {
-                        String errorMsg = e.getMessage();
-                        if (errorMsg != null && errorMsg.contains("Unrecognized token 'Prod'")) {
-                            System.err.println(
-                                    "OpenAI response contains unrecognized 'Prod' token. This usually means the AI returned malformed JSON. Response preview: "
-                                            +
-                                            (openAIResponse.length() > 300 ? openAIResponse.substring(0, 300) + "..."
-                                                    : openAIResponse));
-                        } else {
-                            System.err.println("Error parsing OpenAI response JSON: " + errorMsg);
-                        }
-                        System.err.println("Skipping this record due to malformed OpenAI response");
-                        continue;
-                    }
+                    // Calculate confidence for this record
+                    result.confidence = ChatCompletionReader.averageConfidence(mappedRecords);
+                } else {
+                    System.err.println("No valid result array found in response content");
+                    result.error = "No result array in response content";
+                }
+            }
+            if (StreamingChatCompletion.DEADLINE_FINISH_REASON.equals(completion.getFinishReason())) {
+                // Keep what arrived, but do not cache a partial mapping
+                System.err.println("Streaming deadline reached for record " + recordIndex
+                        + ", mapping may be incomplete");
+                result.error = "Streaming deadline reached, mapping may be incomplete";
+            } else if ("length".equals(completion.getFinishReason()) && !result.records.isEmpty()) {
+                // Records salvaged from a reply cut off at max_tokens are kept but not cached
+                System.err.println("Response for record " + recordIndex + " was cut off at max_tokens");
+                result.error = "Response cut off at max_tokens, mapping may be incomplete";
+            }
+            cacheResult(cacheKey, result);
+
+        } catch (Exception e) {
+            // Log error but continue processing other records
+            String errorMsg = e.getMessage();
+            if (errorMsg == null) {
+                errorMsg = e.getClass().getSimpleName() + " occurred";
+            }
+            System.err.println("Error processing record " + recordIndex + ": " + errorMsg);
+            // Log the full stack trace for debugging
+            e.printStackTrace();
+            result.error = errorMsg;
+        }
+        return result;
+    }
+
+    /**
+     * Maps a record over the input token budget in shards of its fields
+     * Fields are packed by their token size into as few chunks as fit the
+     * budget and none are left out. Each shard asks only for the target fields
+     * that relate to its input fields, the shards are mapped concurrently (and
+     * cached) like records of their own, and their fields are merged back into
+     * one record with a combined confidence
+     */
+    private RecordResult processChunkedRecord(Map<String, Object> record, int recordIndex, int totalRecords) {
+        RecordResult result = new RecordResult(recordIndex);
+        List<Map.Entry<String, Object>> fields = new ArrayList<>(record.entrySet());
+        int[] fieldTokens = new int[fields.size()];
+        Map<String, Object> single = new HashMap<>(2);
+        for (int i = 0; i < fieldTokens.length; i++) {
+            single.clear();
+            single.put(fields.get(i).getKey(), fields.get(i).getValue());
+            fieldTokens[i] = estimateTokens(convertMapToJsonString(single));
+        }
+        TokenBudgetChunker.Plan plan = TokenBudgetChunker.pack(fieldTokens,
+                IntelliMapConfig.MAX_INPUT_TOKENS_PER_CHUNK);
+        System.out.println("Record " + recordIndex + ofTotal(totalRecords) + " has " + fields.size()
+                + " fields over the input token budget, split into " + plan);
+
+        List<Map<String, Object>> shardRecords = new ArrayList<>(plan.getChunkCount());
+        List<List<String>> shardFieldNames = new ArrayList<>(plan.getChunkCount());
+        for (TokenBudgetChunker.Chunk chunk : plan.getChunks()) {
+            Map<String, Object> shardRecord = new LinkedHashMap<>();
+            List<String> names = new ArrayList<>();
+            for (int field : chunk.getItems()) {
+                shardRecord.put(fields.get(field).getKey(), fields.get(field).getValue());
+                names.add(String.valueOf(fields.get(field).getKey()));
+            }
+            shardRecords.add(shardRecord);
+            shardFieldNames.add(names);
+        }
+
+        List<RecordResult> shardResults = new ArrayList<>(plan.getChunkCount());
+        List<Integer> submittedShards = new ArrayList<>(plan.getChunkCount());
+        List<String> shardErrors = new ArrayList<>();
+        int shardConcurrency = Math.min(plan.getChunkCount(), IntelliMapConfig.MAX_CONCURRENT_SHARDS);
+        try (RecordPipeline<RecordResult> pipeline = new RecordPipeline<>(shardConcurrency, shardConcurrency,
+                shardResults::add)) {
+            List<Map<String, String>> shardTargets = RecordSharder.assignTargetFields(shardFieldNames,
+                    getRequestTemplate().getTargetFields());
+            for (int shard = 0; shard < shardRecords.size(); shard++) {
+                Map<String, String> targets = shardTargets.get(shard);
+                if (targets.isEmpty()) {
+                    System.out.println("Skipping shard " + (shard + 1) + " of record " + recordIndex
+                            + ": none of the target fields relate to its fields");
+                    continue;
+                }
+                Map<String, Object> shardRecord = shardRecords.get(shard);
+                RequestTemplate shardTemplate = getShardTemplate(targets);
+                System.out.println("Processing shard " + (shard + 1) + " of " + plan.getChunkCount() + " ("
+                        + shardRecord.size() + " fields, " + targets.size() + " target fields) of record "
+                        + recordIndex);
+                submittedShards.add(shard + 1);
+                pipeline.submit(() -> processRecord(shardRecord, recordIndex, totalRecords, shardTemplate));
+            }
+            pipeline.finish();
+        } catch (Exception e) {
+            String errorMsg = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName() + " occurred";
+            System.err.println("Error processing shards of record " + recordIndex + ": " + errorMsg);
+            shardErrors.add(errorMsg);
+        }
+
+        List<List<String>> mappedShards = new ArrayList<>(shardResults.size());
+        List<Double> shardConfidences = new ArrayList<>(shardResults.size());
+        for (int shard = 0; shard < shardResults.size(); shard++) {
+            RecordResult shardResult = shardResults.get(shard);
+            mappedShards.add(shardResult.records);
+            shardConfidences.add(shardResult.confidence);
+            if (shardResult.error != null) {
+                shardErrors.add("shard " + submittedShards.get(shard) + ": " + shardResult.error);
+            }
+        }
+        try {
+            RecordSharder.Merged merged = RecordSharder.merge(mappedShards, shardConfidences, objectMapper);
+            if (merged.getJson() != null) {
+                result.records.add(merged.getJson());
+            }
+            result.confidence = merged.getConfidence();
+        } catch (IOException e) {
+            shardErrors.add("Could not merge shard results: " + e.getMessage());
+        }
+        if (!shardErrors.isEmpty()) {
+            result.error = String.join("; ", shardErrors);
+        }
+        return result;
+    }
+
+    /**
+     * Maps several records with a single chat completion and splits the returned
+     * array back out per record using the record IDs
+     * Records the model leaves out are retried on their own
+     */
+    private List<RecordResult> processRecordBatch(RecordBatch batch, int totalRecords) {
+        List<RecordResult> results = new ArrayList<>(batch.size());
+        Map<String, RecordResult> resultsById = new HashMap<>();
+        Map<String, String> cacheKeysById = new HashMap<>();
+        StringBuilder batchJson = new StringBuilder("[");
+        for (int i = 0; i < batch.size(); i++) {
+            RecordResult result = new RecordResult(batch.recordIndexes.get(i));
+            results.add(result);
+            String recordJson = batch.recordJsons.get(i);
+            if (recordJson == null || recordJson.trim().isEmpty()) {
+                System.err.println("Skipping record " + result.index + " with empty JSON");
+                continue;
+            }
+            String cacheKey = buildCacheKey(batch.records.get(i));
+            if (applyCachedResult(cacheKey, result)) {
+                System.out.println("Record " + result.index + ofTotal(totalRecords) + " served from mapping cache");
+                continue;
+            }
+            String recordId = batch.recordIds.get(i);
+            resultsById.put(recordId, result);
+            cacheKeysById.put(recordId, cacheKey);
+            try {
+                if (batchJson.length() > 1) {
+                    batchJson.append(',');
+                }
+                batchJson.append("{\"").append(IntelliMapConfig.BATCH_RECORD_ID_KEY).append("\":")
+                        .append(objectMapper.writeValueAsString(recordId))
+                        .append(",\"record\":").append(recordJson).append('}');
+            } catch (JsonProcessingException e) {
+                result.error = "Could not serialize record ID: " + e.getMessage();
+                resultsById.remove(recordId);
+            }
+        }
+        batchJson.append(']');
+
+        if (resultsById.isEmpty()) {
+            return results;
+        }
+
+        int firstIndex = batch.recordIndexes.get(0);
+        int lastIndex = batch.recordIndexes.get(batch.size() - 1);
+        System.out.println("Processing records " + firstIndex + "-" + lastIndex + ofTotal(totalRecords)
+                + " as one batch request");
+
+        try {
+            String openAIResponse = callAzureOpenAIWithRetry(batchJson.toString(), true);
+            if (openAIResponse == null || openAIResponse.trim().isEmpty()) {
+                throw new SmartServiceException(IntelliMap.class, null, "Received null or empty response from OpenAI");
+            }
+            ChatCompletionReader.Completion completion = ChatCompletionReader.readCompletion(openAIResponse,
+                    objectMapper.getFactory());
+            List<ChatCompletionReader.MappedRecord> resultRecords = readMappedRecords(completion);
+            String incomplete = null;
+            if (StreamingChatCompletion.DEADLINE_FINISH_REASON.equals(completion.getFinishReason())) {
+                System.err.println("Streaming deadline reached for records " + firstIndex + "-" + lastIndex
+                        + ", mappings may be incomplete");
+                incomplete = "Streaming deadline reached, mapping may be incomplete";
+            } else if ("length".equals(completion.getFinishReason())) {
+                System.err.println("Response for records " + firstIndex + "-" + lastIndex
+                        + " was cut off at max_tokens");
+                incomplete = "Response cut off at max_tokens, mapping may be incomplete";
+            }
+
+            Map<String, List<ChatCompletionReader.MappedRecord>> recordsById = new HashMap<>();
+            int unmatched = 0;
+            for (ChatCompletionReader.MappedRecord resultRecord : resultRecords) {
+                String recordId = resultRecord.getRecordId();
+                if (recordId == null && resultsById.size() == 1) {
+                    recordId = resultsById.keySet().iterator().next();
+                }
+                if (recordId == null || !resultsById.containsKey(recordId)) {
+                    unmatched++;
+                    continue;
+                }
+                recordsById.computeIfAbsent(recordId, k -> new ArrayList<>()).add(resultRecord);
+            }
+            if (unmatched > 0) {
+                System.err.println("Discarded " + unmatched + " batch results without a known record_id");
+            }
 
-                    String content = null;
-                    try {
-                        content = responseNode.path("choices")
-                                .path(0)
-                                .path("message")
-                                .path("content")
-                                .asText();
-                    } catch (Exception e) {
-                        System.err.println("Error extracting content from response: " + e.getMessage());
-                        continue;
+            for (Map.Entry<String, RecordResult> entry : resultsById.entrySet()) {
+                RecordResult result = entry.getValue();
+                List<ChatCompletionReader.MappedRecord> mappedRecords = recordsById.get(entry.getKey());
+                if (mappedRecords == null || mappedRecords.isEmpty()) {
+                    continue;
+                }
+                for (ChatCompletionReader.MappedRecord mappedRecord : mappedRecords) {
+                    if (mappedRecord.getFieldCount() > 0) {
+                        result.records.add(mappedRecord.getJson());
                     }
+                }
+                result.confidence = ChatCompletionReader.averageConfidence(mappedRecords);
+                // Records from a cut-off reply are kept but not cached
+                result.error = incomplete;
+                cacheResult(cacheKeysById.get(entry.getKey()), result);
+            }
+        } catch (Exception e) {
+            String errorMsg = e.getMessage();
+            if (errorMsg == null) {
+                errorMsg = e.getClass().getSimpleName() + " occurred";
+            }
+            System.err.println("Batch request for records " + firstIndex + "-" + lastIndex + " failed: " + errorMsg);
+            // Retrying each record on its own would turn one failing call into one
+            // per record and bypass the retry budget and circuit breaker
+            for (RecordResult result : resultsById.values()) {
+                if (result.records.isEmpty()) {
+                    result.error = "Batch request failed: " + errorMsg;
+                }
+            }
+        }
 
-                    if (content != null && !content.trim().isEmpty()) {
-                        // Log the AI response content for debugging
-                        System.out.println("AI Response Content Preview: " +
-                                (content.length() > 200 ? content.substring(0, 200) + "..." : content));
+        // Fall back to one request per record only for records a successful reply
+        // left out
+        for (int i = 0; i < batch.size(); i++) {
+            RecordResult result = results.get(i);
+            if (result.error == null && result.records.isEmpty()
+                    && resultsById.containsKey(batch.recordIds.get(i))) {
+                System.out.println("Record " + result.index + " missing from batch response, retrying on its own");
+                results.set(i, processRecord(batch.records.get(i), result.index, totalRecords));
+            }
+        }
+        return results;
+    }
 
-                        // Extract result array from content
-                        JsonNode contentNode = null;
-                        try {
-                            contentNode = objectMapper.readTree(content);
-                        } catch (Exception e) {
-                            String errorMsg = e.getMessage();
-                            if (errorMsg != null && errorMsg.contains("Unrecognized token 'Prod'")) {
-                                System.err.println(
-                                        "AI returned content with unrecognized 'Prod' token. The AI response is not valid JSON.");
-                                System.err.println("Content preview: "
-                                        + (content.length() > 300 ? content.substring(0, 300) + "..." : content));
-                                System.err.println(
-                                        "This usually means the AI needs better instructions to return valid JSON format.");
-                            } else {
-                                System.err.println("Error parsing AI response content as JSON: " + errorMsg);
-                            }
-                            System.err.println("Skipping this record due to malformed AI response content");
-                            continue;
-                        }
+    /**
+     * Extracts the mapped records from a chat completion, taking each batch
+     * record_id out of its record
+     */
+    private List<ChatCompletionReader.MappedRecord> readMappedRecords(ChatCompletionReader.Completion completion)
+            throws SmartServiceException, IOException {
+        String content = completion.getContent();
+        if (content == null || content.trim().isEmpty()) {
+            throw new SmartServiceException(IntelliMap.class, null, "No response content from OpenAI");
+        }
 
-                        // Try to find the result array - check both direct array format and wrapped in
-                        // "result" field
-                        JsonNode resultNode = null;
-                        if (contentNode.isArray()) {
-                            // Direct array format as specified in requirements
-                            resultNode = contentNode;
-                            System.out.println("Found direct array format with " + resultNode.size() + " elements");
-                        } else {
-                            // Check for wrapped format
-                            resultNode = contentNode.path("result");
-                            if (!resultNode.isMissingNode() && resultNode.isArray()) {
-                                System.out.println("Found result array with " + resultNode.size() + " elements");
-                            }
-                        }
+        List<ChatCompletionReader.MappedRecord> records = readContentRecords(content,
+                IntelliMapConfig.BATCH_RECORD_ID_KEY, completion.getFinishReason());
+        if (records == null) {
+            throw new SmartServiceException(IntelliMap.class, null, "No valid result array found in response content");
+        }
+        return records;
+    }
 
-                        if (resultNode != null && resultNode.isArray()) {
-                            for (JsonNode resultRecord : resultNode) {
-                                if (resultRecord != null) {
-                                    try {
-                                        Map<String, Object> recordMap = objectMapper.convertValue(resultRecord,
-                                                Map.class);
-                                        if (recordMap != null && !recordMap.isEmpty()) {
-                                            allResults.add(recordMap);
-                                            System.out.println("Added record with " + recordMap.size() + " fields");
-                                        }
-                                    } catch (Exception e) {
-                                        System.err.println("Error converting record to map: " + e.getMessage());
-                                        // Continue with next record
-                                    }
-                                }
-                            }
+    /**
+     * Reads the mapped records from response content, repairing malformed or
+     * truncated JSON when it does not parse as it is
+     * Complete structured output replies always match the schema, so they are
+     * read directly without the repair fallback
+     */
+    private List<ChatCompletionReader.MappedRecord> readContentRecords(String content, String idField,
+            String finishReason) throws IOException {
+        if (requestTemplate != null && requestTemplate.isStructuredOutput() && !"length".equals(finishReason)
+                && !StreamingChatCompletion.DEADLINE_FINISH_REASON.equals(finishReason)) {
+            return ChatCompletionReader.readRecords(content, idField, objectMapper.getFactory());
+        }
+        try {
+            return ChatCompletionReader.readRecords(content, idField, objectMapper.getFactory());
+        } catch (IOException e) {
+            String repaired = JsonRepair.repair(content);
+            if (repaired == null) {
+                throw e;
+            }
+            try {
+                List<ChatCompletionReader.MappedRecord> records = ChatCompletionReader.readRecords(repaired, idField,
+                        objectMapper.getFactory());
+                System.out.println("Repaired malformed AI response content");
+                return records;
+            } catch (IOException repairError) {
+                e.addSuppressed(repairError);
+                throw e;
+            }
+        }
+    }
 
-                            // Calculate confidence for this record
-                            try {
-                                double recordConfidence = calculateOverallConfidence(content);
-                                totalConfidence += recordConfidence;
-                                processedRecords++;
-                            } catch (Exception e) {
-                                System.err.println("Error calculating confidence: " + e.getMessage());
-                                // Continue without confidence calculation
-                            }
-                        } else {
-                            System.err.println("No valid result array found in response content");
-                        }
-                    }
+    /**
+     * Fingerprint of everything besides the record that determines the mapping:
+     * every deployment that may answer (the pool and any hedge deployment), and
+     * the system prompt built from the user prompt and target fields
+     */
+    private String computePromptFingerprint() {
+        try {
+            String deployments = deploymentPool.getFingerprint();
+            if (hedgeDeploymentName != null && !hedgeDeploymentName.trim().isEmpty()) {
+                deployments += "\nhedge:" + selectHedgeTarget(deploymentPool.getPrimary(), 0).getKey();
+            }
+            return MappingCache.sha256Hex(deployments + "\n" + getRequestTemplate().getSystemPrompt());
+        } catch (Exception e) {
+            System.err.println("Mapping cache disabled, could not fingerprint prompt: " + e.getMessage());
+            return null;
+        }
+    }
 
-                    // Rate limiting between records
-                    if (records.size() > 1) {
-                        try {
-                            rateLimiter.checkRateLimit(clientId);
-                        } catch (Exception e) {
-                            System.err.println("Rate limiting error: " + e.getMessage());
-                            // Continue without rate limiting
-                        }
-                    }
+    /**
+     * Builds the mapping cache key for a record from the prompt fingerprint and
+     * the canonical record JSON (sorted keys, normalized whitespace)
+     */
+    private String buildCacheKey(Map<String, Object> record) {
+        if (promptFingerprint == null || record == null) {
+            return null;
+        }
+        try {
+            String canonicalRecord = canonicalMapper.writeValueAsString(canonicalizeValue(record));
+            return MappingCache.sha256Hex(promptFingerprint + "\n" + canonicalRecord);
+        } catch (Exception e) {
+            System.err.println("Could not build mapping cache key: " + e.getMessage());
+            return null;
+        }
+    }
 
-                } catch (Exception e) {
-                    // Log error but continue processing other records
-                    String errorMsg = e.getMessage();
-                    if (errorMsg == null) {
-                        errorMsg = e.getClass().getSimpleName() + " occurred";
-                    }
-                    System.err.println("Error processing record: " + errorMsg);
-                    // Log the full stack trace for debugging
-                    e.printStackTrace();
-                }
+    private Object canonicalizeValue(Object value) {
+        if (value == null || value instanceof Number || value instanceof Boolean) {
+            return value;
+        }
+        if (value instanceof Map) {
+            Map<String, Object> sorted = new TreeMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()).trim(), canonicalizeValue(entry.getValue()));
+            }
+            return sorted;
+        }
+        if (value instanceof Collection) {
+            List<Object> items = new ArrayList<>();
+            for (Object item : (Collection<?>) value) {
+                items.add(canonicalizeValue(item));
             }
+            return items;
+        }
+        return value.toString().trim().replaceAll("\\s+", " ");
+    }
 
-            // Create final result - return records directly as array
-            try {
-                System.out.println("Final results count: " + allResults.size());
-                this.mappedResult = objectMapper.writeValueAsString(allResults);
-                if (this.mappedResult == null) {
-                    this.mappedResult = "[]";
+    /**
+     * Fills in a record result from the mapping cache
+     * Returns false when there is no usable cache entry
+     */
+    private boolean applyCachedResult(String cacheKey, RecordResult result) {
+        if (cacheKey == null) {
+            return false;
+        }
+        String cached = responseCache.get(cacheKey);
+        if (cached == null) {
+            // Fall back to the on-disk cache and promote hits into memory
+            PersistentMappingCache diskCache = PersistentMappingCache.shared();
+            cached = diskCache != null ? diskCache.get(cacheKey) : null;
+            if (cached == null) {
+                return false;
+            }
+            responseCache.put(cacheKey, cached);
+        }
+        try (JsonParser parser = objectMapper.getFactory().createParser(cached)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Mapping cache entry is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("records".equals(field) && value == JsonToken.START_ARRAY) {
+                    for (ChatCompletionReader.MappedRecord mappedRecord : ChatCompletionReader
+                            .readRecordArray(parser, null, objectMapper.getFactory())) {
+                        result.records.add(mappedRecord.getJson());
+                    }
+                } else if ("confidence".equals(field) && value.isNumeric()) {
+                    result.confidence = parser.getDoubleValue();
+                } else {
+                    parser.skipChildren();
                 }
-                System.out.println("Final mapped result length: " + this.mappedResult.length());
-            } catch (Exception e) {
-                System.err.println("Error creating final JSON result: " + e.getMessage());
-                this.mappedResult = "[]";
             }
+            return true;
+        } catch (Exception e) {
+            System.err.println("Ignoring unreadable mapping cache entry: " + e.getMessage());
+            result.records.clear();
+            result.confidence = null;
+            return false;
+        }
+    }
 
-            this.overallConfidence = processedRecords > 0 ? totalConfidence / processedRecords : 0.0;
+    /**
+     * Stores a successfully mapped record in the mapping cache
+     */
+    private void cacheResult(String cacheKey, RecordResult result) {
+        if (cacheKey == null || result.error != null || result.records.isEmpty()) {
+            return;
+        }
+        try {
+            StringBuilder entry = new StringBuilder("{\"confidence\":")
+                    .append(result.confidence != null ? objectMapper.writeValueAsString(result.confidence) : "null")
+                    .append(",\"records\":");
+            String value = entry.append(joinRecords(result.records)).append('}').toString();
+            responseCache.put(cacheKey, value);
+            PersistentMappingCache diskCache = PersistentMappingCache.shared();
+            if (diskCache != null) {
+                diskCache.put(cacheKey, value);
+            }
+        } catch (JsonProcessingException e) {
+            System.err.println("Could not cache mapped record: " + e.getMessage());
+        }
+    }
 
-        } catch (Exception e) {
-            String errorMessage = e.getMessage();
-            if (errorMessage == null) {
-                errorMessage = e.getClass().getSimpleName() + " occurred";
+    /**
+     * Join mapped records, already serialized, into a JSON array
+     */
+    private String joinRecords(List<String> records) {
+        int length = records.size() + 2;
+        for (String record : records) {
+            length += record.length();
+        }
+        StringBuilder array = new StringBuilder(length).append('[');
+        for (int i = 0; i < records.size(); i++) {
+            if (i > 0) {
+                array.append(',');
             }
+            array.append(records.get(i));
+        }
+        return array.append(']').toString();
+    }
 
-            // Log the full exception for debugging
-            System.err.println("Full exception in processMultipleRecords:");
-            e.printStackTrace();
+    /**
+     * " of N" for progress logs, or nothing while the record count is not known
+     * yet because records are still being read
+     */
+    private static String ofTotal(int totalRecords) {
+        return totalRecords > 0 ? " of " + totalRecords : "";
+    }
 
-            // Provide more context about what might have failed
-            String contextMessage = "Error processing multiple records";
-            if (records != null) {
-                contextMessage += " (processing " + records.size() + " records)";
-            }
-            if (processedRecords > 0) {
-                contextMessage += " (successfully processed " + processedRecords + " records)";
+    private int resolveRecordsPerBatch() {
+        if (recordsPerBatch == null || recordsPerBatch < 1) {
+            return 1;
+        }
+        return Math.min(recordsPerBatch, IntelliMapConfig.MAX_RECORDS_PER_BATCH);
+    }
+
+    private int estimateTokens(String text) {
+        return TokenCounter.count(text);
+    }
+
+    /**
+     * Tokens to reserve for one call against the tokens-per-minute quota: the
+     * estimated prompt tokens (the template's fixed part is counted once) plus
+     * the full completion allowance, which Azure counts against the quota up
+     * front. The byte-level upper bound stays in use for chunk and batch sizing
+     */
+    private int estimateRequestTokens(String inputData, boolean batched, RequestTemplate template) {
+        return TokenCounter.estimate(template.estimatePromptTokens(inputData, batched)) + IntelliMapConfig.MAX_TOKENS;
+    }
+
+    /**
+     * Read usage.total_tokens from a chat completion response without building
+     * a tree, returning -1 if it is missing
+     */
+    private int readTotalTokens(String response) {
+        try (JsonParser parser = objectMapper.getFactory().createParser(response)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return -1;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("usage".equals(field) && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String usageField = parser.currentName();
+                        JsonToken usageValue = parser.nextToken();
+                        if ("total_tokens".equals(usageField) && usageValue == JsonToken.VALUE_NUMBER_INT) {
+                            return parser.getIntValue();
+                        }
+                        parser.skipChildren();
+                    }
+                    return -1;
+                }
+                parser.skipChildren();
             }
+        } catch (IOException e) {
+            System.err.println("Could not read token usage from response: " + e.getMessage());
+        }
+        return -1;
+    }
 
-            throw new SmartServiceException(
-                    IntelliMap.class,
-                    e,
-                    contextMessage + ": " + errorMessage);
+    private int resolveMaxConcurrentRecords() {
+        if (maxConcurrentRecords == null || maxConcurrentRecords < 1) {
+            return IntelliMapConfig.DEFAULT_MAX_CONCURRENT_RECORDS;
         }
+        return Math.min(maxConcurrentRecords, IntelliMapConfig.MAX_CONCURRENT_RECORDS_LIMIT);
     }
 
     private void validateInputs() throws SmartServiceException {
@@ -929,95 +1267,63 @@ public class IntelliMap extends AppianSmartService {
         }
 
         try {
-            StringBuilder json = new StringBuilder("{");
-            boolean first = true;
-            for (Map.Entry<String, Object> entry : map.entrySet()) {
-                if (entry == null) {
-                    continue;
-                }
-
-                if (!first) {
-                    json.append(",");
-                }
-                String key = entry.getKey();
-                Object value = entry.getValue();
-
-                // Handle null or empty keys
-                if (key == null || key.trim().isEmpty()) {
-                    key = "unknown_key_" + System.currentTimeMillis();
-                }
-
-                json.append("\"").append(key.replace("\"", "\\\"")).append("\":");
-
-                if (value == null) {
-                    json.append("null");
-                } else if (value instanceof String) {
-                    String strValue = value.toString();
-                    json.append("\"").append(strValue.replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r"))
-                            .append("\"");
-                } else {
-                    json.append(value.toString());
-                }
-                first = false;
-            }
-            json.append("}");
-            return json.toString();
-        } catch (Exception e) {
+            return RecordJsonWriter.write(map, objectMapper.getFactory());
+        } catch (IOException e) {
             System.err.println("Error converting map to JSON string: " + e.getMessage());
             return "{}";
         }
     }
 
-    private String callAzureOpenAI(String inputData) throws SmartServiceException {
+    private Answer callAzureOpenAI(DeploymentTarget target, byte[] requestBody, int estimatedTokens)
+            throws SmartServiceException {
         try {
             // Enhanced validation and logging
             System.out.println("=== Azure OpenAI Request Details ===");
-            System.out.println("Endpoint: " + (azureOpenAIEndpoint != null ? azureOpenAIEndpoint : "NULL"));
-            System.out
-                    .println("Deployment: " + (azureOpenAIDeploymentName != null ? azureOpenAIDeploymentName : "NULL"));
-            System.out.println("API Version: " + (azureOpenAIApiVersion != null ? azureOpenAIApiVersion : "NULL"));
-            System.out.println("Has API Key: " + (azureOpenAIKey != null && !azureOpenAIKey.trim().isEmpty()));
+            System.out.println("Endpoint: " + target.getEndpoint());
+            System.out.println("Deployment: " + target.getDeploymentName());
+            System.out.println("API Version: " + (target.getApiVersion() != null ? target.getApiVersion() : "NULL"));
+            System.out.println("Has API Key: " + (target.getApiKey() != null && !target.getApiKey().trim().isEmpty()));
 
             // Validate configuration before making request
-            if (azureOpenAIEndpoint == null || azureOpenAIEndpoint.trim().isEmpty()) {
-                throw new SmartServiceException(IntelliMap.class, null, "Azure OpenAI endpoint is null or empty");
-            }
-
-            if (azureOpenAIKey == null || azureOpenAIKey.trim().isEmpty()) {
+            if (target.getApiKey() == null || target.getApiKey().trim().isEmpty()) {
                 throw new SmartServiceException(IntelliMap.class, null, "Azure OpenAI API key is null or empty");
             }
 
-            if (azureOpenAIDeploymentName == null || azureOpenAIDeploymentName.trim().isEmpty()) {
-                throw new SmartServiceException(IntelliMap.class, null,
-                        "Azure OpenAI deployment name is null or empty");
-            }
-
-            HttpClient client = HttpClient.newBuilder()
-                    .connectTimeout(IntelliMapConfig.DEFAULT_TIMEOUT)
-                    .build();
-
-            // Prepare the request body with enhanced error handling
-            String requestBody = buildOpenAIRequestBody(inputData);
-            System.out.println("Request body length: " + requestBody.length() + " characters");
+            System.out.println("Request body length: " + requestBody.length + " bytes");
 
-            // Build the request URL with validation
-            String url = azureOpenAIEndpoint.replaceAll("/+$", "") + "/openai/deployments/" + azureOpenAIDeploymentName
-                    + "/chat/completions?api-version=" + azureOpenAIApiVersion;
+            HttpRequest request = buildChatCompletionRequest(target, requestBody);
 
-            System.out.println("Request URL: " + url);
+            System.out.println("Sending request to Azure OpenAI...");
 
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(url))
-                    .header("Content-Type", IntelliMapConfig.CONTENT_TYPE_JSON)
-                    .header(IntelliMapConfig.API_KEY_HEADER, azureOpenAIKey)
-                    .timeout(Duration.ofSeconds(60)) // Extended timeout for complex requests
-                    .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                    .build();
+            // Fail fast while the deployment's circuit is open
+            CircuitBreaker circuitBreaker = target.getCircuitBreaker();
+            AdaptiveConcurrencyLimiter concurrencyLimiter = target.getConcurrencyLimiter();
+            long permission = circuitBreaker.tryAcquirePermission();
+            if (permission == CircuitBreaker.NO_PERMISSION) {
+                throw circuitOpenException(target);
+            }
 
-            System.out.println("Sending request to Azure OpenAI...");
+            // Wait for an in-flight slot; the limit adapts to 429s, Retry-After,
+            // the rate limit headers and latency of earlier calls
+            boolean slotAcquired = false;
+            try {
+                slotAcquired = concurrencyLimiter.acquire(IntelliMapConfig.ADAPTIVE_CONCURRENCY_MAX_WAIT);
+            } finally {
+                if (!slotAcquired) {
+                    circuitBreaker.releasePermission(permission);
+                }
+            }
+            if (!slotAcquired) {
+                throw new SmartServiceException(IntelliMap.class, null,
+                        "No Azure OpenAI call slot available within "
+                                + IntelliMapConfig.ADAPTIVE_CONCURRENCY_MAX_WAIT.toMillis() + "ms ("
+                                + concurrencyLimiter.getStats() + ")");
+            }
 
-            // Send the request
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            // Send the request over the shared, pooled client for this endpoint;
+            // the permission and slot are released as each exchange ends
+            Answer answer = sendRequest(target, permission, request, requestBody, estimatedTokens);
+            HttpResponse<String> response = answer.response;
 
             System.out.println("Response status code: " + response.statusCode());
 
@@ -1053,21 +1359,24 @@ public class IntelliMap extends AppianSmartService {
                 System.err.println(errorMessage);
                 System.err.println("Full response body: " + responseBody);
 
-                throw new SmartServiceException(IntelliMap.class, null, errorMessage);
+                throw new SmartServiceException(IntelliMap.class,
+                        new OpenAIStatusException(response.statusCode(),
+                                AdaptiveConcurrencyLimiter.parseRetryAfterNanos(response.headers()), errorMessage),
+                        errorMessage);
             }
 
             String responseBody = response.body();
             if (responseBody == null) {
                 throw new SmartServiceException(
                         IntelliMap.class,
-                        null,
+                        new IOException("Empty response body"),
                         "Received null response body from OpenAI");
             }
 
             System.out.println("Successfully received response from Azure OpenAI");
             System.out.println("Response length: " + responseBody.length() + " characters");
 
-            return responseBody;
+            return answer;
 
         } catch (IOException e) {
             String errorMsg = "Network error connecting to OpenAI: " + e.getMessage();
@@ -1089,71 +1398,344 @@ public class IntelliMap extends AppianSmartService {
         }
     }
 
-    private String buildOpenAIRequestBody(String inputData) throws SmartServiceException {
+    private HttpRequest buildChatCompletionRequest(DeploymentTarget target, byte[] requestBody) {
+        String url = target.getChatCompletionsUrl();
+
+        System.out.println("Request URL: " + url);
+
+        return HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .header("Content-Type", IntelliMapConfig.CONTENT_TYPE_JSON)
+                .header(IntelliMapConfig.API_KEY_HEADER, target.getApiKey())
+                .timeout(IntelliMapConfig.REQUEST_TIMEOUT)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(requestBody))
+                .build();
+    }
+
+    /**
+     * Send a chat completion request over the shared client for the target's
+     * endpoint; the caller has taken the target's circuit breaker permission
+     * and in-flight slot, and every exchange reports its outcome as it ends
+     * With hedging enabled, a duplicate is sent (to the hedge deployment if one
+     * is set, otherwise to another deployment in the pool) once the call has
+     * taken longer than the recent high-percentile latency; the first
+     * successful response wins and the other exchange is aborted
+     */
+    private Answer sendRequest(DeploymentTarget target, long permission, HttpRequest request, byte[] requestBody,
+            int estimatedTokens) throws IOException, InterruptedException {
+        long sendStart = System.nanoTime();
+        if (Boolean.TRUE.equals(enableStreaming) || !Boolean.TRUE.equals(enableHedging)) {
+            HttpResponse<String> response;
+            try {
+                response = Boolean.TRUE.equals(enableStreaming)
+                        ? sendStreamingRequest(target, request)
+                        : HttpClientRegistry.send(target.getEndpoint(), request, HttpResponse.BodyHandlers.ofString());
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                finishCall(target, permission, sendStart, null, e);
+                throw e;
+            }
+            finishCall(target, permission, sendStart, response, null);
+            return new Answer(target, response);
+        }
+
+        LatencyTracker latencyTracker = target.getLatencyTracker();
+        CompletableFuture<HttpResponse<String>> primary = HttpClientRegistry.sendAsync(target.getEndpoint(), request,
+                HttpResponse.BodyHandlers.ofString());
+        primary.whenComplete((response, error) -> finishCall(target, permission, sendStart, response, error));
+        CompletableFuture<HttpResponse<String>> hedge = null;
         try {
-            if (inputData == null) {
-                inputData = "{}";
+            long hedgeDelay = latencyTracker.hedgeDelayNanos();
+            if (hedgeDelay < 0) {
+                return new Answer(target, awaitResponse(primary));
+            }
+            try {
+                return new Answer(target, primary.get(hedgeDelay, TimeUnit.NANOSECONDS));
+            } catch (TimeoutException e) {
+                // Slower than usual; fall through and hedge
+            } catch (ExecutionException e) {
+                return new Answer(target, awaitResponse(primary));
             }
 
-            // Create the request structure
-            Map<String, Object> requestMap = new HashMap<>();
+            DeploymentTarget hedgeTarget = selectHedgeTarget(target, estimatedTokens);
+            long hedgePermission = tryStartHedge(hedgeTarget, estimatedTokens);
+            if (hedgePermission == CircuitBreaker.NO_PERMISSION) {
+                return new Answer(target, awaitResponse(primary));
+            }
 
-            // Create messages array
-            List<Map<String, String>> messages = new ArrayList<>();
+            System.out.println("No response after " + TimeUnit.NANOSECONDS.toMillis(hedgeDelay)
+                    + "ms, sending hedged request to " + hedgeTarget);
+            long hedgeStart = System.nanoTime();
+            try {
+                hedge = HttpClientRegistry.sendAsync(hedgeTarget.getEndpoint(),
+                        buildChatCompletionRequest(hedgeTarget, requestBody), HttpResponse.BodyHandlers.ofString());
+            } catch (RuntimeException e) {
+                finishCall(hedgeTarget, hedgePermission, hedgeStart, null, e);
+                rateLimiter.adjustTokens(hedgeTarget.getKey(), -estimatedTokens);
+                throw e;
+            }
+            hedge.whenComplete((response, error) -> {
+                finishCall(hedgeTarget, hedgePermission, hedgeStart, response, error);
+                // A failed hedge is not billed; an aborted one may have been
+                if (response != null ? response.statusCode() != 200 : !(error instanceof CancellationException)) {
+                    rateLimiter.adjustTokens(hedgeTarget.getKey(), -estimatedTokens);
+                }
+            });
 
-            // Add system message with detailed instructions
-            String systemPrompt = buildSystemPrompt(userPrompt);
-            if (systemPrompt == null || systemPrompt.trim().isEmpty()) {
-                throw new SmartServiceException(
-                        IntelliMap.class,
-                        null,
-                        "System prompt is null or empty");
+            // First 200 wins; if neither succeeds, report the primary's outcome
+            CompletableFuture<HttpResponse<String>> winner = new CompletableFuture<>();
+            primary.thenAccept(response -> {
+                if (response.statusCode() == 200) {
+                    winner.complete(response);
+                }
+            });
+            hedge.thenAccept(response -> {
+                if (response.statusCode() == 200) {
+                    winner.complete(response);
+                }
+            });
+            CompletableFuture.allOf(primary, hedge).whenComplete((ignored, error) -> {
+                if (!winner.isDone()) {
+                    primary.whenComplete((response, primaryError) -> {
+                        if (primaryError != null) {
+                            winner.completeExceptionally(primaryError);
+                        } else {
+                            winner.complete(response);
+                        }
+                    });
+                }
+            });
+
+            HttpResponse<String> response = awaitResponse(winner);
+            boolean hedgeWon = hedge.isDone() && !hedge.isCompletedExceptionally() && hedge.getNow(null) == response;
+            latencyTracker.recordHedge(hedgeWon);
+            return new Answer(hedgeWon ? hedgeTarget : target, response);
+        } finally {
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
             }
+        }
+    }
 
-            Map<String, String> systemMessage = new HashMap<>();
-            systemMessage.put("role", "system");
-            systemMessage.put("content", systemPrompt);
-            messages.add(systemMessage);
+    /**
+     * Take a circuit breaker permission, an in-flight slot and a rate limit
+     * permit for a hedge without waiting for any of them
+     *
+     * @return the circuit breaker permission, or NO_PERMISSION if any of them is
+     *         not available right now
+     */
+    private long tryStartHedge(DeploymentTarget hedgeTarget, int estimatedTokens) throws InterruptedException {
+        CircuitBreaker circuitBreaker = hedgeTarget.getCircuitBreaker();
+        AdaptiveConcurrencyLimiter concurrencyLimiter = hedgeTarget.getConcurrencyLimiter();
+        long permission = circuitBreaker.tryAcquirePermission();
+        if (permission == CircuitBreaker.NO_PERMISSION) {
+            return CircuitBreaker.NO_PERMISSION;
+        }
+        if (!concurrencyLimiter.acquire(Duration.ZERO)) {
+            circuitBreaker.releasePermission(permission);
+            return CircuitBreaker.NO_PERMISSION;
+        }
+        if (rateLimiter.tryAcquire(hedgeTarget.getKey(), estimatedTokens) != 0) {
+            concurrencyLimiter.releaseUnsent();
+            circuitBreaker.releasePermission(permission);
+            return CircuitBreaker.NO_PERMISSION;
+        }
+        return permission;
+    }
 
-            // Add user message
-            Map<String, String> userMessage = new HashMap<>();
-            userMessage.put("role", "user");
-            userMessage.put("content", "InputDictionary:\n" + inputData);
-            messages.add(userMessage);
+    /**
+     * Report how an exchange with the target ended to its circuit breaker,
+     * concurrency limiter and latency tracker, releasing its permission and slot
+     * An aborted or interrupted exchange only gives them back
+     */
+    private static void finishCall(DeploymentTarget target, long permission, long sendStart,
+            HttpResponse<?> response, Throwable error) {
+        CircuitBreaker circuitBreaker = target.getCircuitBreaker();
+        AdaptiveConcurrencyLimiter concurrencyLimiter = target.getConcurrencyLimiter();
+        if (response == null) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause()
+                    : error;
+            concurrencyLimiter.releaseFailed(cause instanceof HttpTimeoutException, sendStart);
+            if (cause instanceof IOException) {
+                circuitBreaker.onFailure(permission, System.nanoTime() - sendStart);
+            } else {
+                circuitBreaker.releasePermission(permission);
+            }
+            return;
+        }
 
-            requestMap.put("messages", messages);
-            requestMap.put("max_tokens", IntelliMapConfig.MAX_TOKENS); // Use configurable max tokens
-            requestMap.put("temperature", IntelliMapConfig.TEMPERATURE);
+        // A streamed call lasts as long as its output; the limiter, latency
+        // tracker and slow-call rate judge it by time to first byte
+        long elapsed = response instanceof StreamingChatCompletion.StreamedResponse
+                ? ((StreamingChatCompletion.StreamedResponse) response).getFirstByteNanos()
+                : System.nanoTime() - sendStart;
+        concurrencyLimiter.release(response.statusCode(), response.headers(), sendStart, elapsed);
+        if (response.statusCode() == 200) {
+            target.getLatencyTracker().record(elapsed);
+        }
+        if (response.statusCode() >= 500 || response.statusCode() == 408) {
+            circuitBreaker.onFailure(permission, elapsed);
+        } else if (response.statusCode() == 429) {
+            // Throttling means the deployment is up; it is handled by the limiters
+            circuitBreaker.releasePermission(permission);
+        } else {
+            circuitBreaker.onSuccess(permission, elapsed);
+        }
+    }
 
-            String requestBody = objectMapper.writeValueAsString(requestMap);
-            if (requestBody == null || requestBody.trim().isEmpty()) {
-                throw new SmartServiceException(
-                        IntelliMap.class,
-                        null,
-                        "Generated request body is null or empty");
+    /**
+     * Send a stream=true request and assemble the server-sent events into a
+     * regular chat completion response, so the rest of the pipeline is
+     * unchanged. Records are only counted as they complete and are mapped once
+     * the stream ends; at the deadline the response is cut back to the
+     * complete records and its finish_reason is set to "deadline"
+     */
+    private HttpResponse<String> sendStreamingRequest(DeploymentTarget target, HttpRequest request)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        HttpResponse<InputStream> response = HttpClientRegistry.send(target.getEndpoint(), request,
+                HttpResponse.BodyHandlers.ofInputStream());
+        long firstByteNanos = System.nanoTime() - start;
+        if (response.statusCode() != 200) {
+            try (InputStream body = response.body()) {
+                String errorBody = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+                return StreamingChatCompletion.withBody(response, errorBody, firstByteNanos);
+            }
+        }
+
+        long[] firstRecordNanos = { -1 };
+        long deadline = start + resolveStreamDeadline();
+        StreamingChatCompletion streamed = StreamingChatCompletion.read(response.body(), deadline,
+                record -> {
+                    if (firstRecordNanos[0] < 0) {
+                        firstRecordNanos[0] = System.nanoTime() - start;
+                    }
+                }, objectMapper.getFactory());
+
+        System.out.println("Streamed " + streamed.getRecordCount() + " records in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms"
+                + (firstRecordNanos[0] >= 0
+                        ? ", first after " + TimeUnit.NANOSECONDS.toMillis(firstRecordNanos[0]) + "ms"
+                        : "")
+                + (streamed.isDeadlineReached() ? ", stopped at the deadline" : ""));
+
+        ObjectNode choice = objectMapper.createObjectNode();
+        choice.putObject("message").put("role", "assistant").put("content", streamed.getContent());
+        choice.put("finish_reason", streamed.getFinishReason());
+        ObjectNode completion = objectMapper.createObjectNode();
+        completion.putArray("choices").add(choice);
+        return StreamingChatCompletion.withBody(response, objectMapper.writeValueAsString(completion),
+                firstByteNanos);
+    }
+
+    private long resolveStreamDeadline() {
+        if (streamDeadlineSeconds == null || streamDeadlineSeconds < 1) {
+            return IntelliMapConfig.STREAM_DEFAULT_DEADLINE.toNanos();
+        }
+        return TimeUnit.SECONDS.toNanos(streamDeadlineSeconds);
+    }
+
+
+    private DeploymentTarget selectHedgeTarget(DeploymentTarget target, int estimatedTokens) {
+        if (hedgeDeploymentName != null && !hedgeDeploymentName.trim().isEmpty()) {
+            return new DeploymentTarget(azureOpenAIEndpoint, hedgeDeploymentName, azureOpenAIKey,
+                    azureOpenAIApiVersion, 1.0);
+        }
+        DeploymentTarget alternative = deploymentPool.size() > 1
+                ? deploymentPool.select(Set.of(target), estimatedTokens, rateLimiter)
+                : null;
+        return alternative != null ? alternative : target;
+    }
+
+    private HttpResponse<String> awaitResponse(CompletableFuture<HttpResponse<String>> future)
+            throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
             }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private byte[] buildOpenAIRequestBody(String inputData, boolean batched, RequestTemplate template) {
+        // Only the record payload is escaped per request; the messages and system
+        // prompt come pre-serialized from the compiled template
+        return template.buildRequestBody(inputData, batched, Boolean.TRUE.equals(enableStreaming));
+    }
 
-            return requestBody;
+    /**
+     * Returns the compiled request template for this invocation's user prompt
+     * and target fields, compiling it on first use in the JVM
+     */
+    private RequestTemplate getRequestTemplate() throws SmartServiceException {
+        if (requestTemplate == null) {
+            boolean structuredOutput = Boolean.TRUE.equals(enableStructuredOutput);
+            String templateKey = RequestTemplate.cacheKey(userPrompt, targetFields.getValue(), structuredOutput);
+            RequestTemplate template = RequestTemplate.lookup(templateKey);
+            if (template == null) {
+                Map<String, String> targetFieldsMap = parseTargetFieldsFromTypedValue(targetFields);
+                String systemPrompt = buildSystemPrompt(userPrompt, targetFieldsMap, structuredOutput);
+                if (systemPrompt == null || systemPrompt.trim().isEmpty()) {
+                    throw new SmartServiceException(
+                            IntelliMap.class,
+                            null,
+                            "System prompt is null or empty");
+                }
+                template = RequestTemplate.register(templateKey,
+                        new RequestTemplate(targetFieldsMap, systemPrompt, buildBatchInstructions(structuredOutput),
+                                structuredOutput));
+                System.out.println("Compiled request template for " + targetFieldsMap.size() + " target fields"
+                        + (structuredOutput ? " with a structured output schema" : ""));
+            }
+            requestTemplate = template;
+        }
+        return requestTemplate;
+    }
 
-        } catch (JsonProcessingException e) {
-            throw new SmartServiceException(
-                    IntelliMap.class,
-                    e,
-                    "Error building request body: " + e.getMessage());
+    /**
+     * Returns the compiled request template for a shard of a wide record that
+     * maps only the given target fields
+     */
+    private RequestTemplate getShardTemplate(Map<String, String> shardTargetFields) throws SmartServiceException {
+        RequestTemplate fullTemplate = getRequestTemplate();
+        if (shardTargetFields.size() == fullTemplate.getTargetFields().size()) {
+            return fullTemplate;
+        }
+        boolean structuredOutput = fullTemplate.isStructuredOutput();
+        List<String> fieldStrings = new ArrayList<>(shardTargetFields.size());
+        for (Map.Entry<String, String> field : shardTargetFields.entrySet()) {
+            fieldStrings.add(field.getKey() + ":" + field.getValue());
+        }
+        String templateKey = "shard\u0000" + RequestTemplate.cacheKey(userPrompt, fieldStrings, structuredOutput);
+        RequestTemplate template = RequestTemplate.lookup(templateKey);
+        if (template == null) {
+            template = RequestTemplate.register(templateKey, new RequestTemplate(shardTargetFields,
+                    buildSystemPrompt(userPrompt, shardTargetFields, structuredOutput),
+                    buildBatchInstructions(structuredOutput), structuredOutput));
         }
+        return template;
     }
 
-    private String buildSystemPrompt(String userPrompt) throws SmartServiceException {
+    private String buildSystemPrompt(String userPrompt, Map<String, String> targetFieldsMap,
+            boolean structuredOutput) throws SmartServiceException {
         if (userPrompt == null) {
             userPrompt = "";
         }
         StringBuilder prompt = new StringBuilder(userPrompt);
 
-        // ---- dynamic section ① -- Target fields ------------------------------
+        // ---- dynamic section 1 -- Target fields ------------------------------
         prompt.append("TargetFields:\n");
         try {
-            // Parse target fields from TypedValue
-            Map<String, String> targetFieldsMap = parseTargetFieldsFromTypedValue(targetFields);
             if (targetFieldsMap == null || targetFieldsMap.isEmpty()) {
                 throw new SmartServiceException(
                         IntelliMap.class,
@@ -1181,6 +1763,19 @@ public class IntelliMap extends AppianSmartService {
                     "Error parsing target fields: " + errorMessage);
         }
 
+        if (structuredOutput) {
+            // The response_format schema enforces valid JSON, so only the mapping rules
+            // are needed
+            prompt.append("\nReturn the mapped records in \"result\". Set confidence_level (0-100) for each record")
+                    .append(" and use null for any field you are unsure about.");
+            String finalPrompt = prompt.toString();
+            System.out.println("=== SYSTEM PROMPT START ===");
+            System.out.println(finalPrompt);
+            System.out.println("=== SYSTEM PROMPT END ===");
+            System.out.println("System prompt length: " + finalPrompt.length() + " characters");
+            return finalPrompt;
+        }
+
         // Enhanced final instruction to ensure proper output format and prevent JSON
         // parsing errors
         prompt.append("\n\n=== CRITICAL OUTPUT REQUIREMENTS ===\n");
@@ -1207,39 +1802,136 @@ public class IntelliMap extends AppianSmartService {
         return finalPrompt;
     }
 
-    private String callAzureOpenAIWithRetry(String inputData) throws SmartServiceException {
+    /**
+     * Instructions appended to the system prompt when several records are sent
+     * in one request
+     */
+    private String buildBatchInstructions(boolean structuredOutput) {
+        String idKey = IntelliMapConfig.BATCH_RECORD_ID_KEY;
+        if (structuredOutput) {
+            return "\n\n=== MULTI-RECORD INPUT ===\n"
+                    + "InputRecords is a JSON array. Each element has a \"" + idKey + "\" and a \"record\" to map.\n"
+                    + "Map every record independently and copy its \"" + idKey + "\" into each mapped object.";
+        }
+        return "\n\n=== MULTI-RECORD INPUT ===\n"
+                + "InputRecords is a JSON array. Each element has a \"" + idKey + "\" and a \"record\" to map.\n"
+                + "Map every record independently and return ONE JSON array containing the mapped objects for all records.\n"
+                + "Every mapped object MUST include a \"" + idKey + "\" field copied exactly from its input element.";
+    }
+
+    private String callAzureOpenAIWithRetry(String inputData, boolean batched) throws SmartServiceException {
+        return callAzureOpenAIWithRetry(inputData, batched, getRequestTemplate());
+    }
+
+    private String callAzureOpenAIWithRetry(String inputData, boolean batched, RequestTemplate template)
+            throws SmartServiceException {
         Exception lastException = null;
 
+        // The body is the same for every attempt, and its size drives the token
+        // charge against the tokens-per-minute limit
+        byte[] requestBody = buildOpenAIRequestBody(inputData, batched, template);
+        int estimatedTokens = estimateRequestTokens(inputData, batched, template);
+
+        retryPolicy.recordRequest();
+        long previousDelayNanos = 0;
+        int attempts = 0;
+        Set<DeploymentTarget> failedTargets = new HashSet<>();
+
         for (int attempt = 1; attempt <= IntelliMapConfig.MAX_RETRIES; attempt++) {
+            attempts = attempt;
+
+            // Pick a deployment, avoiding ones that already failed this call
+            // while others remain; fail fast if every circuit is open
+            DeploymentTarget target = deploymentPool.select(failedTargets, estimatedTokens, rateLimiter);
+            if (target == null && !failedTargets.isEmpty()) {
+                target = deploymentPool.select(Set.of(), estimatedTokens, rateLimiter);
+            }
+            if (target == null) {
+                throw circuitOpenException(deploymentPool.getPrimary());
+            }
+
+            // Take a rate limit permit before every attempt; permits are granted
+            // immediately while under quota
             try {
-                String response = callAzureOpenAI(inputData);
+                rateLimiter.checkRateLimit(target.getKey(), estimatedTokens);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SmartServiceException(
+                        IntelliMap.class,
+                        e,
+                        "Processing interrupted during rate limiting");
+            } catch (RuntimeException e) {
+                throw new SmartServiceException(IntelliMap.class, e, e.getMessage());
+            }
+
+            try {
+                Answer answer = callAzureOpenAI(target, requestBody, estimatedTokens);
+                String response = answer.response.body();
                 if (response == null || response.trim().isEmpty()) {
                     throw new SmartServiceException(
                             IntelliMap.class,
-                            null,
+                            new IOException("Empty response body"),
                             "Received null or empty response from OpenAI");
                 }
+                // Replace the estimate with what the service actually counted, on
+                // the deployment that answered; an aborted exchange stays charged
+                int usedTokens = readTotalTokens(response);
+                if (usedTokens >= 0) {
+                    rateLimiter.adjustTokens(answer.target.getKey(), usedTokens - estimatedTokens);
+                }
                 return response;
             } catch (Exception e) {
                 lastException = e;
+                // A failed call is not billed against the deployment's quota
+                rateLimiter.adjustTokens(target.getKey(), -estimatedTokens);
+                failedTargets.add(target);
 
-                if (attempt < IntelliMapConfig.MAX_RETRIES) {
-                    try {
-                        // Exponential backoff: wait 2^attempt seconds
-                        long delayMs = (long) Math.pow(2, attempt) * 1000;
-                        Thread.sleep(delayMs);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        throw new SmartServiceException(
-                                IntelliMap.class,
-                                ie,
-                                "Processing interrupted");
-                    }
+                if (attempt >= IntelliMapConfig.MAX_RETRIES) {
+                    break;
+                }
+                if (!RetryPolicy.isRetriable(e)) {
+                    System.err.println("Not retrying non-retriable OpenAI failure: " + e.getMessage());
+                    break;
+                }
+
+                if (!retryPolicy.tryAcquireRetry()) {
+                    System.err.println("Not retrying, retry budget exhausted (" + retryPolicy.getStats() + ")");
+                    break;
+                }
+
+                // Fail over to another deployment straight away when there is one
+                if (deploymentPool.hasAlternative(failedTargets)) {
+                    System.out.println("Failing over from " + target + " (attempt " + (attempt + 1) + " of "
+                            + IntelliMapConfig.MAX_RETRIES + ")");
+                    continue;
+                }
+
+                // Honor the delay the service asked for, unless it is longer than
+                // we are prepared to wait
+                long serverDelayNanos = RetryPolicy.serverDelayNanos(e);
+                if (serverDelayNanos > retryPolicy.getMaxDelayNanos()) {
+                    System.err.println("Not retrying, service asked to wait "
+                            + TimeUnit.NANOSECONDS.toMillis(serverDelayNanos) + "ms");
+                    break;
+                }
+
+                long delayNanos = Math.max(retryPolicy.nextDelayNanos(previousDelayNanos), serverDelayNanos);
+                previousDelayNanos = delayNanos;
+                System.out.println("Retrying OpenAI request in " + TimeUnit.NANOSECONDS.toMillis(delayNanos)
+                        + "ms (attempt " + (attempt + 1) + " of " + IntelliMapConfig.MAX_RETRIES + ")");
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delayNanos);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new SmartServiceException(
+                            IntelliMap.class,
+                            ie,
+                            "Processing interrupted");
                 }
             }
         }
 
-        String errorMessage = "OpenAI request failed after " + IntelliMapConfig.MAX_RETRIES + " attempts";
+        String errorMessage = "OpenAI request failed after " + attempts + (attempts == 1 ? " attempt" : " attempts");
         if (lastException != null) {
             String lastErrorMsg = lastException.getMessage();
             if (lastErrorMsg != null) {
@@ -1255,287 +1947,30 @@ public class IntelliMap extends AppianSmartService {
                 errorMessage);
     }
 
-    private void parseOpenAIResponseWithJackson(String response) throws SmartServiceException {
-        try {
-            if (response == null || response.trim().isEmpty()) {
-                throw new SmartServiceException(
-                        IntelliMap.class,
-                        null,
-                        "Response is null or empty");
-            }
-
-            // First, extract the content from the OpenAI response
-            JsonNode responseNode;
-            try {
-                responseNode = objectMapper.readTree(response);
-            } catch (JsonProcessingException e) {
-                String errorMsg = e.getMessage();
-                if (errorMsg != null && errorMsg.contains("Unrecognized token 'Prod'")) {
-                    throw new SmartServiceException(
-                            IntelliMap.class,
-                            e,
-                            "Failed to parse OpenAI response due to unrecognized token 'Prod'. This suggests the API returned malformed JSON. Please check your Azure OpenAI configuration and try again.");
-                } else {
-                    throw new SmartServiceException(
-                            IntelliMap.class,
-                            e,
-                            "Failed to parse OpenAI response as JSON: " + errorMsg);
-                }
-            }
-
-            String content = responseNode.path("choices")
-                    .path(0)
-                    .path("message")
-                    .path("content")
-                    .asText();
-
-            if (content == null || content.trim().isEmpty()) {
-                throw new SmartServiceException(
-                        IntelliMap.class,
-                        null,
-                        "No response content from OpenAI");
-            }
-
-            // Log the AI response for debugging
-            System.out.println("AI Response Content Preview: " +
-                    (content.length() > 500 ? content.substring(0, 500) + "..." : content));
-            System.out.println("AI Response Content Length: " + content.length());
-
-            // Check if content looks like JSON
-            String trimmedContent = content.trim();
-            if (trimmedContent.startsWith("[") || trimmedContent.startsWith("{")) {
-                System.out.println("Content appears to be JSON format");
-            } else {
-                System.out.println("Content does NOT appear to be JSON format");
-            }
-
-            // Enhanced JSON parsing with comprehensive error handling
-            try {
-                // Pre-validate content before parsing
-                if (!isValidJsonFormat(content)) {
-                    System.err.println("AI returned content that doesn't appear to be valid JSON format");
-                    System.err.println("Content preview: "
-                            + (content.length() > 300 ? content.substring(0, 300) + "..." : content));
-
-                    // Try to extract JSON from mixed content
-                    String extractedJson = extractJsonFromMixedContent(content);
-                    if (extractedJson != null && !extractedJson.trim().isEmpty()) {
-                        System.out.println("Successfully extracted JSON from mixed content");
-                        content = extractedJson;
-                    } else {
-                        // Fallback: return as plain text with low confidence
-                        this.mappedResult = "[]"; // Return empty array instead of malformed content
-                        this.overallConfidence = 0.1;
-                        System.err.println("Could not extract valid JSON, returning empty result");
-                        return;
-                    }
-                }
-
-                JsonNode contentNode = objectMapper.readTree(content);
-
-                // Check if content is already an array (direct format)
-                if (contentNode.isArray()) {
-                    this.mappedResult = content;
-                    this.overallConfidence = calculateOverallConfidence(content);
-                } else {
-                    // Look for the result array (fallback format)
-                    JsonNode resultNode = contentNode.path("result");
-                    if (resultNode.isMissingNode()) {
-                        // Try alternative parsing if result is not found
-                        this.mappedResult = content;
-                        this.overallConfidence = calculateOverallConfidence(content);
-                    } else {
-                        this.mappedResult = resultNode.toString();
-                        this.overallConfidence = calculateOverallConfidence(resultNode.toString());
-                    }
-                }
-
-            } catch (JsonProcessingException e) {
-                String errorMsg = e.getMessage();
-                System.err.println("JSON parsing error: " + errorMsg);
-                System.err.println("Content that failed to parse: "
-                        + (content.length() > 500 ? content.substring(0, 500) + "..." : content));
-
-                if (errorMsg != null && errorMsg.contains("Unrecognized token 'Prod'")) {
-                    System.err.println("COMMON ISSUE: AI response contains unquoted 'Prod' tokens");
-                    System.err.println("This usually means the AI didn't follow JSON formatting instructions");
-
-                    // Try to fix common "Prod" token issues
-                    String fixedContent = fixCommonJsonIssues(content);
-                    if (fixedContent != null && !fixedContent.equals(content)) {
-                        try {
-                            System.out.println("Attempting to parse fixed content...");
-                            JsonNode fixedNode = objectMapper.readTree(fixedContent);
-                            this.mappedResult = fixedContent;
-                            this.overallConfidence = calculateOverallConfidence(fixedContent);
-                            System.out.println("Successfully parsed fixed content");
-                            return;
-                        } catch (Exception fixException) {
-                            System.err.println("Fixed content still failed to parse: " + fixException.getMessage());
-                        }
-                    }
-                }
-
-                // Ultimate fallback: return empty array with error info in logs
-                this.mappedResult = "[]";
-                this.overallConfidence = 0.1;
-                System.err.println("Falling back to empty result due to unparseable AI response");
-            }
-
-        } catch (SmartServiceException e) {
-            throw e; // Re-throw SmartServiceExceptions as-is
-        } catch (Exception e) {
-            // Fallback: treat the entire response as mapped data
-            this.mappedResult = response;
-            this.overallConfidence = 0.3;
-        }
-    }
-
-    private double calculateOverallConfidence(String jsonContent) {
-        try {
-            if (jsonContent == null || jsonContent.trim().isEmpty()) {
-                return IntelliMapConfig.DEFAULT_CONFIDENCE_SCORE;
-            }
-
-            JsonNode contentNode = objectMapper.readTree(jsonContent);
-            if (contentNode.isArray()) {
-                double totalConfidence = 0;
-                int validRecords = 0;
-
-                for (JsonNode record : contentNode) {
-                    JsonNode confidenceNode = record.path("confidence_level");
-                    if (!confidenceNode.isMissingNode()) {
-                        try {
-                            totalConfidence += Double.parseDouble(confidenceNode.asText());
-                            validRecords++;
-                        } catch (NumberFormatException e) {
-                            // Skip invalid confidence values
-                        }
-                    } else {
-                        // If no confidence_level found, try to calculate from individual field
-                        // confidences
-                        double recordConfidence = 0;
-                        int fieldCount = 0;
-                        for (JsonNode field : record) {
-                            if (!field.getNodeType().toString().equals("VALUE_STRING") ||
-                                    !field.asText().equals("confidence_level")) {
-                                fieldCount++;
-                            }
-                        }
-                        if (fieldCount > 0) {
-                            recordConfidence = 75.0; // Default confidence if not specified
-                            totalConfidence += recordConfidence;
-                            validRecords++;
-                        }
-                    }
-                }
-
-                return validRecords > 0 ? totalConfidence / validRecords : IntelliMapConfig.DEFAULT_CONFIDENCE_SCORE;
-            }
-        } catch (Exception e) {
-            // If parsing fails, return default confidence
-        }
-        return IntelliMapConfig.DEFAULT_CONFIDENCE_SCORE;
-    }
-
-    /**
-     * Attempts to extract valid JSON from mixed content that may contain
-     * explanatory text
-     */
-    private String extractJsonFromMixedContent(String content) {
-        if (content == null || content.trim().isEmpty()) {
-            return null;
-        }
-
-        try {
-            // Look for JSON array patterns
-            int arrayStart = content.indexOf('[');
-            int arrayEnd = content.lastIndexOf(']');
-
-            if (arrayStart != -1 && arrayEnd != -1 && arrayEnd > arrayStart) {
-                String potentialJson = content.substring(arrayStart, arrayEnd + 1);
-
-                // Basic validation before returning
-                if (isValidJsonFormat(potentialJson)) {
-                    System.out.println("Extracted JSON array from mixed content");
-                    return potentialJson;
-                }
-            }
-
-            // Look for JSON object patterns
-            int objectStart = content.indexOf('{');
-            int objectEnd = content.lastIndexOf('}');
-
-            if (objectStart != -1 && objectEnd != -1 && objectEnd > objectStart) {
-                String potentialJson = content.substring(objectStart, objectEnd + 1);
-
-                // Basic validation before returning
-                if (isValidJsonFormat(potentialJson)) {
-                    System.out.println("Extracted JSON object from mixed content");
-                    return "[" + potentialJson + "]"; // Wrap single object in array
-                }
-            }
-
-        } catch (Exception e) {
-            System.err.println("Error extracting JSON from mixed content: " + e.getMessage());
-        }
-
-        return null;
+    private SmartServiceException circuitOpenException(DeploymentTarget target) {
+        CircuitBreaker circuitBreaker = target.getCircuitBreaker();
+        return new SmartServiceException(IntelliMap.class, null,
+                "Circuit breaker is open for Azure OpenAI deployment " + target.getDeploymentName()
+                        + (deploymentPool.size() > 1 ? " and every other deployment in the pool" : "")
+                        + ", failing fast for another "
+                        + TimeUnit.NANOSECONDS.toMillis(circuitBreaker.getRemainingOpenNanos()) + "ms ("
+                        + circuitBreaker.getStats() + ")");
     }
 
-    /**
-     * Attempts to fix common JSON formatting issues, particularly with "Prod"
-     * tokens
-     */
-    private String fixCommonJsonIssues(String content) {
-        if (content == null || content.trim().isEmpty()) {
-            return content;
-        }
-
+    private DeploymentPool buildDeploymentPool() throws SmartServiceException {
+        DeploymentTarget primary = new DeploymentTarget(azureOpenAIEndpoint, azureOpenAIDeploymentName,
+                azureOpenAIKey, azureOpenAIApiVersion, 1.0);
+        DeploymentPool pool;
         try {
-            String fixed = content;
-
-            // Common fix patterns for unquoted tokens
-            String[] problemPatterns = {
-                    "Product", "Production", "Process", "Program", "Project",
-                    "Property", "Provider", "Professional", "Prototype"
-            };
-
-            for (String pattern : problemPatterns) {
-                // Fix unquoted tokens like: field: Product -> field: "Product"
-                fixed = fixed.replaceAll(":\\s*" + pattern + "\\b", ": \"" + pattern + "\"");
-                // Fix unquoted tokens like: "field": Product -> "field": "Product"
-                fixed = fixed.replaceAll("\":\\s*" + pattern + "\\b", "\": \"" + pattern + "\"");
-            }
-
-            // Fix missing quotes around field values that look like identifiers
-            fixed = fixed.replaceAll(":\\s*([A-Za-z][A-Za-z0-9\\s]+)(?=[,}])", ": \"$1\"");
-
-            // Remove any trailing commas that might cause issues
-            fixed = fixed.replaceAll(",\\s*([}\\]])", "$1");
-
-            if (!fixed.equals(content)) {
-                System.out.println("Applied common JSON fixes");
-                System.out
-                        .println("Original: " + (content.length() > 100 ? content.substring(0, 100) + "..." : content));
-                System.out.println("Fixed: " + (fixed.length() > 100 ? fixed.substring(0, 100) + "..." : fixed));
-            }
-
-            return fixed;
-
+            pool = DeploymentPool.parse(primary, deploymentPoolJson, objectMapper);
         } catch (Exception e) {
-            System.err.println("Error applying JSON fixes: " + e.getMessage());
-            return content; // Return original if fixing fails
+            throw new SmartServiceException(IntelliMap.class, e, "Invalid deployment pool: " + e.getMessage());
         }
-    }
-
-    private String generateClientId() {
-        try {
-            return "intellimap_" + System.currentTimeMillis() + "_" + Thread.currentThread().getId();
-        } catch (Exception e) {
-            // Fallback to a simple client ID if there's any issue
-            return "intellimap_" + System.nanoTime();
+        // Each deployment is charged against its own tokens-per-minute quota
+        for (DeploymentTarget target : pool.getTargets()) {
+            rateLimiter.setTokensPerMinute(target.getKey(), target.getTokensPerMinute());
         }
+        return pool;
     }
 
     private String generateRecordId(Map<String, Object> record) {
@@ -1563,207 +1998,11 @@ public class IntelliMap extends AppianSmartService {
         }
     }
 
-    private List<Map<String, Object>> parseMultipleRecordsFromAppianFormat(String inputString)
-            throws SmartServiceException {
-        List<Map<String, Object>> records = new ArrayList<>();
-
-        try {
-            System.out.println("Attempting to parse multiple records from Appian Dictionary format");
-            System.out.println("Total input length: " + inputString.length());
-
-            // Generic approach: split by the standard Appian Dictionary record separator ];
-            // [
-            if (inputString.contains("]; [")) {
-                // Records separated by ]; [ pattern - this is the most common case
-                String[] recordStarts = inputString.split("\\];\\s*\\[");
-                System.out.println("Found " + recordStarts.length + " records separated by ']; [' pattern");
-
-                // Process each record
-                for (int i = 0; i < recordStarts.length; i++) {
-                    String recordData = recordStarts[i].trim();
-
-                    // Add back the brackets that were removed by split
-                    if (i == 0 && !recordData.startsWith("[")) {
-                        recordData = "[" + recordData;
-                    }
-                    if (i == recordStarts.length - 1 && !recordData.endsWith("]")) {
-                        recordData = recordData + "]";
-                    }
-                    if (i > 0 && i < recordStarts.length - 1) {
-                        recordData = "[" + recordData + "]";
-                    }
-
-                    try {
-                        System.out.println("Parsing record " + (i + 1) + " data: " +
-                                (recordData.length() > 100 ? recordData.substring(0, 100) + "..." : recordData));
-                        Map<String, Object> recordMap = parseCustomDelimitedFormat(recordData);
-                        if (recordMap != null && !recordMap.isEmpty()) {
-                            records.add(recordMap);
-                            System.out.println("Parsed record " + (i + 1) + " with " + recordMap.size() + " fields");
-                        } else {
-                            System.err.println("Record " + (i + 1) + " parsed but resulted in empty map");
-                        }
-                    } catch (Exception e) {
-                        System.err.println("Error parsing record " + (i + 1) + ": " + e.getMessage());
-                        // Continue with next record
-                    }
-                }
-            } else {
-                // Single record or other separation pattern
-                // Try to detect if there are multiple records by looking for pattern like "] ["
-                // or "],["
-                String[] possibleRecords = null;
-
-                if (inputString.contains("] [")) {
-                    // Alternative separator pattern
-                    possibleRecords = inputString.split("\\]\\s*\\[");
-                    System.out.println(
-                            "Found " + possibleRecords.length + " potential records separated by '] [' pattern");
-                } else if (inputString.contains("],[")) {
-                    // Another alternative separator pattern
-                    possibleRecords = inputString.split("\\],\\s*\\[");
-                    System.out.println("Found " + possibleRecords.length + " potential records separated by '],['");
-                }
-
-                if (possibleRecords != null && possibleRecords.length > 1) {
-                    // Process multiple records
-                    for (int i = 0; i < possibleRecords.length; i++) {
-                        String recordData = possibleRecords[i].trim();
-
-                        // Add back brackets
-                        if (!recordData.startsWith("[")) {
-                            recordData = "[" + recordData;
-                        }
-                        if (!recordData.endsWith("]")) {
-                            recordData = recordData + "]";
-                        }
-
-                        try {
-                            System.out.println("Parsing alternative record " + (i + 1) + " data: " +
-                                    (recordData.length() > 100 ? recordData.substring(0, 100) + "..." : recordData));
-                            Map<String, Object> recordMap = parseCustomDelimitedFormat(recordData);
-                            if (recordMap != null && !recordMap.isEmpty()) {
-                                records.add(recordMap);
-                                System.out.println("Parsed alternative record " + (i + 1) + " with " + recordMap.size()
-                                        + " fields");
-                            }
-                        } catch (Exception e) {
-                            System.err.println("Error parsing alternative record " + (i + 1) + ": " + e.getMessage());
-                        }
-                    }
-                } else {
-                    // Single record - parse as-is
-                    System.out.println("No clear record separators found, treating as single record");
-                    try {
-                        Map<String, Object> recordMap = parseCustomDelimitedFormat(inputString);
-                        if (recordMap != null && !recordMap.isEmpty()) {
-                            records.add(recordMap);
-                            System.out.println("Parsed single record with " + recordMap.size() + " fields");
-                        }
-                    } catch (Exception e) {
-                        System.err.println("Error parsing single record: " + e.getMessage());
-                    }
-                }
-            }
-
-            System.out.println("Successfully parsed " + records.size() + " records from Appian Dictionary format");
-            return records;
-
-        } catch (Exception e) {
-            String errorMsg = e.getMessage();
-            if (errorMsg == null) {
-                errorMsg = e.getClass().getSimpleName() + " occurred";
-            }
-            throw new SmartServiceException(
-                    IntelliMap.class,
-                    e,
-                    "Error parsing multiple records from Appian Dictionary format: " + errorMsg);
-        }
-    }
-
     private Map<String, Object> parseCustomDelimitedFormat(String inputString) throws SmartServiceException {
-        Map<String, Object> recordMap = new HashMap<>();
-
         try {
-            // Remove any leading/trailing brackets and split by comma
-            String cleanString = inputString.trim();
-            if (cleanString.startsWith("[") && cleanString.endsWith("]")) {
-                cleanString = cleanString.substring(1, cleanString.length() - 1);
-            }
-
-            // Use a more sophisticated approach to parse field entries
-            // Look for patterns like "FieldName:Value" or "*FieldName:Value"
-            List<String> fieldEntries = new ArrayList<>();
-            int start = 0;
-            int depth = 0;
-
-            for (int i = 0; i < cleanString.length(); i++) {
-                char c = cleanString.charAt(i);
-                if (c == '[')
-                    depth++;
-                else if (c == ']')
-                    depth--;
-                else if (c == ',' && depth == 0) {
-                    // This is a field separator
-                    String fieldEntry = cleanString.substring(start, i).trim();
-                    if (!fieldEntry.isEmpty()) {
-                        fieldEntries.add(fieldEntry);
-                    }
-                    start = i + 1;
-                }
-            }
-
-            // Add the last field entry
-            String lastFieldEntry = cleanString.substring(start).trim();
-            if (!lastFieldEntry.isEmpty()) {
-                fieldEntries.add(lastFieldEntry);
-            }
-
-            System.out.println("Found " + fieldEntries.size() + " field entries to parse");
-
-            for (int i = 0; i < fieldEntries.size(); i++) {
-                String fieldEntry = fieldEntries.get(i).trim();
-                if (fieldEntry.isEmpty()) {
-                    continue;
-                }
-
-                try {
-                    // Split by colon to separate field name and value
-                    String[] parts = fieldEntry.split(":", 2);
-                    if (parts.length == 2) {
-                        String fieldName = parts[0].trim();
-                        String fieldValue = parts[1].trim();
-
-                        // Remove any leading asterisk from field name
-                        if (fieldName.startsWith("*")) {
-                            fieldName = fieldName.substring(1);
-                        }
-
-                        // Skip empty field names
-                        if (!fieldName.isEmpty()) {
-                            // Handle special cases for Appian Dictionary values
-                            if (fieldValue.equals("null") || fieldValue.isEmpty()) {
-                                recordMap.put(fieldName, null);
-                            } else {
-                                recordMap.put(fieldName, fieldValue);
-                            }
-                        }
-                    } else if (parts.length == 1) {
-                        // Field with no value (just a name)
-                        String fieldName = parts[0].trim();
-                        if (fieldName.startsWith("*")) {
-                            fieldName = fieldName.substring(1);
-                        }
-                        if (!fieldName.isEmpty()) {
-                            recordMap.put(fieldName, null);
-                        }
-                    }
-                } catch (Exception e) {
-                    System.err.println("Error parsing field entry " + i + ": '" + fieldEntry + "' - " + e.getMessage());
-                    // Continue with next field
-                }
-            }
-
+            // Fields like "FieldName:Value" or "*FieldName:Value", separated by commas
+            // outside nested brackets and quoted strings
+            Map<String, Object> recordMap = AppianDictionaryReader.readRecord(inputString);
             if (recordMap.isEmpty()) {
                 throw new SmartServiceException(
                         IntelliMap.class,
@@ -1881,4 +2120,92 @@ public class IntelliMap extends AppianSmartService {
 
         return targetFieldsMap;
     }
+
+    /**
+     * Records packed into a single chat completion request
+     */
+    private static final class RecordBatch {
+        private final List<Integer> recordIndexes = new ArrayList<>();
+        private final List<Map<String, Object>> records = new ArrayList<>();
+        private final List<String> recordJsons = new ArrayList<>();
+        private final List<String> recordIds = new ArrayList<>();
+        private int estimatedTokens;
+
+        void add(int recordIndex, Map<String, Object> record, String recordJson, String recordId, int tokens) {
+            recordIndexes.add(recordIndex);
+            records.add(record);
+            recordJsons.add(recordJson);
+            recordIds.add(recordId);
+            estimatedTokens += tokens;
+        }
+
+        int size() {
+            return recordIndexes.size();
+        }
+    }
+
+    /**
+     * Writes mapped records into the final JSON array in input order as results
+     * come out of the pipeline, keeping only the totals for the outputs
+     */
+    private static final class ResultWriter {
+        private final StringBuilder output = new StringBuilder("[");
+        private final List<String> recordErrors = new ArrayList<>();
+        private int recordCount;
+        private int resultCount;
+        private int processedRecords;
+        private double totalConfidence;
+
+        void write(List<RecordResult> results) {
+            for (RecordResult recordResult : results) {
+                recordCount++;
+                for (String record : recordResult.records) {
+                    if (resultCount++ > 0) {
+                        output.append(',');
+                    }
+                    output.append(record);
+                }
+                if (recordResult.confidence != null) {
+                    totalConfidence += recordResult.confidence;
+                    processedRecords++;
+                }
+                if (recordResult.error != null) {
+                    recordErrors.add("record " + recordResult.index + ": " + recordResult.error);
+                }
+            }
+        }
+
+        String finish() {
+            return output.append(']').toString();
+        }
+    }
+
+    /**
+     * A chat completion response and the deployment that sent it, which is the
+     * hedge deployment when the hedge won
+     */
+    private static final class Answer {
+        private final DeploymentTarget target;
+        private final HttpResponse<String> response;
+
+        Answer(DeploymentTarget target, HttpResponse<String> response) {
+            this.target = target;
+            this.response = response;
+        }
+    }
+
+    /**
+     * Outcome of mapping one input record
+     */
+    private static final class RecordResult {
+        private final int index;
+        // Mapped records as JSON text, copied straight from the response
+        private final List<String> records = new ArrayList<>();
+        private Double confidence;
+        private String error;
+
+        RecordResult(int index) {
+            this.index = index;
+        }
+    }
 }
@@ -11,21 +11,90 @@ public class IntelliMapConfig {
 
     // Azure OpenAI Configuration
     public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
-    public static final Duration RATE_LIMIT_DELAY = Duration.ofMillis(1000); // 1 second delay between calls
+    public static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60); // Extended timeout for complex requests
+
+    // HTTP Client Pool Configuration (one shared client per endpoint)
+    public static final int HTTP_CLIENT_EXECUTOR_THREADS = 8;
+    public static final Duration HTTP_CLIENT_THREAD_KEEP_ALIVE = Duration.ofSeconds(60); // Idle executor threads exit
+    public static final Duration HTTP_CLIENT_IDLE_TIMEOUT = Duration.ofMinutes(10);
+    public static final Duration HTTP_CLIENT_EVICTION_INTERVAL = Duration.ofMinutes(1);
 
     // Request Configuration - Increased for larger responses
     public static final int MAX_TOKENS = 8192; // Increased from 1000 to 8192 (GPT-4 max)
     public static final double TEMPERATURE = 0.1;
+    public static final int MAX_COMPILED_TEMPLATES = 64; // Distinct (userPrompt, targetFields) pairs kept compiled
     public static final int MAX_RETRIES = 3;
 
+    // Retry Configuration (decorrelated jitter with a JVM-wide retry budget)
+    public static final Duration RETRY_BASE_DELAY = Duration.ofMillis(500);
+    public static final Duration RETRY_MAX_DELAY = Duration.ofSeconds(30); // Longer server delays fail instead
+    public static final double RETRY_BUDGET_RATIO = 0.2; // Retries earned per first attempt
+    public static final double RETRY_BUDGET_MAX_BALANCE = 20;
+    public static final double RETRY_BUDGET_MIN_PER_SECOND = 0.5; // Retries earned per second regardless of traffic
+
     // Chunking Configuration for Large Inputs
-    public static final int MAX_INPUT_TOKENS_PER_CHUNK = 6000; // Leave room for system prompt
-    public static final int MAX_INPUT_KEYS_PER_CHUNK = 50; // Maximum dictionary keys per chunk
-    public static final int MAX_CHUNKS_PER_REQUEST = 5; // Maximum chunks to process in one request
+    public static final int MAX_INPUT_TOKENS_PER_CHUNK = 24000; // Upper bound in UTF-8 bytes (~6000 real tokens); wider records split by field
+    public static final int MAX_CONCURRENT_SHARDS = 8; // Chunks of one wide record mapped at once
+
+    // Concurrent Record Dispatch Configuration
+    public static final int DEFAULT_MAX_CONCURRENT_RECORDS = 1; // 1 = process records one after another
+    public static final int MAX_CONCURRENT_RECORDS_LIMIT = 64;
+    public static final int PIPELINE_PENDING_PER_WORKER = 4; // Requests submitted but not yet written, per call in flight
+
+    // Multi-Record Batching Configuration
+    public static final int MAX_RECORDS_PER_BATCH = 50;
+    public static final int MAX_BATCH_INPUT_TOKENS = 24000; // Token upper bound (UTF-8 bytes) for one batched request
+    public static final String BATCH_RECORD_ID_KEY = "record_id";
+
+    // Mapping Cache Configuration
+    public static final int RESPONSE_CACHE_MAX_ENTRIES = 10000;
+    public static final long RESPONSE_CACHE_MAX_CHARS = 50_000_000L; // ~100MB of cached JSON
+    public static final Duration RESPONSE_CACHE_TTL = Duration.ofHours(24);
+
+    // Persistent Mapping Cache Configuration (append-only log + memory-mapped index)
+    public static final String PERSISTENT_CACHE_DIR_PROPERTY = "intellimap.cache.dir"; // Off unless this is set
+    public static final long PERSISTENT_CACHE_MAX_BYTES = 256L * 1024 * 1024;
+    public static final long PERSISTENT_CACHE_MIN_COMPACT_BYTES = 16L * 1024 * 1024;
+    public static final double PERSISTENT_CACHE_COMPACT_TARGET_RATIO = 0.75;
+    public static final Duration PERSISTENT_CACHE_TTL = Duration.ofDays(30);
 
     // Rate Limiting Configuration
     public static final int MAX_REQUESTS_PER_MINUTE = 60;
     public static final int MAX_REQUESTS_PER_HOUR = 1000;
+    public static final int MAX_TOKENS_PER_MINUTE = 240000; // Deployment TPM quota (prompt + max_tokens per call)
+    public static final int TOKEN_ESTIMATE_BYTES_PER_TOKEN = 3; // Prompt bytes per token charged against the TPM quota
+    public static final Duration RATE_LIMIT_MAX_WAIT = Duration.ofSeconds(60); // Max wait for a permit; zero = fail fast
+    public static final Duration RATE_LIMIT_EVICTION_INTERVAL = Duration.ofMinutes(5);
+
+    // Adaptive Concurrency Configuration (in-flight calls per endpoint and deployment)
+    public static final int ADAPTIVE_CONCURRENCY_INITIAL_LIMIT = 4;
+    public static final int ADAPTIVE_CONCURRENCY_MIN_LIMIT = 1;
+    public static final int ADAPTIVE_CONCURRENCY_MAX_LIMIT = 64;
+    public static final double ADAPTIVE_CONCURRENCY_BACKOFF_RATIO = 0.5; // Applied on 429, 5xx and timeouts
+    public static final double ADAPTIVE_CONCURRENCY_LATENCY_TOLERANCE = 2.0; // Multiple of no-load latency
+    public static final double ADAPTIVE_CONCURRENCY_LATENCY_BACKOFF_RATIO = 0.9;
+    public static final Duration ADAPTIVE_CONCURRENCY_MAX_WAIT = Duration.ofSeconds(120);
+
+    // Circuit Breaker Configuration (per endpoint and deployment)
+    public static final int CIRCUIT_BREAKER_WINDOW_SIZE = 20; // Most recent calls considered
+    public static final int CIRCUIT_BREAKER_MIN_CALLS = 10;
+    public static final double CIRCUIT_BREAKER_FAILURE_RATE = 0.5;
+    public static final double CIRCUIT_BREAKER_SLOW_CALL_RATE = 0.8;
+    public static final Duration CIRCUIT_BREAKER_SLOW_CALL_DURATION = Duration.ofSeconds(30); // To first byte when streamed
+    public static final Duration CIRCUIT_BREAKER_OPEN_WAIT = Duration.ofSeconds(30);
+    public static final int CIRCUIT_BREAKER_HALF_OPEN_CALLS = 3;
+
+    // Hedged Request Configuration (opt-in per invocation)
+    public static final double HEDGE_PERCENTILE = 0.95; // Hedge calls slower than this latency percentile
+    public static final int HEDGE_LATENCY_SAMPLES = 200; // Recent successful calls per deployment
+    public static final int HEDGE_MIN_SAMPLES = 20; // No hedging until this many calls were observed
+    public static final Duration HEDGE_MIN_DELAY = Duration.ofSeconds(2);
+
+    // Streaming Configuration (stream=true chat completions)
+    public static final Duration STREAM_DEFAULT_DEADLINE = Duration.ofSeconds(120); // Records complete by then are kept
+
+    // Input Format Detection Configuration
+    public static final int FORMAT_SNIFF_PREFIX_CHARS = 64 * 1024; // Prefix searched for Appian Dictionary markers
 
     // JSON Configuration
     public static final String DEFAULT_ENCODING = "UTF-8";
@@ -0,0 +1,364 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+/**
+ * Lenient single-pass repair of malformed JSON replies from the model
+ * Skips prose and code fences around the JSON, quotes unquoted keys and
+ * values, converts single-quoted strings, drops trailing commas, inserts
+ * missing commas and escapes raw control characters inside strings. If the
+ * reply was cut off, the complete records are kept and the open brackets are
+ * closed: records are the objects directly inside the first array
+ */
+public final class JsonRepair {
+
+    private static final JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+
+    private final CharSequence text;
+    private final int length;
+    private final StringBuilder out;
+
+    // Open containers, '{' or '['; for objects whether a key is waiting for its value
+    private final StringBuilder containers = new StringBuilder();
+    private boolean[] hasMember = new boolean[16];
+    private boolean[] awaitingValue = new boolean[16];
+
+    private int recordArrayDepth = -1;
+    private int completeEnd = -1;
+    private String containersAtCompleteEnd = "";
+    private int recordCount;
+    private int syntheticKeys;
+
+    private JsonRepair(CharSequence text) {
+        this.text = text;
+        this.length = text.length();
+        this.out = new StringBuilder(length + 16);
+    }
+
+    /**
+     * Repair the first JSON object or array in the text
+     *
+     * @return valid JSON text, or null if there is no JSON or a cut-off reply
+     *         holds no complete record
+     */
+    public static String repair(CharSequence text) {
+        if (text == null) {
+            return null;
+        }
+        int start = -1;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '{' || c == '[') {
+                start = i;
+                break;
+            }
+        }
+        if (start < 0) {
+            return null;
+        }
+        return new JsonRepair(text).run(start);
+    }
+
+    private String run(int start) {
+        int i = start;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            switch (c) {
+                case '{':
+                case '[':
+                    beginValue();
+                    open(c);
+                    i++;
+                    break;
+                case '}':
+                case ']':
+                    close();
+                    i++;
+                    if (containers.length() == 0) {
+                        // Anything after the top-level value is prose
+                        return out.toString();
+                    }
+                    break;
+                case ',':
+                case ':':
+                    // Separators are written as values and keys are added, which drops
+                    // trailing commas and restores missing ones
+                    i++;
+                    break;
+                case '"':
+                case '\'':
+                    i = readString(i, c);
+                    if (i < 0) {
+                        return salvage();
+                    }
+                    break;
+                case '`':
+                    // Code fence inside the reply
+                    i++;
+                    break;
+                default:
+                    i = readBareWord(i);
+                    break;
+            }
+        }
+        return salvage();
+    }
+
+    private void open(char bracket) {
+        int depth = containers.length();
+        if (depth == hasMember.length) {
+            hasMember = Arrays.copyOf(hasMember, depth * 2);
+            awaitingValue = Arrays.copyOf(awaitingValue, depth * 2);
+        }
+        containers.append(bracket);
+        hasMember[depth] = false;
+        awaitingValue[depth] = false;
+        out.append(bracket);
+        if (bracket == '[' && recordArrayDepth < 0) {
+            recordArrayDepth = containers.length();
+        }
+    }
+
+    private void close() {
+        int depth = containers.length() - 1;
+        char bracket = containers.charAt(depth);
+        if (bracket == '{' && awaitingValue[depth]) {
+            // Key without a value
+            out.append("null");
+        }
+        containers.setLength(depth);
+        out.append(closerFor(bracket));
+        endValue(bracket == '{');
+    }
+
+    /**
+     * Write the separator before a value, or before a key when the value lands
+     * where an object expects a key
+     */
+    private void beginValue() {
+        int depth = containers.length() - 1;
+        if (depth < 0) {
+            return;
+        }
+        if (containers.charAt(depth) == '{' && !awaitingValue[depth]) {
+            // A value where a key belongs; give it a key so the object stays valid
+            if (hasMember[depth]) {
+                out.append(',');
+            }
+            out.append("\"value_").append(++syntheticKeys).append("\":");
+            awaitingValue[depth] = true;
+            return;
+        }
+        if (containers.charAt(depth) == '[' && hasMember[depth]) {
+            out.append(',');
+        }
+    }
+
+    private void endValue(boolean wasObject) {
+        int depth = containers.length() - 1;
+        if (depth < 0) {
+            return;
+        }
+        hasMember[depth] = true;
+        awaitingValue[depth] = false;
+        if (wasObject && containers.length() == recordArrayDepth) {
+            recordCount++;
+            completeEnd = out.length();
+            containersAtCompleteEnd = containers.toString();
+        }
+    }
+
+    private boolean expectsKey() {
+        int depth = containers.length() - 1;
+        return depth >= 0 && containers.charAt(depth) == '{' && !awaitingValue[depth];
+    }
+
+    private void writeKeyPrefix() {
+        int depth = containers.length() - 1;
+        if (hasMember[depth]) {
+            out.append(',');
+        }
+    }
+
+    private void endKey() {
+        out.append(':');
+        awaitingValue[containers.length() - 1] = true;
+    }
+
+    /**
+     * Copy a string literal as a double-quoted JSON string
+     *
+     * @return the index after the closing quote, or -1 if the text ended first
+     */
+    private int readString(int from, char quote) {
+        boolean key = expectsKey();
+        if (key) {
+            writeKeyPrefix();
+        } else {
+            beginValue();
+        }
+        out.append('"');
+        int i = from + 1;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c == quote) {
+                out.append('"');
+                if (key) {
+                    endKey();
+                } else {
+                    endValue(false);
+                }
+                return i + 1;
+            }
+            if (c == '\\' && i + 1 < length) {
+                char next = text.charAt(i + 1);
+                if (next == '\'' && quote == '\'') {
+                    out.append('\'');
+                } else if ("\"\\/bfnrtu".indexOf(next) >= 0) {
+                    out.append(c).append(next);
+                } else {
+                    out.append("\\\\").append(next);
+                }
+                i += 2;
+                continue;
+            }
+            if (c == '"') {
+                out.append("\\\"");
+            } else if (c < 0x20) {
+                encoder.quoteAsString(String.valueOf(c), out);
+            } else {
+                out.append(c);
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Read an unquoted key or value up to the next separator and write it as a
+     * literal, a number or a quoted string
+     */
+    private int readBareWord(int from) {
+        boolean key = expectsKey();
+        int end = from;
+        while (end < length) {
+            char c = text.charAt(end);
+            if (c == ',' || c == '}' || c == ']' || c == '{' || c == '[' || c == '"' || c == '\n'
+                    || (key && c == ':')) {
+                break;
+            }
+            end++;
+        }
+        int trimmedEnd = end;
+        while (trimmedEnd > from && Character.isWhitespace(text.charAt(trimmedEnd - 1))) {
+            trimmedEnd--;
+        }
+        String word = text.subSequence(from, trimmedEnd).toString();
+        if (end >= length && containers.length() > 0) {
+            // The reply was cut off inside this word
+            return end;
+        }
+
+        if (key) {
+            writeKeyPrefix();
+            out.append('"');
+            encoder.quoteAsString(word, out);
+            out.append('"');
+            endKey();
+            return end;
+        }
+
+        beginValue();
+        String literal = literalFor(word);
+        if (literal != null) {
+            out.append(literal);
+        } else {
+            out.append('"');
+            encoder.quoteAsString(word, out);
+            out.append('"');
+        }
+        endValue(false);
+        return end;
+    }
+
+    private static String literalFor(String word) {
+        switch (word) {
+            case "true":
+            case "false":
+            case "null":
+                return word;
+            case "True":
+                return "true";
+            case "False":
+                return "false";
+            case "None":
+                return "null";
+            default:
+                return isNumber(word) ? word : null;
+        }
+    }
+
+    private static boolean isNumber(String word) {
+        int i = 0;
+        int n = word.length();
+        if (i < n && word.charAt(i) == '-') {
+            i++;
+        }
+        int digits = i;
+        while (i < n && Character.isDigit(word.charAt(i))) {
+            i++;
+        }
+        if (i == digits || (word.charAt(digits) == '0' && i - digits > 1)) {
+            return false;
+        }
+        if (i < n && word.charAt(i) == '.') {
+            int fraction = ++i;
+            while (i < n && Character.isDigit(word.charAt(i))) {
+                i++;
+            }
+            if (i == fraction) {
+                return false;
+            }
+        }
+        if (i < n && (word.charAt(i) == 'e' || word.charAt(i) == 'E')) {
+            i++;
+            if (i < n && (word.charAt(i) == '+' || word.charAt(i) == '-')) {
+                i++;
+            }
+            int exponent = i;
+            while (i < n && Character.isDigit(word.charAt(i))) {
+                i++;
+            }
+            if (i == exponent) {
+                return false;
+            }
+        }
+        return i == n;
+    }
+
+    /**
+     * The text ended inside the JSON: keep the records that were complete
+     */
+    private String salvage() {
+        if (completeEnd < 0) {
+            System.err.println("Could not repair JSON reply: it ended before the first complete record");
+            return null;
+        }
+        out.setLength(completeEnd);
+        for (int i = containersAtCompleteEnd.length() - 1; i >= 0; i--) {
+            out.append(closerFor(containersAtCompleteEnd.charAt(i)));
+        }
+        System.err.println("Salvaged " + recordCount + " complete records from a truncated JSON reply");
+        return out.toString();
+    }
+
+    private static char closerFor(char bracket) {
+        return bracket == '{' ? '}' : ']';
+    }
+}
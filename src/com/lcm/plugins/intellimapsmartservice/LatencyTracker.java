@@ -0,0 +1,91 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recent successful call latencies for one endpoint and deployment
+ * Used to pick the hedging delay as a high percentile of observed latency, so
+ * only the slow tail of calls gets a duplicate request
+ */
+public class LatencyTracker {
+
+    private static final ConcurrentHashMap<String, LatencyTracker> trackers = new ConcurrentHashMap<>();
+
+    private final long[] samples;
+    private int sampleCount;
+    private int nextSample;
+    private long hedgesSent;
+    private long hedgesWon;
+
+    public LatencyTracker() {
+        this(IntelliMapConfig.HEDGE_LATENCY_SAMPLES);
+    }
+
+    public LatencyTracker(int maxSamples) {
+        this.samples = new long[maxSamples];
+    }
+
+    /**
+     * Get the JVM-wide tracker for a rate limit key (endpoint and deployment)
+     */
+    public static LatencyTracker forKey(String key) {
+        return trackers.computeIfAbsent(key, k -> new LatencyTracker());
+    }
+
+    public synchronized void record(long latencyNanos) {
+        samples[nextSample] = latencyNanos;
+        nextSample = (nextSample + 1) % samples.length;
+        if (sampleCount < samples.length) {
+            sampleCount++;
+        }
+    }
+
+    /**
+     * Latency at the given percentile (0-1) of the recent samples, or -1 if
+     * there are none
+     */
+    public synchronized long percentile(double percentile) {
+        if (sampleCount == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sampleCount) - 1;
+        return sorted[Math.max(0, Math.min(sampleCount - 1, index))];
+    }
+
+    /**
+     * How long to wait for a call before sending a hedge, or -1 if there are not
+     * yet enough samples to tell a slow call from a normal one
+     */
+    public long hedgeDelayNanos() {
+        synchronized (this) {
+            if (sampleCount < IntelliMapConfig.HEDGE_MIN_SAMPLES) {
+                return -1;
+            }
+        }
+        return Math.max(IntelliMapConfig.HEDGE_MIN_DELAY.toNanos(), percentile(IntelliMapConfig.HEDGE_PERCENTILE));
+    }
+
+    public synchronized void recordHedge(boolean won) {
+        hedgesSent++;
+        if (won) {
+            hedgesWon++;
+        }
+    }
+
+    /**
+     * Summary of latencies and hedges for logging
+     */
+    public String getStats() {
+        long p50 = percentile(0.5);
+        long p99 = percentile(0.99);
+        synchronized (this) {
+            return "samples=" + sampleCount + ", p50Ms=" + TimeUnit.NANOSECONDS.toMillis(Math.max(0, p50))
+                    + ", p99Ms=" + TimeUnit.NANOSECONDS.toMillis(Math.max(0, p99)) + ", hedges=" + hedgesSent
+                    + ", hedgesWon=" + hedgesWon;
+        }
+    }
+}
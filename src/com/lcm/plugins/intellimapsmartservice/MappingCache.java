@@ -0,0 +1,144 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of mapped record results
+ * Entries are evicted least-recently-used first once the entry or character
+ * bound is reached, and expire after a fixed time to live
+ */
+public class MappingCache {
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxEntries;
+    private final long maxChars;
+    private final long ttlNanos;
+    private long totalChars;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public MappingCache() {
+        this(IntelliMapConfig.RESPONSE_CACHE_MAX_ENTRIES, IntelliMapConfig.RESPONSE_CACHE_MAX_CHARS,
+                IntelliMapConfig.RESPONSE_CACHE_TTL);
+    }
+
+    public MappingCache(int maxEntries, long maxChars, Duration ttl) {
+        this.maxEntries = maxEntries;
+        this.maxChars = maxChars;
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    /**
+     * Get a cached value, or null if it is missing or expired
+     */
+    public String get(String key) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (System.nanoTime() - entry.createdNanos <= ttlNanos) {
+                    hits.incrementAndGet();
+                    return entry.value;
+                }
+                removeEntry(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Store a value, evicting the least recently used entries if needed
+     */
+    public void put(String key, String value) {
+        if (key == null || value == null || value.length() > maxChars) {
+            return;
+        }
+        synchronized (this) {
+            removeEntry(key);
+            entries.put(key, new Entry(value, System.nanoTime()));
+            totalChars += value.length();
+
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while ((entries.size() > maxEntries || totalChars > maxChars) && iterator.hasNext()) {
+                Map.Entry<String, Entry> eldest = iterator.next();
+                totalChars -= eldest.getValue().value.length();
+                iterator.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Remove all entries
+     */
+    public synchronized void clear() {
+        entries.clear();
+        totalChars = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Summary of the cache counters for logging
+     */
+    public String getStats() {
+        return "size=" + size() + ", hits=" + hits.get() + ", misses=" + misses.get()
+                + ", evictions=" + evictions.get();
+    }
+
+    private void removeEntry(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            totalChars -= removed.value.length();
+        }
+    }
+
+    /**
+     * Hex-encoded SHA-256 digest of a string, used to build fixed-size cache keys
+     */
+    public static String sha256Hex(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static final class Entry {
+        private final String value;
+        private final long createdNanos;
+
+        Entry(String value, long createdNanos) {
+            this.value = value;
+            this.createdNanos = createdNanos;
+        }
+    }
+}
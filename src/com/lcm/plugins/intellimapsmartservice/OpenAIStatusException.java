@@ -0,0 +1,32 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+/**
+ * Non-200 response from Azure OpenAI
+ * Carried as the cause of the SmartServiceException thrown for the call so the
+ * retry policy can see the status code and any server-requested delay
+ */
+public class OpenAIStatusException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final long retryAfterNanos;
+
+    public OpenAIStatusException(int statusCode, long retryAfterNanos, String message) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfterNanos = retryAfterNanos;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Delay requested by the service through Retry-After or retry-after-ms, or -1
+     * if there was none
+     */
+    public long getRetryAfterNanos() {
+        return retryAfterNanos;
+    }
+}
@@ -0,0 +1,831 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.OpenOption;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Disk-backed cache of mapped record results that survives JVM restarts
+ * Values are appended to a log file and located through a memory-mapped
+ * open-addressing index. The log is compacted once it exceeds its size bound
+ * or is mostly superseded entries, dropping the oldest and expired entries;
+ * the copy runs on a background thread and only the swap holds the cache lock
+ *
+ * Log layout: header (magic, version, epoch) followed by records of
+ * [valueLength][createdMillis][32-byte key][value bytes][crc32]
+ *
+ * Index layout: header (magic, version, capacity, count, epoch, indexed log
+ * length, live bytes) followed by slots of [key prefix][log offset + 1]
+ *
+ * Mapped results hold values from the input records, so the directory and
+ * files are only accessible to the owner on POSIX file systems
+ *
+ * One cache instance writes the directory at a time. When another process, or
+ * an earlier copy of the plugin left behind by a redeploy, holds the lock, the
+ * cache opens read-only with an index on the heap: it serves what the log
+ * holds, picks up records the writer appends, and stores nothing itself
+ */
+public class PersistentMappingCache {
+
+    private static final int LOG_MAGIC = 0x494D4C47; // "IMLG"
+    private static final int INDEX_MAGIC = 0x494D4958; // "IMIX"
+    private static final int FORMAT_VERSION = 1;
+    private static final int LOG_HEADER_BYTES = 16;
+    private static final int INDEX_HEADER_BYTES = 48;
+    private static final int SLOT_BYTES = 16;
+    private static final int KEY_BYTES = 32;
+    private static final int RECORD_OVERHEAD = 4 + 8 + KEY_BYTES + 4;
+    private static final int INITIAL_INDEX_CAPACITY = 4096;
+    private static final String LOG_FILE = "mappings.log";
+    private static final String INDEX_PREFIX = "mappings-";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final Set<PosixFilePermission> OWNER_ONLY_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> OWNER_ONLY_FILE = PosixFilePermissions.fromString("rw-------");
+
+    private static final Object sharedLock = new Object();
+    private static PersistentMappingCache shared;
+    private static boolean sharedInitialized;
+
+    private final Path directory;
+    private final boolean posix;
+    private final long maxLogBytes;
+    private final long ttlMillis;
+    private final SecureRandom random = new SecureRandom();
+
+    private FileChannel lockChannel;
+    private FileLock fileLock;
+    private boolean readOnly;
+    private FileChannel logChannel;
+    private long logEpoch;
+    private long logSize;
+
+    private FileChannel indexChannel;
+    private ByteBuffer index;
+    private Path indexPath;
+    private long indexGeneration;
+    private int capacity;
+    private int count;
+    private long liveBytes;
+    private boolean compacting;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+
+    public PersistentMappingCache(Path directory, long maxLogBytes, Duration ttl) throws IOException {
+        this.directory = directory;
+        this.posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+        this.maxLogBytes = maxLogBytes;
+        this.ttlMillis = ttl.toMillis();
+        open();
+    }
+
+    /**
+     * Get the JVM-wide cache in the configured directory
+     * Returns null when no cache directory is configured or it cannot be used
+     */
+    public static PersistentMappingCache shared() {
+        synchronized (sharedLock) {
+            if (!sharedInitialized) {
+                sharedInitialized = true;
+                String configured = System.getProperty(IntelliMapConfig.PERSISTENT_CACHE_DIR_PROPERTY);
+                if (configured != null && !configured.trim().isEmpty()) {
+                    Path dir = Paths.get(configured.trim());
+                    try {
+                        shared = new PersistentMappingCache(dir, IntelliMapConfig.PERSISTENT_CACHE_MAX_BYTES,
+                                IntelliMapConfig.PERSISTENT_CACHE_TTL);
+                        System.out.println("Persistent mapping cache opened at " + dir + " (" + shared.getStats() + ")");
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Persistent mapping cache disabled: " + e.getMessage());
+                    }
+                }
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * Get a cached value, or null if it is missing or expired
+     */
+    public synchronized String get(String key) {
+        byte[] keyBytes = keyBytes(key);
+        if (keyBytes == null || index == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            if (readOnly) {
+                indexNewRecords();
+            }
+            int slot = findSlot(keyBytes);
+            if (slot >= 0) {
+                long offset = slotOffset(slot);
+                LogRecord record = readRecord(offset, true);
+                if (record != null && !isExpired(record.createdMillis)) {
+                    hits.incrementAndGet();
+                    return new String(record.value, StandardCharsets.UTF_8);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading persistent mapping cache: " + e.getMessage());
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Append a value to the log and point the index at it
+     */
+    public synchronized void put(String key, String value) {
+        byte[] keyBytes = keyBytes(key);
+        if (keyBytes == null || value == null || index == null || readOnly) {
+            return;
+        }
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        if (RECORD_OVERHEAD + (long) valueBytes.length > maxLogBytes / 4) {
+            return;
+        }
+        try {
+            long offset = appendRecord(logChannel, logSize, keyBytes, valueBytes, System.currentTimeMillis());
+            logSize = offset + RECORD_OVERHEAD + valueBytes.length;
+            liveBytes += RECORD_OVERHEAD + valueBytes.length;
+            indexRecord(keyBytes, offset);
+            writeIndexHeader();
+
+            if (!compacting && (logSize > maxLogBytes
+                    || (logSize > IntelliMapConfig.PERSISTENT_CACHE_MIN_COMPACT_BYTES && liveBytes * 2 < logSize))) {
+                startCompaction();
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing persistent mapping cache: " + e.getMessage());
+        }
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Summary of the cache counters for logging
+     */
+    public synchronized String getStats() {
+        return (readOnly ? "read-only, " : "") + "entries=" + count + ", logBytes=" + logSize + ", liveBytes="
+                + liveBytes + ", hits=" + hits.get() + ", misses=" + misses.get()
+                + ", compactions=" + compactions.get();
+    }
+
+    /**
+     * Flush and release the files
+     */
+    public synchronized void close() throws IOException {
+        if (index != null) {
+            forceIndex();
+            index = null;
+        }
+        closeQuietly(indexChannel);
+        closeQuietly(logChannel);
+        if (fileLock != null) {
+            fileLock.release();
+        }
+        closeQuietly(lockChannel);
+    }
+
+    // ---- opening and recovery ------------------------------------------------
+
+    private void open() throws IOException {
+        if (posix) {
+            Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY_DIRECTORY));
+            // A directory made by an older version or by hand may be readable by others
+            Files.setPosixFilePermissions(directory, OWNER_ONLY_DIRECTORY);
+        } else {
+            Files.createDirectories(directory);
+        }
+
+        // Only one JVM may write the log at a time
+        lockChannel = openFile(directory.resolve("mappings.lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try {
+            fileLock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by another instance in this JVM, such as the plugin before a redeploy
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            closeQuietly(lockChannel);
+            lockChannel = null;
+            openReadOnly();
+            return;
+        }
+
+        Path logPath = directory.resolve(LOG_FILE);
+        logChannel = openFile(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (!readLogHeader()) {
+            logEpoch = random.nextLong();
+            logChannel.truncate(0);
+            writeLogHeader(logChannel, logEpoch);
+        }
+        logSize = logChannel.size();
+
+        if (!openLatestIndex()) {
+            rebuildIndexFromLog(LOG_HEADER_BYTES);
+        } else {
+            // Index any records appended after the index was last written
+            long indexedLength = index.getLong(24);
+            if (indexedLength < logSize) {
+                scanLog(indexedLength);
+            }
+        }
+        deleteStaleIndexFiles();
+    }
+
+    private void openReadOnly() throws IOException {
+        Path logPath = directory.resolve(LOG_FILE);
+        if (!Files.exists(logPath)) {
+            throw new IOException("cache directory " + directory
+                    + " is locked by another writer and has no log yet");
+        }
+        readOnly = true;
+        logChannel = FileChannel.open(logPath, StandardOpenOption.READ);
+        if (!readLogHeader()) {
+            closeQuietly(logChannel);
+            throw new IOException("cache directory " + directory
+                    + " is locked by another writer and its log is unreadable");
+        }
+        logSize = logChannel.size();
+        rebuildIndexFromLog(LOG_HEADER_BYTES);
+        System.out.println("Persistent mapping cache at " + directory
+                + " is locked by another writer, opened read-only");
+    }
+
+    /**
+     * Index the records another writer appended since the last look
+     * The writer's compactions replace the log file, after which this instance
+     * keeps serving the log it opened
+     */
+    private void indexNewRecords() throws IOException {
+        long size = logChannel.size();
+        if (size > logSize) {
+            long from = logSize;
+            logSize = size;
+            scanLog(from);
+        }
+    }
+
+    private boolean readLogHeader() throws IOException {
+        if (logChannel.size() < LOG_HEADER_BYTES) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES);
+        readFully(logChannel, header, 0);
+        header.flip();
+        if (header.getInt() != LOG_MAGIC || header.getInt() != FORMAT_VERSION) {
+            System.err.println("Persistent mapping cache log has an unknown format, starting a new log");
+            return false;
+        }
+        logEpoch = header.getLong();
+        return true;
+    }
+
+    private boolean openLatestIndex() throws IOException {
+        Path latest = null;
+        long latestGeneration = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, INDEX_PREFIX + "*" + INDEX_SUFFIX)) {
+            for (Path file : files) {
+                long generation = indexGeneration(file);
+                if (generation > latestGeneration) {
+                    latestGeneration = generation;
+                    latest = file;
+                }
+            }
+        }
+        indexGeneration = Math.max(latestGeneration, 0);
+        if (latest == null || Files.size(latest) < INDEX_HEADER_BYTES) {
+            return false;
+        }
+
+        mapIndex(latest, latestGeneration, -1);
+        boolean valid = index.getInt(0) == INDEX_MAGIC
+                && index.getInt(4) == FORMAT_VERSION
+                && index.getLong(16) == logEpoch
+                && index.getLong(24) <= logSize
+                && Files.size(latest) == INDEX_HEADER_BYTES + (long) index.getInt(8) * SLOT_BYTES;
+        if (!valid) {
+            System.err.println("Persistent mapping cache index does not match the log, rebuilding");
+            return false;
+        }
+        capacity = index.getInt(8);
+        count = index.getInt(12);
+        liveBytes = index.getLong(32);
+        return true;
+    }
+
+    /**
+     * Read records from the given offset to the end of the log and index them
+     * A torn or corrupt tail (for example after a crash) is truncated; a
+     * read-only cache stops there instead, as the writer may still be appending
+     */
+    private void scanLog(long from) throws IOException {
+        long offset = from;
+        while (offset < logSize) {
+            LogRecord record = readRecord(offset, true);
+            if (record == null && readOnly) {
+                logSize = offset;
+                break;
+            }
+            if (record == null) {
+                System.err.println("Truncating persistent mapping cache log at offset " + offset);
+                logChannel.truncate(offset);
+                logSize = offset;
+                break;
+            }
+            liveBytes += record.size();
+            indexRecord(record.key, offset);
+            offset += record.size();
+        }
+        writeIndexHeader();
+    }
+
+    private void rebuildIndexFromLog(long from) throws IOException {
+        newIndex(INITIAL_INDEX_CAPACITY);
+        liveBytes = 0;
+        scanLog(from);
+    }
+
+    // ---- index -----------------------------------------------------------------
+
+    private void newIndex(int newCapacity) throws IOException {
+        Path oldPath = indexPath;
+        FileChannel oldChannel = indexChannel;
+        if (readOnly) {
+            index = ByteBuffer.allocate(INDEX_HEADER_BYTES + newCapacity * SLOT_BYTES);
+            capacity = newCapacity;
+            count = 0;
+            writeIndexHeader();
+            return;
+        }
+        indexGeneration++;
+        Path path = directory.resolve(INDEX_PREFIX + indexGeneration + INDEX_SUFFIX);
+        Files.deleteIfExists(path);
+        mapIndex(path, indexGeneration, newCapacity);
+        capacity = newCapacity;
+        count = 0;
+        writeIndexHeader();
+
+        closeQuietly(oldChannel);
+        if (oldPath != null) {
+            try {
+                Files.deleteIfExists(oldPath);
+            } catch (IOException e) {
+                // Still mapped on some platforms, removed on the next open
+            }
+        }
+    }
+
+    private void mapIndex(Path path, long generation, int newCapacity) throws IOException {
+        indexChannel = openFile(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long length = newCapacity >= 0 ? INDEX_HEADER_BYTES + (long) newCapacity * SLOT_BYTES : indexChannel.size();
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        indexPath = path;
+        indexGeneration = generation;
+    }
+
+    private void writeIndexHeader() {
+        index.putInt(0, INDEX_MAGIC);
+        index.putInt(4, FORMAT_VERSION);
+        index.putInt(8, capacity);
+        index.putInt(12, count);
+        index.putLong(16, logEpoch);
+        index.putLong(24, logSize);
+        index.putLong(32, liveBytes);
+    }
+
+    private void indexRecord(byte[] keyBytes, long offset) throws IOException {
+        if ((count + 1) * 10L > capacity * 7L) {
+            growIndex();
+        }
+        long prefix = keyPrefix(keyBytes);
+        int slot = (int) (mix(prefix) & (capacity - 1));
+        while (true) {
+            long existing = slotOffset(slot);
+            if (existing < 0) {
+                writeSlot(slot, prefix, offset);
+                count++;
+                return;
+            }
+            if (slotPrefix(slot) == prefix) {
+                LogRecord previous = readRecord(existing, false);
+                if (previous == null || Arrays.equals(previous.key, keyBytes)) {
+                    if (previous != null) {
+                        liveBytes -= previous.size();
+                    }
+                    writeSlot(slot, prefix, offset);
+                    return;
+                }
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+    }
+
+    private int findSlot(byte[] keyBytes) throws IOException {
+        long prefix = keyPrefix(keyBytes);
+        int slot = (int) (mix(prefix) & (capacity - 1));
+        for (int probes = 0; probes < capacity; probes++) {
+            long offset = slotOffset(slot);
+            if (offset < 0) {
+                return -1;
+            }
+            if (slotPrefix(slot) == prefix) {
+                LogRecord record = readRecord(offset, false);
+                if (record != null && Arrays.equals(record.key, keyBytes)) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return -1;
+    }
+
+    private void growIndex() throws IOException {
+        List<long[]> entries = indexEntries();
+        newIndex(capacity * 2);
+        for (long[] entry : entries) {
+            insertWithoutCheck(entry[0], entry[1]);
+        }
+        writeIndexHeader();
+    }
+
+    private void insertWithoutCheck(long prefix, long offset) {
+        int slot = (int) (mix(prefix) & (capacity - 1));
+        while (slotOffset(slot) >= 0) {
+            slot = (slot + 1) & (capacity - 1);
+        }
+        writeSlot(slot, prefix, offset);
+        count++;
+    }
+
+    private List<long[]> indexEntries() {
+        List<long[]> entries = new ArrayList<>(count);
+        for (int slot = 0; slot < capacity; slot++) {
+            long offset = slotOffset(slot);
+            if (offset >= 0) {
+                entries.add(new long[] { slotPrefix(slot), offset });
+            }
+        }
+        return entries;
+    }
+
+    private long slotPrefix(int slot) {
+        return index.getLong(INDEX_HEADER_BYTES + slot * SLOT_BYTES);
+    }
+
+    private long slotOffset(int slot) {
+        return index.getLong(INDEX_HEADER_BYTES + slot * SLOT_BYTES + 8) - 1;
+    }
+
+    private void writeSlot(int slot, long prefix, long offset) {
+        index.putLong(INDEX_HEADER_BYTES + slot * SLOT_BYTES, prefix);
+        index.putLong(INDEX_HEADER_BYTES + slot * SLOT_BYTES + 8, offset + 1);
+    }
+
+    // ---- compaction ------------------------------------------------------------
+
+    /**
+     * Snapshot the index and compact the log up to its current end on a
+     * background thread; puts and gets carry on against the old log meanwhile
+     */
+    private void startCompaction() {
+        compacting = true;
+        List<long[]> entries = indexEntries();
+        long snapshotSize = logSize;
+        FileChannel source = logChannel;
+        Thread compactor = new Thread(() -> compact(entries, source, snapshotSize), "intellimap-cache-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Rewrite the log with only the newest live entries so that it fits well
+     * under the size bound, then swap it in with the records appended since
+     * the snapshot and index it
+     */
+    private void compact(List<long[]> entries, FileChannel source, long snapshotSize) {
+        long started = System.currentTimeMillis();
+        Path logPath = directory.resolve(LOG_FILE);
+        Path compactPath = directory.resolve(LOG_FILE + ".compact");
+        boolean swapped = false;
+        try (FileChannel out = openFile(compactPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // Only record headers are held in memory; values are copied one at a time
+            List<LogRecord> live = new ArrayList<>(entries.size());
+            for (long[] entry : entries) {
+                LogRecord record = readRecord(source, snapshotSize, entry[1], false);
+                if (record != null && !isExpired(record.createdMillis)) {
+                    live.add(record);
+                }
+            }
+            live.sort(Comparator.comparingLong((LogRecord record) -> record.createdMillis).reversed());
+
+            long budget = (long) (maxLogBytes * IntelliMapConfig.PERSISTENT_CACHE_COMPACT_TARGET_RATIO);
+            long kept = LOG_HEADER_BYTES;
+            int keepCount = 0;
+            while (keepCount < live.size() && kept + live.get(keepCount).size() <= budget) {
+                kept += live.get(keepCount).size();
+                keepCount++;
+            }
+            List<LogRecord> survivors = new ArrayList<>(live.subList(0, keepCount));
+            survivors.sort(Comparator.comparingLong(record -> record.createdMillis));
+
+            long newEpoch = random.nextLong();
+            writeLogHeader(out, newEpoch);
+            long position = LOG_HEADER_BYTES;
+            List<long[]> moved = new ArrayList<>(survivors.size());
+            for (LogRecord header : survivors) {
+                LogRecord record = readRecord(source, snapshotSize, header.offset, true);
+                if (record != null) {
+                    appendRecord(out, position, record.key, record.value, record.createdMillis);
+                    moved.add(new long[] { keyPrefix(record.key), position, record.size() });
+                    position += record.size();
+                }
+            }
+            out.force(true);
+
+            synchronized (this) {
+                if (index == null || logChannel != source) {
+                    return;
+                }
+                long before = logSize;
+                long tailStart = position;
+                copyFully(logChannel, snapshotSize, logSize - snapshotSize, out, position);
+                out.force(true);
+
+                closeQuietly(logChannel);
+                Files.move(compactPath, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                swapped = true;
+                logChannel = openFile(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                logEpoch = newEpoch;
+                logSize = logChannel.size();
+
+                int newCapacity = INITIAL_INDEX_CAPACITY;
+                while (moved.size() * 10L > newCapacity * 7L) {
+                    newCapacity *= 2;
+                }
+                newIndex(newCapacity);
+                liveBytes = 0;
+                for (long[] entry : moved) {
+                    insertWithoutCheck(entry[0], entry[1]);
+                    liveBytes += entry[2];
+                }
+                // Records put during the copy may replace survivors
+                scanLog(tailStart);
+                forceIndex();
+                compactions.incrementAndGet();
+
+                System.out.println("Compacted persistent mapping cache: " + before + " -> " + logSize + " bytes, "
+                        + count + " entries kept in " + (System.currentTimeMillis() - started) + "ms");
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error compacting persistent mapping cache: " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+            if (!swapped) {
+                try {
+                    Files.deleteIfExists(compactPath);
+                } catch (IOException e) {
+                    // Overwritten by the next compaction
+                }
+            }
+        }
+    }
+
+    // ---- log records -----------------------------------------------------------
+
+    private static void writeLogHeader(FileChannel channel, long epoch) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES);
+        header.putInt(LOG_MAGIC).putInt(FORMAT_VERSION).putLong(epoch).flip();
+        writeFully(channel, header, 0);
+    }
+
+    private static long appendRecord(FileChannel channel, long position, byte[] key, byte[] value,
+            long createdMillis) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_OVERHEAD + value.length);
+        buffer.putInt(value.length).putLong(createdMillis).put(key).put(value);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue()).flip();
+        writeFully(channel, buffer, position);
+        return position;
+    }
+
+    /**
+     * Read the record at an offset, or null if it is truncated or corrupt
+     * The value is only loaded when withValue is set
+     */
+    private LogRecord readRecord(long offset, boolean withValue) throws IOException {
+        return readRecord(logChannel, logSize, offset, withValue);
+    }
+
+    private static LogRecord readRecord(FileChannel channel, long logSize, long offset, boolean withValue)
+            throws IOException {
+        if (offset < LOG_HEADER_BYTES || offset + RECORD_OVERHEAD > logSize) {
+            return null;
+        }
+        ByteBuffer head = ByteBuffer.allocate(4 + 8 + KEY_BYTES);
+        readFully(channel, head, offset);
+        head.flip();
+        int valueLength = head.getInt();
+        if (valueLength < 0 || offset + RECORD_OVERHEAD + valueLength > logSize) {
+            return null;
+        }
+        long createdMillis = head.getLong();
+        byte[] key = new byte[KEY_BYTES];
+        head.get(key);
+        if (!withValue) {
+            return new LogRecord(offset, key, null, valueLength, createdMillis);
+        }
+
+        ByteBuffer rest = ByteBuffer.allocate(valueLength + 4);
+        readFully(channel, rest, offset + head.capacity());
+        rest.flip();
+        byte[] value = new byte[valueLength];
+        rest.get(value);
+        CRC32 crc = new CRC32();
+        crc.update(head.array());
+        crc.update(value);
+        if ((int) crc.getValue() != rest.getInt()) {
+            return null;
+        }
+        return new LogRecord(offset, key, value, valueLength, createdMillis);
+    }
+
+    private boolean isExpired(long createdMillis) {
+        return System.currentTimeMillis() - createdMillis > ttlMillis;
+    }
+
+    // ---- helpers ---------------------------------------------------------------
+
+    private void forceIndex() {
+        if (index instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) index).force();
+        }
+    }
+
+    /**
+     * Open a cache file, creating it and tightening existing files to owner-only
+     * access where the file system supports POSIX permissions
+     */
+    private FileChannel openFile(Path path, OpenOption... options) throws IOException {
+        Set<OpenOption> optionSet = new HashSet<>(Arrays.asList(options));
+        if (!posix) {
+            return FileChannel.open(path, optionSet);
+        }
+        FileChannel channel = FileChannel.open(path, optionSet, PosixFilePermissions.asFileAttribute(OWNER_ONLY_FILE));
+        if (optionSet.contains(StandardOpenOption.WRITE)) {
+            Files.setPosixFilePermissions(path, OWNER_ONLY_FILE);
+        }
+        return channel;
+    }
+
+    private void deleteStaleIndexFiles() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, INDEX_PREFIX + "*" + INDEX_SUFFIX)) {
+            for (Path file : files) {
+                if (!file.equals(indexPath)) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        // Still mapped on some platforms, removed on the next open
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not clean up old persistent mapping cache index files: " + e.getMessage());
+        }
+    }
+
+    private static long indexGeneration(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(INDEX_PREFIX.length(), name.length() - INDEX_SUFFIX.length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Cache keys are hex SHA-256 digests; store them as 32 raw bytes
+     */
+    private static byte[] keyBytes(String key) {
+        if (key == null || key.length() != KEY_BYTES * 2) {
+            return null;
+        }
+        byte[] bytes = new byte[KEY_BYTES];
+        for (int i = 0; i < KEY_BYTES; i++) {
+            int high = Character.digit(key.charAt(i * 2), 16);
+            int low = Character.digit(key.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    private static long keyPrefix(byte[] keyBytes) {
+        return ByteBuffer.wrap(keyBytes, 0, 8).getLong();
+    }
+
+    private static long mix(long value) {
+        value ^= (value >>> 33);
+        value *= 0xff51afd7ed558ccdL;
+        value ^= (value >>> 33);
+        return value;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of persistent mapping cache log");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static void copyFully(FileChannel from, long position, long length, FileChannel to, long toPosition)
+            throws IOException {
+        to.position(toPosition);
+        long copied = 0;
+        while (copied < length) {
+            copied += from.transferTo(position + copied, length - copied, to);
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing useful to do
+            }
+        }
+    }
+
+    private static final class LogRecord {
+        private final long offset;
+        private final byte[] key;
+        private final byte[] value;
+        private final int valueLength;
+        private final long createdMillis;
+
+        LogRecord(long offset, byte[] key, byte[] value, int valueLength, long createdMillis) {
+            this.offset = offset;
+            this.key = key;
+            this.value = value;
+            this.valueLength = valueLength;
+            this.createdMillis = createdMillis;
+        }
+
+        int size() {
+            return RECORD_OVERHEAD + valueLength;
+        }
+    }
+}
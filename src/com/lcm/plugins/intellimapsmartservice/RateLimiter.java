@@ -1,135 +1,348 @@
 package com.lcm.plugins.intellimapsmartservice;
 
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.time.Duration;
 
 /**
  * Rate limiter for Azure OpenAI API calls
- * Implements sliding window rate limiting
+ * Implements the generic cell rate algorithm (a token bucket on atomics) for a
+ * per-minute and a per-hour request limit and a tokens-per-minute limit, which
+ * can be set per client for deployments with different quotas.
+ * Permits are granted immediately while there is capacity; otherwise callers
+ * get the time until the next permit
  */
 public class RateLimiter {
 
-    private final ConcurrentHashMap<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, Instant> windowStart = new ConcurrentHashMap<>();
+    private static final Object sharedLock = new Object();
+    private static RateLimiter shared;
 
-    private final int maxRequestsPerMinute;
-    private final int maxRequestsPerHour;
-    private final Duration delayBetweenRequests;
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> tokenLimits = new ConcurrentHashMap<>();
+    // Only the shared limiter evicts in the background
+    private volatile boolean evictIdleBuckets;
+    private final Object evictorLock = new Object();
+    // Guarded by evictorLock; null while there are no buckets to evict
+    private ScheduledExecutorService evictor;
+
+    private final long minuteIntervalNanos;
+    private final long minuteToleranceNanos;
+    private final long hourIntervalNanos;
+    private final long hourToleranceNanos;
+    private final int maxTokensPerMinute;
+    private final long tokenWindowNanos;
+    private final Duration maxWait;
 
     public RateLimiter() {
-        this.maxRequestsPerMinute = IntelliMapConfig.MAX_REQUESTS_PER_MINUTE;
-        this.maxRequestsPerHour = IntelliMapConfig.MAX_REQUESTS_PER_HOUR;
-        this.delayBetweenRequests = IntelliMapConfig.RATE_LIMIT_DELAY;
+        this(IntelliMapConfig.MAX_REQUESTS_PER_MINUTE, IntelliMapConfig.MAX_REQUESTS_PER_HOUR,
+                IntelliMapConfig.MAX_TOKENS_PER_MINUTE, IntelliMapConfig.RATE_LIMIT_MAX_WAIT);
     }
 
-    public RateLimiter(int maxRequestsPerMinute, int maxRequestsPerHour, Duration delayBetweenRequests) {
-        this.maxRequestsPerMinute = maxRequestsPerMinute;
-        this.maxRequestsPerHour = maxRequestsPerHour;
-        this.delayBetweenRequests = delayBetweenRequests;
+    /**
+     * @param maxWait how long checkRateLimit may wait for a permit; zero makes it
+     *                fail fast
+     */
+    public RateLimiter(int maxRequestsPerMinute, int maxRequestsPerHour, int maxTokensPerMinute,
+            Duration maxWait) {
+        long minute = TimeUnit.MINUTES.toNanos(1);
+        long hour = TimeUnit.HOURS.toNanos(1);
+        this.minuteIntervalNanos = minute / maxRequestsPerMinute;
+        this.minuteToleranceNanos = minute - minuteIntervalNanos;
+        this.hourIntervalNanos = hour / maxRequestsPerHour;
+        this.hourToleranceNanos = hour - hourIntervalNanos;
+        this.maxTokensPerMinute = maxTokensPerMinute;
+        this.tokenWindowNanos = minute;
+        this.maxWait = maxWait;
     }
 
     /**
-     * Check if a request can be made and wait if necessary
+     * Get the JVM-wide limiter used by every IntelliMap invocation
+     * Buckets are keyed by Azure endpoint and deployment, and idle buckets are
+     * evicted in the background. The evictor runs only while buckets exist, so
+     * a redeployed plugin leaves no thread holding the old classloader
      */
-    public void checkRateLimit(String clientId) throws InterruptedException {
-        String minuteKey = "minute:" + clientId + ":" + (Instant.now().getEpochSecond() / 60);
-        String hourKey = "hour:" + clientId + ":" + (Instant.now().getEpochSecond() / 3600);
+    public static RateLimiter shared() {
+        synchronized (sharedLock) {
+            if (shared == null) {
+                shared = new RateLimiter();
+                shared.evictIdleBuckets = true;
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * Take a request permit if one is available right now
+     *
+     * @return 0 if the permit was granted, otherwise the nanoseconds until one
+     *         will be available (nothing is consumed in that case)
+     */
+    public long tryAcquire(String clientId) {
+        return tryAcquire(clientId, 0);
+    }
 
-        // Check minute rate limit
-        if (!checkLimit(minuteKey, maxRequestsPerMinute)) {
-            throw new RuntimeException("Rate limit exceeded for minute");
+    /**
+     * Take a request permit and charge the given number of tokens against the
+     * tokens-per-minute limit if both are available right now
+     *
+     * @return 0 if the permit was granted, otherwise the nanoseconds until one
+     *         will be available (nothing is consumed in that case)
+     */
+    public long tryAcquire(String clientId, int tokens) {
+        long tokenCost = tokenCostNanos(clientId, tokens);
+        Bucket bucket = buckets.get(clientId);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(clientId, k -> new Bucket());
+            startEvictor();
         }
+        while (true) {
+            long now = System.nanoTime();
+            State current = bucket.state.get();
 
-        // Check hour rate limit
-        if (!checkLimit(hourKey, maxRequestsPerHour)) {
-            throw new RuntimeException("Rate limit exceeded for hour");
+            long minuteTat = Math.max(current.minuteTat, now);
+            long hourTat = Math.max(current.hourTat, now);
+            long tokenTat = Math.max(current.tokenTat, now);
+            long wait = Math.max(minuteTat - now - minuteToleranceNanos, hourTat - now - hourToleranceNanos);
+            wait = Math.max(wait, tokenTat + tokenCost - now - tokenWindowNanos);
+            if (wait > 0) {
+                return wait;
+            }
+
+            State next = new State(minuteTat + minuteIntervalNanos, hourTat + hourIntervalNanos,
+                    tokenTat + tokenCost);
+            if (bucket.state.compareAndSet(current, next)) {
+                return 0;
+            }
         }
+    }
 
-        // Apply delay between requests
-        if (delayBetweenRequests.toMillis() > 0) {
-            Thread.sleep(delayBetweenRequests.toMillis());
+    /**
+     * Time until a permit for the given number of tokens would be available,
+     * without taking it
+     *
+     * @return 0 if a permit is available right now
+     */
+    public long peekWaitNanos(String clientId, int tokens) {
+        Bucket bucket = buckets.get(clientId);
+        if (bucket == null) {
+            return 0;
         }
+        long tokenCost = tokenCostNanos(clientId, tokens);
+        long now = System.nanoTime();
+        State current = bucket.state.get();
+        long wait = Math.max(Math.max(current.minuteTat, now) - now - minuteToleranceNanos,
+                Math.max(current.hourTat, now) - now - hourToleranceNanos);
+        return Math.max(0, Math.max(wait, Math.max(current.tokenTat, now) + tokenCost - now - tokenWindowNanos));
     }
 
     /**
-     * Check if limit is exceeded for a given key
+     * Set the tokens-per-minute limit of one client, such as a deployment with
+     * its own quota; other clients keep the limiter's default
      */
-    private boolean checkLimit(String key, int maxRequests) {
-        Instant now = Instant.now();
+    public void setTokensPerMinute(String clientId, int tokensPerMinute) {
+        if (tokensPerMinute > 0) {
+            tokenLimits.put(clientId, tokensPerMinute);
+        }
+    }
 
-        // Get or create window start time
-        windowStart.computeIfAbsent(key, k -> now);
+    public int getTokensPerMinute(String clientId) {
+        return tokenLimits.getOrDefault(clientId, maxTokensPerMinute);
+    }
+
+    /**
+     * Time a token charge takes from the client's minute window; a single call
+     * larger than the whole budget waits for a full bucket
+     */
+    private long tokenCostNanos(String clientId, int tokens) {
+        int limit = getTokensPerMinute(clientId);
+        return (long) (Math.min(Math.max(tokens, 0), limit) * ((double) tokenWindowNanos / limit));
+    }
 
-        // Check if window has expired (1 minute for minute key, 1 hour for hour key)
-        Duration windowDuration = key.startsWith("minute:") ? Duration.ofMinutes(1) : Duration.ofHours(1);
-        if (now.isAfter(windowStart.get(key).plus(windowDuration))) {
-            // Reset window
-            windowStart.put(key, now);
-            requestCounts.put(key, new AtomicInteger(0));
+    /**
+     * Correct an earlier token charge once the actual usage is known
+     * A positive delta charges more tokens, a negative delta refunds them
+     */
+    public void adjustTokens(String clientId, int delta) {
+        Bucket bucket = buckets.get(clientId);
+        if (bucket == null || delta == 0) {
+            return;
+        }
+        long adjustment = (long) (delta * (double) tokenWindowNanos / getTokensPerMinute(clientId));
+        while (true) {
+            State current = bucket.state.get();
+            State next = new State(current.minuteTat, current.hourTat, current.tokenTat + adjustment);
+            if (bucket.state.compareAndSet(current, next)) {
+                return;
+            }
         }
+    }
 
-        // Increment and check count
-        AtomicInteger count = requestCounts.computeIfAbsent(key, k -> new AtomicInteger(0));
-        int currentCount = count.incrementAndGet();
+    /**
+     * Wait up to maxWait for a permit
+     *
+     * @return true if a permit was granted, false if none became available in
+     *         time
+     */
+    public boolean acquire(String clientId, Duration maxWait) throws InterruptedException {
+        return acquire(clientId, 0, maxWait);
+    }
 
-        return currentCount <= maxRequests;
+    /**
+     * Wait up to maxWait for a permit and token budget
+     *
+     * @return true if a permit was granted, false if none became available in
+     *         time
+     */
+    public boolean acquire(String clientId, int tokens, Duration maxWait) throws InterruptedException {
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        while (true) {
+            long wait = tryAcquire(clientId, tokens);
+            if (wait == 0) {
+                return true;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (wait > remaining) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
     }
 
     /**
-     * Get current request count for a client
+     * Take a permit or fail immediately if the limit has been reached
+     */
+    public void acquireOrFail(String clientId) {
+        acquireOrFail(clientId, 0);
+    }
+
+    /**
+     * Take a permit and token budget or fail immediately if either limit has
+     * been reached
+     */
+    public void acquireOrFail(String clientId, int tokens) {
+        long wait = tryAcquire(clientId, tokens);
+        if (wait > 0) {
+            throw new RuntimeException("Rate limit exceeded, next request allowed in "
+                    + TimeUnit.NANOSECONDS.toMillis(wait) + "ms");
+        }
+    }
+
+    /**
+     * Check if a request can be made, waiting up to the configured maximum wait
+     * for a permit
+     */
+    public void checkRateLimit(String clientId) throws InterruptedException {
+        checkRateLimit(clientId, 0);
+    }
+
+    /**
+     * Check if a request estimated to use the given number of tokens can be made,
+     * waiting up to the configured maximum wait for a permit
+     */
+    public void checkRateLimit(String clientId, int estimatedTokens) throws InterruptedException {
+        if (maxWait.isZero() || maxWait.isNegative()) {
+            acquireOrFail(clientId, estimatedTokens);
+        } else if (!acquire(clientId, estimatedTokens, maxWait)) {
+            throw new RuntimeException("Rate limit exceeded, no permit available within " + maxWait.toMillis() + "ms");
+        }
+    }
+
+    /**
+     * Get the number of permits currently used in the minute window for a client
      */
     public int getCurrentRequestCount(String clientId) {
-        String minuteKey = "minute:" + clientId + ":" + (Instant.now().getEpochSecond() / 60);
-        AtomicInteger count = requestCounts.get(minuteKey);
-        return count != null ? count.get() : 0;
+        Bucket bucket = buckets.get(clientId);
+        if (bucket == null) {
+            return 0;
+        }
+        long backlog = bucket.state.get().minuteTat - System.nanoTime();
+        return backlog > 0 ? (int) ((backlog + minuteIntervalNanos - 1) / minuteIntervalNanos) : 0;
     }
 
     /**
      * Reset rate limit counters for a client
      */
     public void resetCounters(String clientId) {
-        String minuteKey = "minute:" + clientId + ":" + (Instant.now().getEpochSecond() / 60);
-        String hourKey = "hour:" + clientId + ":" + (Instant.now().getEpochSecond() / 3600);
-
-        requestCounts.remove(minuteKey);
-        requestCounts.remove(hourKey);
-        windowStart.remove(minuteKey);
-        windowStart.remove(hourKey);
+        buckets.remove(clientId);
     }
 
     /**
-     * Clean up expired entries
+     * Clean up buckets that have fully refilled and so carry no state
+     * A removed bucket is indistinguishable from a new one, so a request racing
+     * with eviction can at most land on an equally full bucket
      */
     public void cleanup() {
-        Instant now = Instant.now();
+        long now = System.nanoTime();
+        for (String key : buckets.keySet()) {
+            buckets.computeIfPresent(key, (k, bucket) -> {
+                State state = bucket.state.get();
+                return state.minuteTat <= now && state.hourTat <= now && state.tokenTat <= now ? null : bucket;
+            });
+        }
+        stopEvictorIfIdle();
+    }
 
-        // Clean up minute entries older than 2 minutes
-        windowStart.entrySet().removeIf(entry -> {
-            if (entry.getKey().startsWith("minute:")) {
-                return now.isAfter(entry.getValue().plus(Duration.ofMinutes(2)));
+    private void startEvictor() {
+        if (!evictIdleBuckets) {
+            return;
+        }
+        synchronized (evictorLock) {
+            if (evictor == null) {
+                evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "intellimap-ratelimit-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                long period = IntelliMapConfig.RATE_LIMIT_EVICTION_INTERVAL.toMillis();
+                evictor.scheduleWithFixedDelay(this::cleanup, period, period, TimeUnit.MILLISECONDS);
             }
-            return false;
-        });
+        }
+    }
 
-        // Clean up hour entries older than 2 hours
-        windowStart.entrySet().removeIf(entry -> {
-            if (entry.getKey().startsWith("hour:")) {
-                return now.isAfter(entry.getValue().plus(Duration.ofHours(2)));
-            }
-            return false;
-        });
-
-        // Clean up corresponding request counts
-        requestCounts.entrySet().removeIf(entry -> {
-            String key = entry.getKey();
-            if (key.startsWith("minute:")) {
-                return !windowStart.containsKey(key);
-            } else if (key.startsWith("hour:")) {
-                return !windowStart.containsKey(key);
+    /**
+     * Stop the evictor once there is nothing left to evict; the next new bucket
+     * starts a new one
+     */
+    private void stopEvictorIfIdle() {
+        synchronized (evictorLock) {
+            if (evictor != null && buckets.isEmpty()) {
+                evictor.shutdown();
+                evictor = null;
             }
-            return false;
-        });
+        }
+    }
+
+    /**
+     * Get the number of keys currently tracked
+     */
+    public int getTrackedKeyCount() {
+        return buckets.size();
+    }
+
+    /**
+     * Theoretical arrival times for the next request in each window
+     */
+    private static final class State {
+        private final long minuteTat;
+        private final long hourTat;
+        private final long tokenTat;
+
+        State(long minuteTat, long hourTat, long tokenTat) {
+            this.minuteTat = minuteTat;
+            this.hourTat = hourTat;
+            this.tokenTat = tokenTat;
+        }
+    }
+
+    private static final class Bucket {
+        private final AtomicReference<State> state;
+
+        Bucket() {
+            long now = System.nanoTime();
+            this.state = new AtomicReference<>(new State(now, now, now));
+        }
     }
-}
\ No newline at end of file
+}
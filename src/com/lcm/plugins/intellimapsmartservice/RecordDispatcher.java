@@ -0,0 +1,57 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that run per-record tasks
+ * Uses virtual threads when the JVM provides them, otherwise a bounded pool of
+ * daemon platform threads; RecordPipeline bounds how many run at once
+ */
+public final class RecordDispatcher {
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static final MethodHandle virtualThreadExecutorFactory = findVirtualThreadExecutorFactory();
+
+    private RecordDispatcher() {
+    }
+
+    /**
+     * Check whether tasks will run on virtual threads
+     */
+    public static boolean usesVirtualThreads() {
+        return virtualThreadExecutorFactory != null;
+    }
+
+    static ExecutorService newExecutor(int parallelism) {
+        if (virtualThreadExecutorFactory != null) {
+            try {
+                return (ExecutorService) virtualThreadExecutorFactory.invoke();
+            } catch (Throwable e) {
+                System.err.println("Could not create virtual thread executor: " + e.getMessage());
+            }
+        }
+        return Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "intellimap-record-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Look up Executors.newVirtualThreadPerTaskExecutor (Java 21+) so the plug-in
+     * still runs on Java 17 engines
+     */
+    private static MethodHandle findVirtualThreadExecutorFactory() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}
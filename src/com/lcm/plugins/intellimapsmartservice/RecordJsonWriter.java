@@ -0,0 +1,92 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Serializes input records to JSON with a JsonGenerator
+ * Strings are fully escaped, nested maps, lists and arrays are written as JSON,
+ * and any other value is written as its string form. Missing or blank keys get
+ * a stable name from their position so the same record always serializes the
+ * same way
+ */
+public final class RecordJsonWriter {
+
+    private static final String UNKNOWN_KEY_PREFIX = "unknown_key_";
+
+    private RecordJsonWriter() {
+    }
+
+    public static String write(Map<?, ?> record, JsonFactory jsonFactory) throws IOException {
+        StringWriter buffer = new StringWriter(Math.max(16, record.size() * 32));
+        try (JsonGenerator generator = jsonFactory.createGenerator(buffer)) {
+            writeValue(generator, record);
+        }
+        return buffer.toString();
+    }
+
+    private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        } else if (value instanceof String) {
+            generator.writeString((String) value);
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+                || value instanceof Byte) {
+            generator.writeNumber(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                generator.writeNull();
+            } else {
+                generator.writeNumber(number);
+            }
+        } else if (value instanceof BigDecimal) {
+            generator.writeNumber((BigDecimal) value);
+        } else if (value instanceof BigInteger) {
+            generator.writeNumber((BigInteger) value);
+        } else if (value instanceof Map) {
+            writeMap(generator, (Map<?, ?>) value);
+        } else if (value instanceof Iterable) {
+            generator.writeStartArray();
+            for (Object element : (Iterable<?>) value) {
+                writeValue(generator, element);
+            }
+            generator.writeEndArray();
+        } else if (value instanceof Object[]) {
+            generator.writeStartArray();
+            for (Object element : (Object[]) value) {
+                writeValue(generator, element);
+            }
+            generator.writeEndArray();
+        } else {
+            generator.writeString(value.toString());
+        }
+    }
+
+    private static void writeMap(JsonGenerator generator, Map<?, ?> map) throws IOException {
+        generator.writeStartObject();
+        int position = 0;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (entry == null) {
+                continue;
+            }
+            Object key = entry.getKey();
+            String name = key != null ? key.toString() : null;
+            if (name == null || name.trim().isEmpty()) {
+                name = UNKNOWN_KEY_PREFIX + position;
+            }
+            generator.writeFieldName(name);
+            writeValue(generator, entry.getValue());
+            position++;
+        }
+        generator.writeEndObject();
+    }
+}
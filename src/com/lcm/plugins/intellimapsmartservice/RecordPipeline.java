@@ -0,0 +1,127 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Bounded pipeline between the stage that reads and submits record tasks and
+ * the stage that writes their results
+ * At most maxInFlight tasks run at once and at most maxPending are submitted
+ * but not yet written; submit() blocks when either bound is reached, so memory
+ * is bounded by the window rather than the input size. Results are handed to
+ * the sink in submission order on the submitting thread as soon as every
+ * earlier result has been written
+ */
+public final class RecordPipeline<T> implements AutoCloseable {
+
+    /**
+     * Receives each result in submission order
+     */
+    public interface Sink<T> {
+        void accept(T result) throws Exception;
+    }
+
+    private final int maxInFlight;
+    private final int maxPending;
+    private final Sink<T> sink;
+    private final ArrayDeque<Future<T>> pending = new ArrayDeque<>();
+    private final ExecutorService executor;
+    private int running;
+    private long submitted;
+
+    public RecordPipeline(int maxInFlight, int maxPending, Sink<T> sink) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxPending = Math.max(this.maxInFlight, maxPending);
+        this.sink = sink;
+        this.executor = this.maxInFlight > 1 ? RecordDispatcher.newExecutor(this.maxInFlight) : null;
+    }
+
+    /**
+     * Submit the next task, first writing any results that are ready
+     * With maxInFlight of 1 the task runs on the calling thread
+     */
+    public void submit(Callable<T> task) throws Exception {
+        submitted++;
+        if (executor == null) {
+            sink.accept(task.call());
+            return;
+        }
+
+        drain(false);
+        synchronized (this) {
+            while (running >= maxInFlight) {
+                wait();
+            }
+            running++;
+        }
+        while (pending.size() >= maxPending) {
+            writeHead();
+        }
+        try {
+            pending.add(executor.submit(() -> {
+                try {
+                    return task.call();
+                } finally {
+                    taskFinished();
+                }
+            }));
+        } catch (RuntimeException e) {
+            taskFinished();
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for every submitted task and write the remaining results
+     */
+    public void finish() throws Exception {
+        drain(true);
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            for (Future<T> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+            executor.shutdownNow();
+        }
+    }
+
+    private synchronized void taskFinished() {
+        running--;
+        notifyAll();
+    }
+
+    private void drain(boolean wait) throws Exception {
+        while (!pending.isEmpty() && (wait || pending.peek().isDone())) {
+            writeHead();
+        }
+    }
+
+    private void writeHead() throws Exception {
+        Future<T> head = pending.poll();
+        T result;
+        try {
+            result = head.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+        sink.accept(result);
+    }
+}
@@ -0,0 +1,207 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Shards a wide record by its field chunks and merges the mapped shards back
+ * into one record
+ * A target field goes to the shards whose input field names share a word with
+ * its code or name; a target field no shard mentions goes to every shard, so
+ * value-based mappings are still found. Merging takes, field by field, the
+ * non-null value from the most confident shard
+ */
+public final class RecordSharder {
+
+    private static final String CONFIDENCE_FIELD = "confidence_level";
+    private static final Set<String> STOP_WORDS = Set.of("of", "the", "and", "or", "for", "to", "in", "on", "by");
+
+    private RecordSharder() {
+    }
+
+    /**
+     * Pick the target fields for each shard
+     *
+     * @param shardFieldNames the input field names in each shard
+     * @param targetFields    target field code to name
+     * @return the target fields for each shard, empty when none relate to it
+     */
+    public static List<Map<String, String>> assignTargetFields(List<? extends Collection<String>> shardFieldNames,
+            Map<String, String> targetFields) {
+        List<Set<String>> shardTerms = new ArrayList<>(shardFieldNames.size());
+        for (Collection<String> names : shardFieldNames) {
+            Set<String> terms = new HashSet<>();
+            for (String name : names) {
+                addTerms(name, terms);
+            }
+            shardTerms.add(terms);
+        }
+
+        List<Map<String, String>> assigned = new ArrayList<>(shardFieldNames.size());
+        for (int i = 0; i < shardFieldNames.size(); i++) {
+            assigned.add(new LinkedHashMap<>());
+        }
+        Set<String> targetTerms = new HashSet<>();
+        for (Map.Entry<String, String> target : targetFields.entrySet()) {
+            targetTerms.clear();
+            addTerms(target.getKey(), targetTerms);
+            addTerms(target.getValue(), targetTerms);
+            boolean matched = false;
+            for (int shard = 0; shard < shardTerms.size(); shard++) {
+                if (!disjoint(targetTerms, shardTerms.get(shard))) {
+                    assigned.get(shard).put(target.getKey(), target.getValue());
+                    matched = true;
+                }
+            }
+            if (!matched) {
+                for (Map<String, String> fields : assigned) {
+                    fields.put(target.getKey(), target.getValue());
+                }
+            }
+        }
+        return assigned;
+    }
+
+    /**
+     * Merge the mapped records of every shard into one record
+     * Each value is weighted by its record's confidence_level, or the shard's
+     * confidence when the record has none; the merged confidence_level is the
+     * average confidence of the values that were kept
+     *
+     * @param shardRecords     mapped records (JSON objects) of each shard
+     * @param shardConfidences confidence of each shard, null if unknown
+     */
+    public static Merged merge(List<List<String>> shardRecords, List<Double> shardConfidences, ObjectMapper mapper)
+            throws IOException {
+        Map<String, JsonNode> values = new LinkedHashMap<>();
+        Map<String, Double> valueConfidences = new HashMap<>();
+        double shardTotal = 0;
+        int shardCount = 0;
+
+        for (int shard = 0; shard < shardRecords.size(); shard++) {
+            Double shardConfidence = shardConfidences.get(shard);
+            if (shardConfidence != null) {
+                shardTotal += shardConfidence;
+                shardCount++;
+            }
+            for (String json : shardRecords.get(shard)) {
+                JsonNode record = mapper.readTree(json);
+                if (!record.isObject()) {
+                    continue;
+                }
+                JsonNode recordConfidence = record.get(CONFIDENCE_FIELD);
+                double confidence = recordConfidence != null && recordConfidence.isNumber()
+                        ? recordConfidence.asDouble()
+                        : shardConfidence != null ? shardConfidence : IntelliMapConfig.DEFAULT_CONFIDENCE_SCORE;
+
+                Iterator<Map.Entry<String, JsonNode>> fields = record.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    String name = field.getKey();
+                    JsonNode value = field.getValue();
+                    if (CONFIDENCE_FIELD.equals(name)) {
+                        continue;
+                    }
+                    JsonNode current = values.get(name);
+                    boolean better = current == null
+                            || (current.isNull() && !value.isNull())
+                            || (!value.isNull() && confidence > valueConfidences.get(name));
+                    if (better) {
+                        values.put(name, value);
+                        valueConfidences.put(name, confidence);
+                    }
+                }
+            }
+        }
+
+        if (values.isEmpty()) {
+            return new Merged(null, shardCount > 0 ? shardTotal / shardCount : null);
+        }
+        double total = 0;
+        int counted = 0;
+        ObjectNode merged = mapper.createObjectNode();
+        for (Map.Entry<String, JsonNode> value : values.entrySet()) {
+            merged.set(value.getKey(), value.getValue());
+            if (!value.getValue().isNull()) {
+                total += valueConfidences.get(value.getKey());
+                counted++;
+            }
+        }
+        Double confidence = counted > 0 ? total / counted : shardCount > 0 ? shardTotal / shardCount : null;
+        if (confidence != null) {
+            merged.put(CONFIDENCE_FIELD, Math.round(confidence * 100) / 100.0);
+        }
+        return new Merged(mapper.writeValueAsString(merged), confidence);
+    }
+
+    /**
+     * Lower-case words of a field name, split at separators and camelCase;
+     * numbers, single letters and stop words are left out
+     */
+    private static void addTerms(String name, Set<String> terms) {
+        if (name == null) {
+            return;
+        }
+        int start = -1;
+        for (int i = 0; i <= name.length(); i++) {
+            char c = i < name.length() ? name.charAt(i) : ' ';
+            boolean boundary = !Character.isLetter(c)
+                    || (i > 0 && Character.isUpperCase(c) && Character.isLowerCase(name.charAt(i - 1)));
+            if (boundary && start >= 0) {
+                String term = name.substring(start, i).toLowerCase();
+                if (term.length() > 1 && !STOP_WORDS.contains(term)) {
+                    terms.add(term);
+                }
+                start = -1;
+            }
+            if (Character.isLetter(c) && start < 0) {
+                start = i;
+            }
+        }
+    }
+
+    private static boolean disjoint(Set<String> a, Set<String> b) {
+        for (String term : a) {
+            if (b.contains(term)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * One merged record and its combined confidence
+     */
+    public static final class Merged {
+        private final String json;
+        private final Double confidence;
+
+        Merged(String json, Double confidence) {
+            this.json = json;
+            this.confidence = confidence;
+        }
+
+        /**
+         * @return the merged record, or null if no shard returned any field
+         */
+        public String getJson() {
+            return json;
+        }
+
+        public Double getConfidence() {
+            return confidence;
+        }
+    }
+}
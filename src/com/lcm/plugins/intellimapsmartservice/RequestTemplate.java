@@ -0,0 +1,208 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+/**
+ * Pre-compiled chat completion request for one (userPrompt, targetFields) pair
+ * Holds the parsed target fields, the system prompt and the JSON-escaped bytes
+ * of everything around the record payload, so building a request only has to
+ * escape the record itself. With structured output the suffix also carries a
+ * response_format JSON schema generated from the target fields. The token
+ * count of the fixed prompt is counted once, so sizing a request only counts
+ * the record
+ */
+public final class RequestTemplate {
+
+    private static final ConcurrentHashMap<String, RequestTemplate> compiledTemplates = new ConcurrentHashMap<>();
+    private static final JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+    private static final String CONFIDENCE_FIELD = "confidence_level";
+    private static final String SCHEMA_NAME = "mapped_records";
+    // Chat format tokens around the two messages and the reply priming
+    private static final int MESSAGE_OVERHEAD_TOKENS = 9;
+    private static final String SINGLE_RECORD_LABEL = "InputDictionary:\n";
+    private static final String BATCH_LABEL = "InputRecords:\n";
+
+    private final Map<String, String> targetFields;
+    private final String systemPrompt;
+    private final byte[] singleRecordPrefix;
+    private final byte[] batchPrefix;
+    // Indexed by [batched][streamed]
+    private final byte[][][] suffixes = new byte[2][2][];
+    private final boolean structuredOutput;
+    // Indexed by [batched]
+    private final int[] promptTokens = new int[2];
+
+    public RequestTemplate(Map<String, String> targetFields, String systemPrompt, String batchInstructions) {
+        this(targetFields, systemPrompt, batchInstructions, false);
+    }
+
+    /**
+     * @param structuredOutput send a strict response_format JSON schema of
+     *                         {"result": [mapped records]} built from the target
+     *                         fields
+     */
+    public RequestTemplate(Map<String, String> targetFields, String systemPrompt, String batchInstructions,
+            boolean structuredOutput) {
+        this.targetFields = Collections.unmodifiableMap(targetFields);
+        this.systemPrompt = systemPrompt;
+        this.structuredOutput = structuredOutput;
+        this.singleRecordPrefix = buildPrefix(systemPrompt, SINGLE_RECORD_LABEL);
+        this.batchPrefix = buildPrefix(systemPrompt + batchInstructions, BATCH_LABEL);
+        int systemTokens = TokenCounter.count(systemPrompt) + MESSAGE_OVERHEAD_TOKENS;
+        promptTokens[0] = systemTokens + TokenCounter.count(SINGLE_RECORD_LABEL);
+        promptTokens[1] = systemTokens + TokenCounter.count(batchInstructions) + TokenCounter.count(BATCH_LABEL);
+        String parameters = "\"}],\"max_tokens\":" + IntelliMapConfig.MAX_TOKENS
+                + ",\"temperature\":" + IntelliMapConfig.TEMPERATURE;
+        for (int batched = 0; batched < 2; batched++) {
+            String schema = structuredOutput ? buildResponseFormat(targetFields.keySet(), batched == 1) : null;
+            String responseFormat = schema != null ? ",\"response_format\":" + schema : "";
+            promptTokens[batched] += TokenCounter.count(schema);
+            suffixes[batched][0] = (parameters + responseFormat + "}").getBytes(StandardCharsets.UTF_8);
+            suffixes[batched][1] = (parameters + responseFormat + ",\"stream\":true}")
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Get a previously compiled template, or null if there is none
+     */
+    public static RequestTemplate lookup(String key) {
+        return compiledTemplates.get(key);
+    }
+
+    /**
+     * Keep a compiled template for later invocations with the same prompt and
+     * target fields
+     */
+    public static RequestTemplate register(String key, RequestTemplate template) {
+        if (compiledTemplates.size() >= IntelliMapConfig.MAX_COMPILED_TEMPLATES) {
+            compiledTemplates.clear();
+        }
+        RequestTemplate existing = compiledTemplates.putIfAbsent(key, template);
+        return existing != null ? existing : template;
+    }
+
+    /**
+     * Build the template cache key from the raw user prompt and target fields
+     * value (a list or array of field strings)
+     */
+    public static String cacheKey(String userPrompt, Object targetFieldsValue, boolean structuredOutput) {
+        StringBuilder key = new StringBuilder(userPrompt != null ? userPrompt : "").append('\u0000')
+                .append(structuredOutput ? 'S' : 'P').append('\u0000');
+        if (targetFieldsValue instanceof List) {
+            for (Object field : (List<?>) targetFieldsValue) {
+                key.append(field).append('\u0001');
+            }
+        } else if (targetFieldsValue instanceof Object[]) {
+            for (Object field : (Object[]) targetFieldsValue) {
+                key.append(field).append('\u0001');
+            }
+        } else {
+            key.append(targetFieldsValue);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Build the full request body for one record (or batch of records)
+     */
+    public byte[] buildRequestBody(String inputData, boolean batched) {
+        return buildRequestBody(inputData, batched, false);
+    }
+
+    /**
+     * Build the full request body, asking for server-sent events when streamed
+     */
+    public byte[] buildRequestBody(String inputData, boolean batched, boolean streamed) {
+        byte[] prefix = batched ? batchPrefix : singleRecordPrefix;
+        byte[] suffix = suffixes[batched ? 1 : 0][streamed ? 1 : 0];
+        byte[] payload = encoder.quoteAsUTF8(inputData != null ? inputData : "{}");
+        byte[] body = new byte[prefix.length + payload.length + suffix.length];
+        System.arraycopy(prefix, 0, body, 0, prefix.length);
+        System.arraycopy(payload, 0, body, prefix.length, payload.length);
+        System.arraycopy(suffix, 0, body, prefix.length + payload.length, suffix.length);
+        return body;
+    }
+
+    /**
+     * Upper bound on the prompt tokens of a request: the fixed prompt counted
+     * when the template was compiled plus the record payload
+     */
+    public int estimatePromptTokens(String inputData, boolean batched) {
+        return promptTokens[batched ? 1 : 0] + TokenCounter.count(inputData != null ? inputData : "{}");
+    }
+
+    public Map<String, String> getTargetFields() {
+        return targetFields;
+    }
+
+    public String getSystemPrompt() {
+        return systemPrompt;
+    }
+
+    /**
+     * Check whether responses are constrained to the generated JSON schema
+     */
+    public boolean isStructuredOutput() {
+        return structuredOutput;
+    }
+
+    /**
+     * Build a strict json_schema response_format: an object with a "result"
+     * array of records holding every target field (string or null),
+     * confidence_level and, for batches, the record ID
+     */
+    static String buildResponseFormat(Collection<String> fieldNames, boolean batched) {
+        Set<String> properties = new LinkedHashSet<>(fieldNames);
+        properties.remove(CONFIDENCE_FIELD);
+        if (batched) {
+            properties.remove(IntelliMapConfig.BATCH_RECORD_ID_KEY);
+        }
+
+        StringBuilder record = new StringBuilder("{\"type\":\"object\",\"properties\":{");
+        StringBuilder required = new StringBuilder();
+        if (batched) {
+            appendProperty(record, required, IntelliMapConfig.BATCH_RECORD_ID_KEY, "{\"type\":\"string\"}");
+        }
+        for (String field : properties) {
+            appendProperty(record, required, field, "{\"type\":[\"string\",\"null\"]}");
+        }
+        appendProperty(record, required, CONFIDENCE_FIELD, "{\"type\":\"number\"}");
+        record.append("},\"required\":[").append(required).append("],\"additionalProperties\":false}");
+
+        return "{\"type\":\"json_schema\",\"json_schema\":{\"name\":\"" + SCHEMA_NAME + "\",\"strict\":true,"
+                + "\"schema\":{\"type\":\"object\",\"properties\":{\"result\":{\"type\":\"array\",\"items\":"
+                + record + "}},\"required\":[\"result\"],\"additionalProperties\":false}}}";
+    }
+
+    private static void appendProperty(StringBuilder properties, StringBuilder required, String name,
+            String schema) {
+        if (required.length() > 0) {
+            properties.append(',');
+            required.append(',');
+        }
+        properties.append('"');
+        encoder.quoteAsString(name, properties);
+        properties.append("\":").append(schema);
+        required.append('"');
+        encoder.quoteAsString(name, required);
+        required.append('"');
+    }
+
+    private static byte[] buildPrefix(String systemPrompt, String userContentLabel) {
+        StringBuilder prefix = new StringBuilder("{\"messages\":[{\"role\":\"system\",\"content\":\"");
+        encoder.quoteAsString(systemPrompt, prefix);
+        prefix.append("\"},{\"role\":\"user\",\"content\":\"");
+        encoder.quoteAsString(userContentLabel, prefix);
+        return prefix.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
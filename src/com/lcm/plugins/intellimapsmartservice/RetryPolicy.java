@@ -0,0 +1,146 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retry policy for Azure OpenAI calls
+ * Classifies failures as retriable or not, spaces retries with decorrelated
+ * jitter and limits retries JVM-wide with a budget that is refilled by first
+ * attempts, so retries cannot multiply the load during an outage
+ */
+public class RetryPolicy {
+
+    private static final Object sharedLock = new Object();
+    private static RetryPolicy shared;
+
+    private final long baseDelayNanos;
+    private final long maxDelayNanos;
+    private final double budgetRatio;
+    private final double budgetMaxBalance;
+    private final double budgetMinPerSecond;
+
+    private double balance;
+    private long lastRefillNanos;
+    private long retriesAllowed;
+    private long retriesRejected;
+
+    public RetryPolicy() {
+        this(IntelliMapConfig.RETRY_BASE_DELAY.toNanos(), IntelliMapConfig.RETRY_MAX_DELAY.toNanos(),
+                IntelliMapConfig.RETRY_BUDGET_RATIO, IntelliMapConfig.RETRY_BUDGET_MAX_BALANCE,
+                IntelliMapConfig.RETRY_BUDGET_MIN_PER_SECOND);
+    }
+
+    public RetryPolicy(long baseDelayNanos, long maxDelayNanos, double budgetRatio, double budgetMaxBalance,
+            double budgetMinPerSecond) {
+        this.baseDelayNanos = baseDelayNanos;
+        this.maxDelayNanos = maxDelayNanos;
+        this.budgetRatio = budgetRatio;
+        this.budgetMaxBalance = budgetMaxBalance;
+        this.budgetMinPerSecond = budgetMinPerSecond;
+        this.balance = budgetMaxBalance;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Get the JVM-wide policy shared by every IntelliMap invocation
+     */
+    public static RetryPolicy shared() {
+        synchronized (sharedLock) {
+            if (shared == null) {
+                shared = new RetryPolicy();
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * Check whether a failed call may succeed if tried again
+     * 429, 408 and 5xx responses and network errors (including timeouts) are
+     * retriable; other 4xx responses and local errors are not
+     */
+    public static boolean isRetriable(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OpenAIStatusException) {
+                int status = ((OpenAIStatusException) cause).getStatusCode();
+                return status == 429 || status == 408 || status >= 500;
+            }
+            if (cause instanceof InterruptedException) {
+                return false;
+            }
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the delay the service asked for before retrying, or -1 if it did not
+     * ask for one
+     */
+    public static long serverDelayNanos(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OpenAIStatusException) {
+                return ((OpenAIStatusException) cause).getRetryAfterNanos();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Count a first attempt, which earns a fraction of a retry
+     */
+    public synchronized void recordRequest() {
+        refill();
+        balance = Math.min(budgetMaxBalance, balance + budgetRatio);
+    }
+
+    /**
+     * Take one retry from the budget
+     *
+     * @return false if the budget is exhausted and the call should fail instead
+     */
+    public synchronized boolean tryAcquireRetry() {
+        refill();
+        if (balance >= 1.0) {
+            balance -= 1.0;
+            retriesAllowed++;
+            return true;
+        }
+        retriesRejected++;
+        return false;
+    }
+
+    /**
+     * Next delay using decorrelated jitter: a random value between the base delay
+     * and three times the previous delay, capped at the maximum
+     *
+     * @param previousDelayNanos the previous delay, or 0 before the first retry
+     */
+    public long nextDelayNanos(long previousDelayNanos) {
+        long upper = Math.max(baseDelayNanos + 1, Math.min(maxDelayNanos, previousDelayNanos * 3));
+        return Math.min(maxDelayNanos, ThreadLocalRandom.current().nextLong(baseDelayNanos, upper));
+    }
+
+    public long getMaxDelayNanos() {
+        return maxDelayNanos;
+    }
+
+    /**
+     * Summary of the retry budget for logging
+     */
+    public synchronized String getStats() {
+        refill();
+        return "budget=" + String.format("%.1f", balance) + ", retries=" + retriesAllowed
+                + ", rejected=" + retriesRejected;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double seconds = (now - lastRefillNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        lastRefillNanos = now;
+        balance = Math.min(budgetMaxBalance, balance + seconds * budgetMinPerSecond);
+    }
+}
@@ -0,0 +1,312 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import javax.net.ssl.SSLSession;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads a streamed (stream=true) chat completion from its server-sent events
+ * Content deltas are assembled as they arrive, and every mapped record is
+ * handed to a listener as soon as its JSON object closes. If the deadline
+ * passes first, the content is cut back to the records that were complete
+ */
+public final class StreamingChatCompletion {
+
+    /**
+     * finish_reason reported when the deadline cut the response short
+     */
+    public static final String DEADLINE_FINISH_REASON = "deadline";
+
+    private final Consumer<String> recordListener;
+    private final StringBuilder content = new StringBuilder();
+
+    // Incremental scan of the content for complete record objects
+    private final StringBuilder openBrackets = new StringBuilder();
+    private boolean inString;
+    private boolean escaped;
+    private int recordArrayDepth = -1;
+    private int recordStart = -1;
+    private int completeEnd = -1;
+    private String bracketsAtCompleteEnd = "";
+    private int recordCount;
+
+    private String finishReason;
+    private volatile boolean deadlineReached;
+
+    private StreamingChatCompletion(Consumer<String> recordListener) {
+        this.recordListener = recordListener;
+    }
+
+    /**
+     * Read the event stream until [DONE], the end of the stream or the deadline
+     *
+     * @param deadlineNanos  System.nanoTime() by which reading stops
+     * @param recordListener receives each record's JSON as soon as it is
+     *                       complete; may be null
+     */
+    public static StreamingChatCompletion read(InputStream events, long deadlineNanos, Consumer<String> recordListener,
+            JsonFactory jsonFactory) throws IOException {
+        StreamingChatCompletion completion = new StreamingChatCompletion(recordListener);
+        // Timed out on the JDK's shared delay scheduler, so no timer thread is kept here
+        CompletableFuture<Void> deadline = new CompletableFuture<>();
+        deadline.orTimeout(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS)
+                .whenComplete((ignored, error) -> {
+                    if (error instanceof TimeoutException) {
+                        completion.deadlineReached = true;
+                        try {
+                            events.close();
+                        } catch (IOException e) {
+                            // Closing only unblocks the reader
+                        }
+                    }
+                });
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(events, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("data:")) {
+                    continue;
+                }
+                String data = line.substring(5).trim();
+                if ("[DONE]".equals(data)) {
+                    break;
+                }
+                if (!data.isEmpty()) {
+                    completion.onEvent(data, jsonFactory);
+                }
+            }
+        } catch (IOException e) {
+            if (!completion.deadlineReached) {
+                throw e;
+            }
+        } finally {
+            deadline.complete(null);
+        }
+        if (completion.deadlineReached && completion.finishReason == null) {
+            completion.finishReason = DEADLINE_FINISH_REASON;
+        }
+        return completion;
+    }
+
+    /**
+     * The assembled message content; after a deadline only the complete records
+     * are kept, closed into valid JSON
+     */
+    public String getContent() {
+        if (!DEADLINE_FINISH_REASON.equals(finishReason)) {
+            return content.toString();
+        }
+        if (completeEnd < 0) {
+            return "[]";
+        }
+        StringBuilder truncated = new StringBuilder(completeEnd + bracketsAtCompleteEnd.length());
+        truncated.append(content, 0, completeEnd);
+        for (int i = bracketsAtCompleteEnd.length() - 1; i >= 0; i--) {
+            truncated.append(bracketsAtCompleteEnd.charAt(i) == '[' ? ']' : '}');
+        }
+        return truncated.toString();
+    }
+
+    public String getFinishReason() {
+        return finishReason;
+    }
+
+    public boolean isDeadlineReached() {
+        return DEADLINE_FINISH_REASON.equals(finishReason);
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Wrap a response so its body is the given string, keeping status and headers
+     *
+     * @param firstByteNanos time from sending the request to its response headers
+     */
+    public static StreamedResponse withBody(HttpResponse<?> response, String body, long firstByteNanos) {
+        return new StreamedResponse(response, body, firstByteNanos);
+    }
+
+    private void onEvent(String data, JsonFactory jsonFactory) throws IOException {
+        // Only choices[0].delta.content and choices[0].finish_reason matter
+        try (JsonParser parser = jsonFactory.createParser(data)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("choices".equals(field) && value == JsonToken.START_ARRAY) {
+                    if (parser.nextToken() == JsonToken.START_OBJECT) {
+                        readChoice(parser);
+                    }
+                    while (parser.currentToken() != JsonToken.END_ARRAY && parser.nextToken() != null) {
+                        parser.skipChildren();
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private void readChoice(JsonParser parser) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("delta".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String deltaField = parser.currentName();
+                    JsonToken deltaValue = parser.nextToken();
+                    if ("content".equals(deltaField) && deltaValue == JsonToken.VALUE_STRING) {
+                        append(parser.getText());
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else if ("finish_reason".equals(field) && value == JsonToken.VALUE_STRING) {
+                finishReason = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Append a content delta and emit every record object it completes
+     * Records are the objects directly inside the first array, or the top-level
+     * object when the content has no array
+     */
+    private void append(String delta) {
+        int offset = content.length();
+        content.append(delta);
+        for (int i = offset; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    inString = false;
+                }
+                continue;
+            }
+            if (c == '"' && openBrackets.length() > 0) {
+                inString = true;
+            } else if (c == '[' || c == '{') {
+                openBrackets.append(c);
+                if (c == '[' && recordArrayDepth < 0) {
+                    recordArrayDepth = openBrackets.length();
+                } else if (c == '{' && isRecordStart()) {
+                    recordStart = i;
+                }
+            } else if ((c == ']' || c == '}') && openBrackets.length() > 0) {
+                openBrackets.setLength(openBrackets.length() - 1);
+                if (c == '}' && recordStart >= 0 && isRecordEnd()) {
+                    emitRecord(recordStart, i + 1);
+                    recordStart = -1;
+                }
+            }
+        }
+    }
+
+    private boolean isRecordStart() {
+        int depth = openBrackets.length();
+        return recordArrayDepth > 0 ? depth == recordArrayDepth + 1 : depth == 1;
+    }
+
+    private boolean isRecordEnd() {
+        int depth = openBrackets.length();
+        return recordArrayDepth > 0 ? depth == recordArrayDepth : depth == 0;
+    }
+
+    private void emitRecord(int start, int end) {
+        recordCount++;
+        completeEnd = end;
+        bracketsAtCompleteEnd = openBrackets.toString();
+        if (recordListener != null) {
+            recordListener.accept(content.substring(start, end));
+        }
+    }
+
+    /**
+     * A streamed response with its assembled body and time to first byte
+     * A streamed call lasts as long as its output takes to generate, so its
+     * latency is judged by when the response started instead
+     */
+    public static final class StreamedResponse implements HttpResponse<String> {
+        private final HttpResponse<?> response;
+        private final String body;
+        private final long firstByteNanos;
+
+        StreamedResponse(HttpResponse<?> response, String body, long firstByteNanos) {
+            this.response = response;
+            this.body = body;
+            this.firstByteNanos = firstByteNanos;
+        }
+
+        public long getFirstByteNanos() {
+            return firstByteNanos;
+        }
+
+        @Override
+        public int statusCode() {
+            return response.statusCode();
+        }
+
+        @Override
+        public HttpRequest request() {
+            return response.request();
+        }
+
+        @Override
+        public Optional<HttpResponse<String>> previousResponse() {
+            return Optional.empty();
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return response.headers();
+        }
+
+        @Override
+        public String body() {
+            return body;
+        }
+
+        @Override
+        public Optional<SSLSession> sslSession() {
+            return response.sslSession();
+        }
+
+        @Override
+        public URI uri() {
+            return response.uri();
+        }
+
+        @Override
+        public HttpClient.Version version() {
+            return response.version();
+        }
+    }
+}
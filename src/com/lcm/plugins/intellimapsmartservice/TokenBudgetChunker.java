@@ -0,0 +1,132 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Packs items into as few chunks as possible by their measured token size
+ * First-fit decreasing: items are placed largest first into the first chunk
+ * with room left, and each chunk keeps its items in input order. An item larger
+ * than the budget gets a chunk of its own, so nothing is ever dropped
+ */
+public final class TokenBudgetChunker {
+
+    private TokenBudgetChunker() {
+    }
+
+    /**
+     * Pack items with the given token sizes into chunks of at most budget tokens
+     *
+     * @return the chunks, each holding indexes into itemTokens in ascending order
+     */
+    public static Plan pack(int[] itemTokens, int budget) {
+        int count = itemTokens.length;
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(itemTokens[b], itemTokens[a]));
+
+        List<List<Integer>> members = new ArrayList<>();
+        List<Integer> remaining = new ArrayList<>();
+        int oversized = 0;
+        long totalTokens = 0;
+        for (int item : order) {
+            int tokens = Math.max(0, itemTokens[item]);
+            totalTokens += tokens;
+            int target = -1;
+            if (tokens <= budget) {
+                for (int c = 0; c < members.size(); c++) {
+                    if (remaining.get(c) >= tokens) {
+                        target = c;
+                        break;
+                    }
+                }
+            } else {
+                oversized++;
+            }
+            if (target < 0) {
+                members.add(new ArrayList<>());
+                remaining.add(budget);
+                target = members.size() - 1;
+            }
+            members.get(target).add(item);
+            remaining.set(target, remaining.get(target) - tokens);
+        }
+
+        // Chunks follow the input order of their first item
+        List<Chunk> chunks = new ArrayList<>(members.size());
+        for (int c = 0; c < members.size(); c++) {
+            int[] items = members.get(c).stream().mapToInt(Integer::intValue).sorted().toArray();
+            chunks.add(new Chunk(items, budget - remaining.get(c)));
+        }
+        chunks.sort((a, b) -> Integer.compare(a.items[0], b.items[0]));
+        return new Plan(chunks, budget, totalTokens, oversized);
+    }
+
+    /**
+     * One chunk: the indexes of its items and their total tokens
+     */
+    public static final class Chunk {
+        private final int[] items;
+        private final int tokens;
+
+        Chunk(int[] items, int tokens) {
+            this.items = items;
+            this.tokens = tokens;
+        }
+
+        public int[] getItems() {
+            return items;
+        }
+
+        public int getTokens() {
+            return tokens;
+        }
+    }
+
+    /**
+     * The chunks for one set of items, with how full they are on average
+     */
+    public static final class Plan {
+        private final List<Chunk> chunks;
+        private final int budget;
+        private final long totalTokens;
+        private final int oversizedItems;
+
+        Plan(List<Chunk> chunks, int budget, long totalTokens, int oversizedItems) {
+            this.chunks = Collections.unmodifiableList(chunks);
+            this.budget = budget;
+            this.totalTokens = totalTokens;
+            this.oversizedItems = oversizedItems;
+        }
+
+        public List<Chunk> getChunks() {
+            return chunks;
+        }
+
+        public int getChunkCount() {
+            return chunks.size();
+        }
+
+        /**
+         * Tokens packed divided by the budget of every chunk; oversized items can
+         * push this above 1
+         */
+        public double getFillRatio() {
+            return chunks.isEmpty() ? 0 : (double) totalTokens / ((long) budget * chunks.size());
+        }
+
+        public int getOversizedItems() {
+            return oversizedItems;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d chunks, %d tokens, %.0f%% fill%s", chunks.size(), totalTokens,
+                    getFillRatio() * 100, oversizedItems > 0 ? ", " + oversizedItems + " over budget" : "");
+        }
+    }
+}
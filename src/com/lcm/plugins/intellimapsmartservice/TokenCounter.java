@@ -0,0 +1,57 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+/**
+ * Upper bound on the tokens a byte-level BPE tokenizer (cl100k, o200k) needs
+ * for a text
+ * Every byte of the UTF-8 encoding is a token of its own and merges only ever
+ * join tokens, so each pre-tokenizer piece takes at most as many tokens as it
+ * has bytes, and the whole text at most its UTF-8 length. This is not an
+ * estimate of the real count: English and JSON usually take three to five
+ * bytes per token, and budgets in these units carry that headroom. No
+ * vocabulary ships with the plugin, so exact counts are not available offline
+ * Quotas counted in real tokens, like a deployment's tokens per minute, are
+ * charged with estimate() instead
+ */
+public final class TokenCounter {
+
+    private TokenCounter() {
+    }
+
+    /**
+     * Count the tokens the text can take at most, its UTF-8 length
+     */
+    public static int count(CharSequence text) {
+        if (text == null) {
+            return 0;
+        }
+        int length = text.length();
+        long bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                // Other BMP characters; a lone surrogate is charged the same
+                bytes += 3;
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    /**
+     * Estimate the real tokens behind an upper bound from count(), at
+     * TOKEN_ESTIMATE_BYTES_PER_TOKEN bytes per token rounded up
+     * English and JSON take three to five bytes per token, so this is close to
+     * or above the real count; usage reported by the service corrects it
+     */
+    public static int estimate(int upperBound) {
+        int bytesPerToken = IntelliMapConfig.TOKEN_ESTIMATE_BYTES_PER_TOKEN;
+        return (int) (((long) Math.max(0, upperBound) + bytesPerToken - 1) / bytesPerToken);
+    }
+}
@@ -0,0 +1,150 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.http.HttpHeaders;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+    private static final long LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    public void admitsUpToTheLimit() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 8);
+        assertTrue(limiter.acquire(Duration.ZERO));
+        assertTrue(limiter.acquire(Duration.ZERO));
+        assertFalse(limiter.acquire(Duration.ZERO));
+
+        limiter.releaseUnsent();
+        assertTrue(limiter.acquire(Duration.ZERO));
+        assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    public void growsWhileTheLimitIsUsedAndStopsAtTheMaximum() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 4);
+        for (int round = 0; round < 100; round++) {
+            int taken = 0;
+            while (limiter.acquire(Duration.ZERO)) {
+                taken++;
+            }
+            for (int i = 0; i < taken; i++) {
+                limiter.release(200, null, System.nanoTime(), LATENCY_NANOS);
+            }
+        }
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void doesNotGrowWhileIdle() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 8);
+        for (int i = 0; i < 50; i++) {
+            limiter.acquire(Duration.ZERO);
+            limiter.release(200, null, System.nanoTime(), LATENCY_NANOS);
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void shrinksOncePerWindowOfThrottledCalls() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(16, 1, 64);
+        long sent = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire(Duration.ZERO);
+        }
+        for (int i = 0; i < 4; i++) {
+            limiter.release(429, null, sent, LATENCY_NANOS);
+        }
+        assertEquals(8, limiter.getLimit());
+
+        // A call sent after the decrease is judged on its own
+        limiter.acquire(Duration.ZERO);
+        limiter.release(429, null, System.nanoTime(), LATENCY_NANOS);
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void shrinksOnTimeoutsButNotOtherFailures() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(16, 1, 64);
+        limiter.acquire(Duration.ZERO);
+        limiter.releaseFailed(false, System.nanoTime());
+        assertEquals(16, limiter.getLimit());
+
+        limiter.acquire(Duration.ZERO);
+        limiter.releaseFailed(true, System.nanoTime());
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    public void neverShrinksBelowTheMinimum() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 2, 8);
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire(Duration.ZERO);
+            limiter.release(503, null, System.nanoTime(), LATENCY_NANOS);
+        }
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void shrinksGentlyOnALatencySpike() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 64);
+        limiter.acquire(Duration.ZERO);
+        limiter.release(200, null, System.nanoTime(), LATENCY_NANOS);
+        assertEquals(10, limiter.getLimit());
+
+        limiter.acquire(Duration.ZERO);
+        limiter.release(200, null, System.nanoTime(), LATENCY_NANOS * 5);
+        assertEquals(9, limiter.getLimit());
+    }
+
+    @Test
+    public void pausesNewCallsForRetryAfter() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 8);
+        limiter.acquire(Duration.ZERO);
+        limiter.release(429, headers("retry-after-ms", "200"), System.nanoTime(), LATENCY_NANOS);
+        assertTrue(limiter.isBlocked());
+        assertFalse(limiter.acquire(Duration.ZERO));
+
+        long start = System.nanoTime();
+        assertTrue(limiter.acquire(Duration.ofSeconds(2)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+    }
+
+    @Test
+    public void stopsGrowingWhenTheQuotaIsNearlyUsed() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 8);
+        for (int round = 0; round < 20; round++) {
+            limiter.acquire(Duration.ZERO);
+            limiter.acquire(Duration.ZERO);
+            limiter.release(200, headers("x-ratelimit-remaining-tokens", "100"), System.nanoTime(), LATENCY_NANOS);
+            limiter.release(200, headers("x-ratelimit-remaining-tokens", "100"), System.nanoTime(), LATENCY_NANOS);
+        }
+        assertEquals(2, limiter.getLimit());
+        assertEquals(100, limiter.getRemainingTokens());
+    }
+
+    @Test
+    public void parsesRetryAfterForms() {
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1500),
+                AdaptiveConcurrencyLimiter.parseRetryAfterNanos(headers("retry-after-ms", "1500")));
+        assertEquals(TimeUnit.SECONDS.toNanos(3),
+                AdaptiveConcurrencyLimiter.parseRetryAfterNanos(headers("retry-after", "3")));
+        assertEquals(0, AdaptiveConcurrencyLimiter.parseRetryAfterNanos(
+                headers("retry-after", "Wed, 21 Oct 2015 07:28:00 GMT")));
+        assertEquals(-1, AdaptiveConcurrencyLimiter.parseRetryAfterNanos(headers("retry-after", "soon")));
+        assertEquals(-1, AdaptiveConcurrencyLimiter.parseRetryAfterNanos(null));
+    }
+
+    private static HttpHeaders headers(String name, String value) {
+        return HttpHeaders.of(Map.of(name, List.of(value)), (n, v) -> true);
+    }
+}
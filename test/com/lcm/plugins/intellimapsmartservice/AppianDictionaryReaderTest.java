@@ -0,0 +1,97 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.junit.jupiter.api.Test;
+
+public class AppianDictionaryReaderTest {
+
+    @Test
+    public void readsEveryRecord() {
+        List<Map<String, Object>> records = readAll("[*name:Bob, age:42]; [name:Al] [name:Cy],[name:Di]");
+        assertEquals(4, records.size());
+        assertEquals(record("name", "Bob", "age", "42"), records.get(0));
+        assertEquals(record("name", "Al"), records.get(1));
+        assertEquals(record("name", "Cy"), records.get(2));
+        assertEquals(record("name", "Di"), records.get(3));
+    }
+
+    @Test
+    public void treatsInchMarksAsPlainCharacters() {
+        List<Map<String, Object>> records = readAll("[*DOC_ID:1, DESC:PIPE 3/4\" STEEL, QTY:5]; "
+                + "[*DOC_ID:2, DESC:VALVE, QTY:7]; [*DOC_ID:3, DESC:ELBOW 1\" BRASS, QTY:2]");
+        assertEquals(3, records.size());
+        assertEquals(record("DOC_ID", "1", "DESC", "PIPE 3/4\" STEEL", "QTY", "5"), records.get(0));
+        assertEquals(record("DOC_ID", "2", "DESC", "VALVE", "QTY", "7"), records.get(1));
+        assertEquals(record("DOC_ID", "3", "DESC", "ELBOW 1\" BRASS", "QTY", "2"), records.get(2));
+    }
+
+    @Test
+    public void keepsSeparatorsInsideQuotedValues() {
+        List<Map<String, Object>> records = readAll("[note: \"a, b: [c]; d\", size: \"6\" x 4\"\", "
+                + "say: \"x\\\", y\"]; [\"id\": 2]");
+        assertEquals(2, records.size());
+        assertEquals(record("note", "\"a, b: [c]; d\"", "size", "\"6\" x 4\"\"", "say", "\"x\\\", y\""),
+                records.get(0));
+        assertEquals(record("\"id\"", "2"), records.get(1));
+    }
+
+    @Test
+    public void keepsNestedBracketsInOneValue() {
+        List<Map<String, Object>> records = readAll("[tags:[a, b], meta:{k:v, l:[1,\"]\"]}, n:1]");
+        assertEquals(1, records.size());
+        assertEquals(record("tags", "[a, b]", "meta", "{k:v, l:[1,\"]\"]}", "n", "1"), records.get(0));
+    }
+
+    @Test
+    public void readsNullsAndNamesWithoutValues() {
+        assertEquals(record("a", null, "b", null, "c", null), AppianDictionaryReader.readRecord("[a:null, b:, c]"));
+    }
+
+    @Test
+    public void readsASingleRecordWithOrWithoutBrackets() {
+        assertEquals(record("a", "1", "b", "2"), AppianDictionaryReader.readRecord("  [*a:1, b:2]  "));
+        assertEquals(record("a", "1", "b", "x]"), AppianDictionaryReader.readRecord("a:1, b:x]"));
+        assertTrue(AppianDictionaryReader.readRecord("  ").isEmpty());
+    }
+
+    @Test
+    public void skipsEmptyRecords() {
+        List<Map<String, Object>> records = readAll("[]; [ ]; [a:1]; ");
+        assertEquals(1, records.size());
+        assertFalse(new AppianDictionaryReader("no records").hasNext());
+        assertThrows(NoSuchElementException.class, () -> new AppianDictionaryReader("").next());
+    }
+
+    @Test
+    public void readsAnUnclosedLastRecord() {
+        List<Map<String, Object>> records = readAll("[a:1]; [b:2");
+        assertEquals(2, records.size());
+        assertEquals(record("b", "2"), records.get(1));
+        assertNull(records.get(0).get("b"));
+    }
+
+    private static List<Map<String, Object>> readAll(String input) {
+        List<Map<String, Object>> records = new ArrayList<>();
+        new AppianDictionaryReader(input).forEachRemaining(records::add);
+        return records;
+    }
+
+    private static Map<String, Object> record(Object... namesAndValues) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            record.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return record;
+    }
+}
@@ -0,0 +1,122 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ChatCompletionReaderTest {
+
+    private final JsonFactory jsonFactory = new ObjectMapper().getFactory();
+
+    @Test
+    public void readsTheFirstChoice() throws IOException {
+        ChatCompletionReader.Completion completion = ChatCompletionReader.readCompletion(
+                "{\"id\":\"x\",\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\"[1]\","
+                        + "\"tool_calls\":[]},\"finish_reason\":\"length\"},"
+                        + "{\"message\":{\"content\":\"second\"},\"finish_reason\":\"stop\"}],"
+                        + "\"usage\":{\"total_tokens\":3}}",
+                jsonFactory);
+        assertEquals("[1]", completion.getContent());
+        assertEquals("length", completion.getFinishReason());
+    }
+
+    @Test
+    public void leavesMissingPartsNull() throws IOException {
+        ChatCompletionReader.Completion completion = ChatCompletionReader.readCompletion(
+                "{\"choices\":[{\"message\":{\"content\":null},\"finish_reason\":null}]}", jsonFactory);
+        assertNull(completion.getContent());
+        assertNull(completion.getFinishReason());
+        assertNull(ChatCompletionReader.readCompletion("{\"choices\":[]}", jsonFactory).getContent());
+    }
+
+    @Test
+    public void rejectsAResponseThatIsNotAnObject() {
+        assertThrows(IOException.class, () -> ChatCompletionReader.readCompletion("[]", jsonFactory));
+    }
+
+    @Test
+    public void readsABareArrayOfRecords() throws IOException {
+        List<ChatCompletionReader.MappedRecord> records = ChatCompletionReader.readRecords(
+                "[{\"name\":\"A\",\"tags\":[1,{\"b\":null}]}, 5, \"text\", {\"name\":\"B\"}]", null, jsonFactory);
+        assertEquals(2, records.size());
+        assertEquals("{\"name\":\"A\",\"tags\":[1,{\"b\":null}]}", records.get(0).getJson());
+        assertEquals(2, records.get(0).getFieldCount());
+        assertEquals("{\"name\":\"B\"}", records.get(1).getJson());
+    }
+
+    @Test
+    public void readsTheResultWrapper() throws IOException {
+        List<ChatCompletionReader.MappedRecord> records = ChatCompletionReader.readRecords(
+                "{\"note\":{\"result\":[]},\"result\":[{\"name\":\"A\"}],\"after\":1}", null, jsonFactory);
+        assertEquals(1, records.size());
+        assertEquals("{\"name\":\"A\"}", records.get(0).getJson());
+    }
+
+    @Test
+    public void returnsNullWithoutARecordArray() throws IOException {
+        assertNull(ChatCompletionReader.readRecords("{\"result\":{\"name\":\"A\"}}", null, jsonFactory));
+        assertNull(ChatCompletionReader.readRecords("{\"records\":[]}", null, jsonFactory));
+        assertNull(ChatCompletionReader.readRecords("\"text\"", null, jsonFactory));
+    }
+
+    @Test
+    public void takesTheRecordIdOutOfTheJson() throws IOException {
+        List<ChatCompletionReader.MappedRecord> records = ChatCompletionReader.readRecords(
+                "[{\"record_id\":\"r1\",\"name\":\"A\"},{\"name\":\"B\",\"record_id\":7},"
+                        + "{\"record_id\":null,\"name\":\"C\"},{\"record_id\":{\"id\":1},\"name\":\"D\"},"
+                        + "{\"name\":\"E\"}]",
+                "record_id", jsonFactory);
+        assertEquals("r1", records.get(0).getRecordId());
+        assertEquals("{\"name\":\"A\"}", records.get(0).getJson());
+        assertEquals(1, records.get(0).getFieldCount());
+        assertEquals("7", records.get(1).getRecordId());
+        assertEquals("{\"name\":\"B\"}", records.get(1).getJson());
+        assertNull(records.get(2).getRecordId());
+        assertNull(records.get(3).getRecordId());
+        assertEquals("{\"name\":\"D\"}", records.get(3).getJson());
+        assertNull(records.get(4).getRecordId());
+    }
+
+    @Test
+    public void keepsTheRecordIdFieldWithoutAnIdField() throws IOException {
+        List<ChatCompletionReader.MappedRecord> records = ChatCompletionReader.readRecords(
+                "[{\"record_id\":\"r1\"}]", null, jsonFactory);
+        assertNull(records.get(0).getRecordId());
+        assertEquals("{\"record_id\":\"r1\"}", records.get(0).getJson());
+    }
+
+    @Test
+    public void averagesNumericAndTextConfidence() throws IOException {
+        assertEquals(80.0, average("[{\"a\":1,\"confidence_level\":70},{\"a\":2,\"confidence_level\":\" 90 \"}]"),
+                1e-9);
+    }
+
+    @Test
+    public void countsRecordsWithoutConfidenceAsSeventyFive() throws IOException {
+        assertEquals(85.0, average("[{\"a\":1},{\"a\":2,\"confidence_level\":95}]"), 1e-9);
+    }
+
+    @Test
+    public void leavesOutUnreadableConfidenceAndEmptyRecords() throws IOException {
+        assertEquals(60.0, average("[{\"a\":1,\"confidence_level\":\"high\"},{},{\"a\":3,\"confidence_level\":60},"
+                + "{\"a\":4,\"confidence_level\":null}]"), 1e-9);
+    }
+
+    @Test
+    public void fallsBackToTheDefaultConfidence() throws IOException {
+        assertEquals(IntelliMapConfig.DEFAULT_CONFIDENCE_SCORE, average("[]"), 1e-9);
+        assertEquals(IntelliMapConfig.DEFAULT_CONFIDENCE_SCORE, average("[{},{\"confidence_level\":\"?\"}]"), 1e-9);
+    }
+
+    private double average(String content) throws IOException {
+        return ChatCompletionReader.averageConfidence(ChatCompletionReader.readRecords(content, null, jsonFactory));
+    }
+}
@@ -0,0 +1,206 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class CircuitBreakerTest {
+
+    private static final long FAST_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long OPEN_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    public void staysClosedBelowTheMinimumCalls() {
+        CircuitBreaker breaker = breaker();
+        for (int i = 0; i < 4; i++) {
+            call(breaker, true, FAST_NANOS);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void opensOnTheFailureRate() {
+        CircuitBreaker breaker = breaker();
+        call(breaker, false, FAST_NANOS);
+        call(breaker, false, FAST_NANOS);
+        call(breaker, false, FAST_NANOS);
+        call(breaker, true, FAST_NANOS);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        call(breaker, true, FAST_NANOS);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        call(breaker, true, FAST_NANOS);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.isCallPermitted());
+        assertEquals(CircuitBreaker.NO_PERMISSION, breaker.tryAcquirePermission());
+        assertTrue(breaker.getRemainingOpenNanos() > 0);
+    }
+
+    @Test
+    public void opensOnTheSlowCallRate() {
+        CircuitBreaker breaker = breaker();
+        for (int i = 0; i < 5; i++) {
+            call(breaker, false, SLOW_NANOS);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void forgetsOutcomesOutsideTheWindow() {
+        CircuitBreaker breaker = breaker();
+        for (int i = 0; i < 6; i++) {
+            call(breaker, false, FAST_NANOS);
+        }
+        for (int i = 0; i < 4; i++) {
+            call(breaker, true, FAST_NANOS);
+        }
+        for (int i = 0; i < 10; i++) {
+            call(breaker, false, FAST_NANOS);
+        }
+        for (int i = 0; i < 4; i++) {
+            call(breaker, true, FAST_NANOS);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void closesAfterSuccessfulTrials() throws InterruptedException {
+        CircuitBreaker breaker = openBreaker();
+        TimeUnit.NANOSECONDS.sleep(OPEN_WAIT_NANOS);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.isCallPermitted());
+
+        // Two trial calls at a time
+        long first = acquire(breaker);
+        long second = acquire(breaker);
+        assertEquals(CircuitBreaker.NO_PERMISSION, breaker.tryAcquirePermission());
+
+        breaker.onSuccess(first, FAST_NANOS);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onSuccess(second, FAST_NANOS);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        // The failures from before the circuit opened are gone
+        call(breaker, true, FAST_NANOS);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void reopensWhenATrialFails() throws InterruptedException {
+        CircuitBreaker breaker = openBreaker();
+        TimeUnit.NANOSECONDS.sleep(OPEN_WAIT_NANOS);
+        breaker.onFailure(acquire(breaker), FAST_NANOS);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.NO_PERMISSION, breaker.tryAcquirePermission());
+    }
+
+    @Test
+    public void reopensWhenATrialIsSlow() throws InterruptedException {
+        CircuitBreaker breaker = openBreaker();
+        TimeUnit.NANOSECONDS.sleep(OPEN_WAIT_NANOS);
+        breaker.onSuccess(acquire(breaker), SLOW_NANOS);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void releasedTrialPermissionsCanBeTakenAgain() throws InterruptedException {
+        CircuitBreaker breaker = openBreaker();
+        TimeUnit.NANOSECONDS.sleep(OPEN_WAIT_NANOS);
+        long first = acquire(breaker);
+        acquire(breaker);
+        breaker.releasePermission(first);
+        acquire(breaker);
+        assertEquals(CircuitBreaker.NO_PERMISSION, breaker.tryAcquirePermission());
+    }
+
+    @Test
+    public void ignoresCallsThatStartedBeforeTheCircuitOpened() {
+        CircuitBreaker breaker = breaker();
+        long stale = acquire(breaker);
+        open(breaker);
+        breaker.onSuccess(stale, FAST_NANOS);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void callsFromBeforeHalfOpenAreNotTrials() throws InterruptedException {
+        CircuitBreaker breaker = breaker();
+        // Admitted while closed and still running when the circuit goes half-open
+        long slowSuccess = acquire(breaker);
+        long slowFailure = acquire(breaker);
+        long neverSent = acquire(breaker);
+        open(breaker);
+        TimeUnit.NANOSECONDS.sleep(OPEN_WAIT_NANOS);
+
+        long trial = acquire(breaker);
+        acquire(breaker);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        // Neither closes nor re-opens the circuit, nor frees a trial slot
+        breaker.onSuccess(slowSuccess, FAST_NANOS);
+        breaker.onSuccess(slowSuccess, FAST_NANOS);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onFailure(slowFailure, FAST_NANOS);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.releasePermission(neverSent);
+        assertEquals(CircuitBreaker.NO_PERMISSION, breaker.tryAcquirePermission());
+
+        breaker.releasePermission(trial);
+        acquire(breaker);
+    }
+
+    @Test
+    public void ignoresTrialsOnceTheCircuitHasClosed() throws InterruptedException {
+        CircuitBreaker breaker = openBreaker();
+        TimeUnit.NANOSECONDS.sleep(OPEN_WAIT_NANOS);
+        long first = acquire(breaker);
+        long second = acquire(breaker);
+        breaker.onSuccess(first, FAST_NANOS);
+        breaker.onSuccess(second, FAST_NANOS);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        // A trial reported twice does not count against the new window
+        for (int i = 0; i < 5; i++) {
+            breaker.onFailure(second, FAST_NANOS);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    private static CircuitBreaker breaker() {
+        // Window of 10 calls, at least 5, opens at 50% failed or slow, 2 trials
+        return new CircuitBreaker(10, 5, 0.5, 0.5, SLOW_NANOS, OPEN_WAIT_NANOS, 2);
+    }
+
+    private static CircuitBreaker openBreaker() {
+        CircuitBreaker breaker = breaker();
+        open(breaker);
+        return breaker;
+    }
+
+    private static void open(CircuitBreaker breaker) {
+        for (int i = 0; i < 5; i++) {
+            call(breaker, true, FAST_NANOS);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    private static long acquire(CircuitBreaker breaker) {
+        long permission = breaker.tryAcquirePermission();
+        assertTrue(permission != CircuitBreaker.NO_PERMISSION);
+        return permission;
+    }
+
+    private static void call(CircuitBreaker breaker, boolean failed, long durationNanos) {
+        long permission = acquire(breaker);
+        if (failed) {
+            breaker.onFailure(permission, durationNanos);
+        } else {
+            breaker.onSuccess(permission, durationNanos);
+        }
+    }
+}
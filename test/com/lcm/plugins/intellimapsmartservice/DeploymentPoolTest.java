@@ -0,0 +1,137 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class DeploymentPoolTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    // Breakers and limiters are JVM-wide per deployment, so every test uses its own endpoint
+    private final String endpoint = "https://pool-" + System.nanoTime() + ".openai.azure.com";
+    private final RateLimiter rateLimiter = new RateLimiter(1_000_000, 10_000_000, 1_000_000, Duration.ZERO);
+
+    @Test
+    public void fillsEntriesFromThePrimary() throws Exception {
+        DeploymentPool pool = DeploymentPool.parse(primary(), "[{\"deploymentName\":\"b\",\"weight\":2},"
+                + "{\"deploymentName\":\"c\",\"endpoint\":\"https://other.example.com\",\"tokensPerMinute\":5000}]",
+                mapper);
+        List<DeploymentTarget> targets = pool.getTargets();
+        assertEquals(3, pool.size());
+        assertSame(targets.get(0), pool.getPrimary());
+
+        DeploymentTarget b = targets.get(1);
+        assertEquals(endpoint, b.getEndpoint());
+        assertEquals("key", b.getApiKey());
+        assertEquals("2024-02-01", b.getApiVersion());
+        assertEquals(2.0, b.getWeight(), 0);
+        assertEquals(IntelliMapConfig.MAX_TOKENS_PER_MINUTE, b.getTokensPerMinute());
+
+        DeploymentTarget c = targets.get(2);
+        assertEquals("https://other.example.com", c.getEndpoint());
+        assertEquals(5000, c.getTokensPerMinute());
+    }
+
+    @Test
+    public void skipsDuplicatesAndZeroWeights() throws Exception {
+        DeploymentPool pool = DeploymentPool.parse(primary(), "[{\"deploymentName\":\"a\"},"
+                + "{\"deploymentName\":\"b\",\"endpoint\":\"" + endpoint + "/\"},{\"deploymentName\":\"b\"},"
+                + "{\"deploymentName\":\"c\",\"weight\":0}]", mapper);
+        assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void rejectsInvalidEntries() {
+        assertThrows(IllegalArgumentException.class, () -> DeploymentPool.parse(primary(), "{}", mapper));
+        assertThrows(IllegalArgumentException.class,
+                () -> DeploymentPool.parse(primary(), "[{\"weight\":1}]", mapper));
+        assertThrows(IllegalArgumentException.class,
+                () -> DeploymentPool.parse(primary(), "[{\"deploymentName\":\"b\",\"tokensPerMinute\":0}]", mapper));
+    }
+
+    @Test
+    public void fingerprintIgnoresOrderWeightAndKeys() throws Exception {
+        DeploymentPool one = DeploymentPool.parse(primary(),
+                "[{\"deploymentName\":\"b\",\"weight\":3},{\"deploymentName\":\"c\"}]", mapper);
+        DeploymentPool other = DeploymentPool.parse(primary(),
+                "[{\"deploymentName\":\"c\",\"apiKey\":\"other\"},{\"deploymentName\":\"b\"}]", mapper);
+        DeploymentPool smaller = DeploymentPool.parse(primary(), "[{\"deploymentName\":\"b\"}]", mapper);
+        assertEquals(one.getFingerprint(), other.getFingerprint());
+        assertNotEquals(one.getFingerprint(), smaller.getFingerprint());
+        assertNotEquals(smaller.getFingerprint(), DeploymentPool.parse(primary(), null, mapper).getFingerprint());
+    }
+
+    @Test
+    public void selectsInProportionToWeight() throws Exception {
+        DeploymentPool pool = DeploymentPool.parse(primary(), "[{\"deploymentName\":\"b\",\"weight\":3}]", mapper);
+        Map<DeploymentTarget, Integer> picks = new HashMap<>();
+        for (int i = 0; i < 4000; i++) {
+            picks.merge(pool.select(Set.of(), 100, rateLimiter), 1, Integer::sum);
+        }
+        int primaryPicks = picks.getOrDefault(pool.getPrimary(), 0);
+        assertTrue(primaryPicks > 700 && primaryPicks < 1300, "primary picked " + primaryPicks + " of 4000");
+    }
+
+    @Test
+    public void failsOverAwayFromExcludedAndOpenDeployments() throws Exception {
+        DeploymentPool pool = DeploymentPool.parse(primary(), "[{\"deploymentName\":\"b\"},{\"deploymentName\":\"c\"}]",
+                mapper);
+        DeploymentTarget a = pool.getTargets().get(0);
+        DeploymentTarget b = pool.getTargets().get(1);
+        DeploymentTarget c = pool.getTargets().get(2);
+
+        open(c.getCircuitBreaker());
+        for (int i = 0; i < 100; i++) {
+            assertSame(b, pool.select(Set.of(a), 100, rateLimiter));
+        }
+        assertTrue(pool.hasAlternative(Set.of(a)));
+        assertFalse(pool.hasAlternative(Set.of(a, b)));
+        assertNull(pool.select(Set.of(a, b), 100, rateLimiter));
+    }
+
+    @Test
+    public void prefersDeploymentsWithTokenQuotaLeft() throws Exception {
+        DeploymentPool pool = DeploymentPool.parse(primary(), "[{\"deploymentName\":\"b\",\"tokensPerMinute\":1000}]",
+                mapper);
+        DeploymentTarget a = pool.getTargets().get(0);
+        DeploymentTarget b = pool.getTargets().get(1);
+        rateLimiter.setTokensPerMinute(b.getKey(), b.getTokensPerMinute());
+
+        // b's quota is spent, a's is not
+        assertEquals(0, rateLimiter.tryAcquire(b.getKey(), 1000));
+        for (int i = 0; i < 100; i++) {
+            assertSame(a, pool.select(Set.of(), 500, rateLimiter));
+        }
+
+        // With every deployment waiting, the one free soonest is chosen
+        rateLimiter.setTokensPerMinute(a.getKey(), 1000);
+        assertEquals(0, rateLimiter.tryAcquire(a.getKey(), 1000));
+        rateLimiter.adjustTokens(a.getKey(), 500);
+        assertSame(b, pool.select(Set.of(), 500, rateLimiter));
+    }
+
+    private DeploymentTarget primary() {
+        return new DeploymentTarget(endpoint, "a", "key", "2024-02-01", 1.0);
+    }
+
+    private static void open(CircuitBreaker breaker) {
+        for (int i = 0; i < IntelliMapConfig.CIRCUIT_BREAKER_WINDOW_SIZE; i++) {
+            breaker.onFailure(breaker.tryAcquirePermission(), 1);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+}
@@ -0,0 +1,60 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class HttpClientRegistryTest {
+
+    @Test
+    public void cancellingSendAsyncAbortsTheExchange() throws Exception {
+        CountDownLatch received = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            // Reads the request, never answers and waits for the client to hang up
+            Thread peer = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    InputStream in = socket.getInputStream();
+                    int matched = 0;
+                    while (matched < 4) {
+                        int b = in.read();
+                        if (b < 0) {
+                            return;
+                        }
+                        matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : b == '\r' ? 1 : 0;
+                    }
+                    received.countDown();
+                    while (in.read() >= 0) {
+                        // Drain until the connection closes
+                    }
+                    closed.countDown();
+                } catch (IOException e) {
+                    closed.countDown();
+                }
+            });
+            peer.setDaemon(true);
+            peer.start();
+
+            String endpoint = "http://127.0.0.1:" + server.getLocalPort();
+            HttpRequest request = HttpRequest.newBuilder(URI.create(endpoint + "/slow")).GET().build();
+            CompletableFuture<HttpResponse<String>> exchange = HttpClientRegistry.sendAsync(endpoint, request,
+                    HttpResponse.BodyHandlers.ofString());
+            assertTrue(received.await(5, TimeUnit.SECONDS), "request reached the server");
+
+            exchange.cancel(true);
+            assertTrue(closed.await(5, TimeUnit.SECONDS), "connection closed after cancel");
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import com.lcm.plugins.intellimapsmartservice.InputFormatSniffer.Format;
+
+public class InputFormatSnifferTest {
+
+    @Test
+    public void detectsTheDictionaryMarker() {
+        assertEquals(Format.APPIAN_DICTIONARY, InputFormatSniffer.sniff("[*DOC_ID:1, NAME:\"x\"]"));
+        assertEquals(Format.APPIAN_DICTIONARY, InputFormatSniffer.sniff("  \n[*]"));
+    }
+
+    @Test
+    public void detectsSeveralBracketedRecords() {
+        assertEquals(Format.APPIAN_DICTIONARY, InputFormatSniffer.sniff("[\"a\", 1]; [\"b\", 2]"));
+        assertEquals(Format.APPIAN_DICTIONARY, InputFormatSniffer.sniff("[\"a\", 1];[\"b\", 2]"));
+        assertEquals(Format.APPIAN_DICTIONARY, InputFormatSniffer.sniff("[\"a\", 1] [\"b\", 2]"));
+        assertEquals(Format.APPIAN_DICTIONARY, InputFormatSniffer.sniff("[\"a\", 1],[\"b\", 2]"));
+    }
+
+    @Test
+    public void keepsNestedArraysAsJson() {
+        assertEquals(Format.JSON, InputFormatSniffer.sniff("[[1, 2], [3, 4]]"));
+        assertEquals(Format.JSON, InputFormatSniffer.sniff("[[\"a\"],[\"b\"]]"));
+    }
+
+    @Test
+    public void detectsUnquotedNamesBeforeAColon() {
+        assertEquals(Format.APPIAN_DICTIONARY, InputFormatSniffer.sniff("[a:1,b:2]"));
+        assertEquals(Format.APPIAN_DICTIONARY, InputFormatSniffer.sniff("[name: \"Ann\", age: 3]"));
+        assertEquals(Format.APPIAN_DICTIONARY, InputFormatSniffer.sniff("[1:2, 3:4]"));
+    }
+
+    @Test
+    public void ignoresColonsInsideJsonStrings() {
+        assertEquals(Format.JSON, InputFormatSniffer.sniff("[{\"url\": \"https://example.com:8080/a\"}]"));
+        assertEquals(Format.JSON, InputFormatSniffer.sniff("[\"a:b\", \"c: d\"]"));
+        assertEquals(Format.JSON, InputFormatSniffer.sniff("[{\"say\": \"x\\\"y: [z]; [w]\"}]"));
+    }
+
+    @Test
+    public void classifiesObjects() {
+        assertEquals(Format.JSON, InputFormatSniffer.sniff("{\"a\": {\"b\": [1]}}"));
+        assertEquals(Format.MALFORMED_JSON, InputFormatSniffer.sniff("{\"a\": 1"));
+        assertEquals(Format.MALFORMED_JSON, InputFormatSniffer.sniff("{}"));
+        assertEquals(Format.MALFORMED_JSON, InputFormatSniffer.sniff("{\"env\": Production}"));
+        assertEquals(Format.MALFORMED_JSON, InputFormatSniffer.sniff("[{\"a\": 1}"));
+    }
+
+    @Test
+    public void treatsEverythingElseAsKeyValueText() {
+        assertEquals(Format.KEY_VALUE, InputFormatSniffer.sniff("name=Ann, age=3"));
+        assertEquals(Format.KEY_VALUE, InputFormatSniffer.sniff("   "));
+        assertEquals(Format.KEY_VALUE, InputFormatSniffer.sniff(""));
+    }
+
+    @Test
+    public void looksForRecordSeparatorsOnlyInThePrefix() {
+        String padding = "x".repeat(IntelliMapConfig.FORMAT_SNIFF_PREFIX_CHARS);
+        assertEquals(Format.APPIAN_DICTIONARY, InputFormatSniffer.sniff("[\"a\"],[\"" + padding + "\"]"));
+        assertEquals(Format.JSON, InputFormatSniffer.sniff("[\"" + padding + "\"],[\"b\"]"));
+        assertEquals(Format.JSON, InputFormatSniffer.sniff("[{\"" + padding + "\":[1]}, {\"name\":2}]"));
+    }
+
+    @Test
+    public void scansLongJsonToTheEnd() {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 20_000; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"note\":\"a:b\"}");
+        }
+        assertEquals(Format.JSON, InputFormatSniffer.sniff(json.append(']')));
+        json.setLength(json.length() - 1);
+        assertEquals(Format.MALFORMED_JSON, InputFormatSniffer.sniff(json));
+    }
+}
@@ -0,0 +1,74 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class JsonRepairTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void keepsValidJson() throws IOException {
+        assertRepaired("[{\"a\":1,\"b\":[true,null,\"x\"]}]", "[{\"a\": 1, \"b\": [true, null, \"x\"]}]");
+    }
+
+    @Test
+    public void keepsCompleteRecordsOfATruncatedReply() throws IOException {
+        assertRepaired("[{\"a\":1},{\"a\":2}]", "[{\"a\":1},{\"a\":2},{\"a\":3");
+        assertRepaired("[{\"a\":1}]", "[{\"a\":1},{\"a\":2,\"b\":\"cut of");
+        assertRepaired("[{\"a\":1}]", "[{\"a\":1},");
+    }
+
+    @Test
+    public void givesUpWhenNoRecordIsComplete() {
+        assertNull(JsonRepair.repair("[{\"a\":1"));
+        assertNull(JsonRepair.repair("{\"a\": [1, 2"));
+    }
+
+    @Test
+    public void quotesUnquotedKeysAndValues() throws IOException {
+        assertRepaired("{\"name\":\"x\",\"age\":3}", "{name: \"x\", age: 3}");
+        assertRepaired("{\"a\":\"yes\",\"b\":null,\"c\":true,\"d\":-1.5e3}",
+                "{\"a\": yes, \"b\": null, \"c\": true, \"d\": -1.5e3}");
+    }
+
+    @Test
+    public void convertsSingleQuotesAndDropsTrailingCommas() throws IOException {
+        assertRepaired("[{\"full_name\":\"John\",\"confidence_level\":90}]",
+                "[{full_name: 'John', confidence_level: 90,},]");
+    }
+
+    @Test
+    public void skipsProseAndCodeFencesAndRestoresMissingCommas() throws IOException {
+        assertRepaired("[{\"a\":1},{\"a\":2}]", "Here you go:\n```json\n[{\"a\": 1} {\"a\": 2}]\n```\nThanks");
+    }
+
+    @Test
+    public void escapesRawControlCharactersInStrings() throws IOException {
+        assertRepaired("{\"a\":\"line\\nbreak\"}", "{\"a\": \"line\nbreak\"}");
+    }
+
+    @Test
+    public void fillsAMissingValueWithNull() throws IOException {
+        assertRepaired("{\"a\":null}", "{\"a\":}");
+    }
+
+    @Test
+    public void returnsNullWithoutJson() {
+        assertNull(JsonRepair.repair(null));
+        assertNull(JsonRepair.repair("no json here"));
+    }
+
+    private void assertRepaired(String expected, String reply) throws IOException {
+        String repaired = JsonRepair.repair(reply);
+        assertEquals(expected, repaired);
+        // Must also be strict JSON
+        mapper.readTree(repaired);
+    }
+}
@@ -0,0 +1,154 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PersistentMappingCacheTest {
+
+    private static final long MAX_LOG_BYTES = 64L * 1024 * 1024;
+    private static final Duration TTL = Duration.ofDays(1);
+
+    @Test
+    public void survivesReopen(@TempDir Path directory) throws IOException {
+        PersistentMappingCache cache = open(directory);
+        cache.put(key("a"), "{\"x\":1}");
+        cache.put(key("b"), "{\"x\":2}");
+        cache.put(key("a"), "{\"x\":3}");
+        cache.close();
+
+        cache = open(directory);
+        assertEquals("{\"x\":3}", cache.get(key("a")));
+        assertEquals("{\"x\":2}", cache.get(key("b")));
+        assertNull(cache.get(key("c")));
+        assertEquals(2, cache.size());
+        cache.close();
+    }
+
+    @Test
+    public void truncatesGarbageAfterTheLastRecord(@TempDir Path directory) throws IOException {
+        PersistentMappingCache cache = open(directory);
+        cache.put(key("a"), "first");
+        cache.put(key("b"), "second");
+        cache.close();
+
+        Path log = directory.resolve("mappings.log");
+        long intact = Files.size(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 9, 1, 2, 3 }));
+        }
+
+        cache = open(directory);
+        assertEquals(intact, Files.size(log));
+        assertEquals("first", cache.get(key("a")));
+        assertEquals("second", cache.get(key("b")));
+        cache.put(key("c"), "third");
+        cache.close();
+
+        cache = open(directory);
+        assertEquals("third", cache.get(key("c")));
+        cache.close();
+    }
+
+    @Test
+    public void dropsARecordTornMidWrite(@TempDir Path directory) throws IOException {
+        PersistentMappingCache cache = open(directory);
+        cache.put(key("a"), "first");
+        cache.close();
+        Path log = directory.resolve("mappings.log");
+        long beforeSecond = Files.size(log);
+
+        cache = open(directory);
+        cache.put(key("b"), "second");
+        cache.close();
+        // The index already covers the second record, which is now cut short
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(log) - 3);
+        }
+
+        cache = open(directory);
+        assertEquals(beforeSecond, Files.size(log));
+        assertEquals("first", cache.get(key("a")));
+        assertNull(cache.get(key("b")));
+        cache.put(key("b"), "again");
+        assertEquals("again", cache.get(key("b")));
+        cache.close();
+    }
+
+    @Test
+    public void rebuildsAMissingIndexFromTheLog(@TempDir Path directory) throws IOException {
+        PersistentMappingCache cache = open(directory);
+        for (int i = 0; i < 5000; i++) {
+            cache.put(key("key" + i), "value" + i);
+        }
+        cache.close();
+
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.idx")) {
+            for (Path file : files) {
+                Files.delete(file);
+                deleted++;
+            }
+        }
+        assertTrue(deleted > 0);
+
+        cache = open(directory);
+        assertEquals(5000, cache.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals("value" + i, cache.get(key("key" + i)));
+        }
+        cache.close();
+    }
+
+    @Test
+    public void opensReadOnlyWhileAnotherInstanceWrites(@TempDir Path directory) throws IOException {
+        PersistentMappingCache writer = open(directory);
+        writer.put(key("a"), "first");
+        PersistentMappingCache reader = open(directory);
+        try {
+            assertEquals("first", reader.get(key("a")));
+            reader.put(key("b"), "ignored");
+            assertNull(writer.get(key("b")));
+
+            writer.put(key("c"), "appended");
+            assertEquals("appended", reader.get(key("c")));
+            assertTrue(reader.getStats().startsWith("read-only"));
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    // Cache keys are hex SHA-256 digests
+    private static String key(String name) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(name.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static PersistentMappingCache open(Path directory) throws IOException {
+        return new PersistentMappingCache(directory, MAX_LOG_BYTES, TTL);
+    }
+}
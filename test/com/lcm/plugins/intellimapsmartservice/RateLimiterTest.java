@@ -0,0 +1,176 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class RateLimiterTest {
+
+    private static final String CLIENT = "endpoint|deployment";
+    private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    public void grantsAFullMinuteBurstThenOnePermitPerInterval() throws InterruptedException {
+        // One permit every 100ms
+        RateLimiter limiter = new RateLimiter(600, 1_000_000, 1_000_000, Duration.ZERO);
+        for (int i = 0; i < 600; i++) {
+            assertEquals(0, limiter.tryAcquire(CLIENT), "permit " + i);
+        }
+        long wait = limiter.tryAcquire(CLIENT);
+        assertTrue(wait > 0 && wait <= INTERVAL_NANOS, "wait " + wait);
+
+        TimeUnit.NANOSECONDS.sleep(wait);
+        assertEquals(0, limiter.tryAcquire(CLIENT));
+        assertTrue(limiter.tryAcquire(CLIENT) > 0);
+    }
+
+    @Test
+    public void deniedCallsConsumeNothing() {
+        RateLimiter limiter = new RateLimiter(600, 1_000_000, 1_000_000, Duration.ZERO);
+        for (int i = 0; i < 600; i++) {
+            limiter.tryAcquire(CLIENT);
+        }
+        long first = limiter.tryAcquire(CLIENT);
+        for (int i = 0; i < 100; i++) {
+            limiter.tryAcquire(CLIENT);
+        }
+        long later = limiter.tryAcquire(CLIENT);
+        assertTrue(later > 0 && later <= first, first + " then " + later);
+        assertEquals(600, limiter.getCurrentRequestCount(CLIENT));
+    }
+
+    @Test
+    public void hourLimitBindsAcrossMinutes() {
+        RateLimiter limiter = new RateLimiter(1000, 10, 1_000_000, Duration.ZERO);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.tryAcquire(CLIENT));
+        }
+        long wait = limiter.tryAcquire(CLIENT);
+        assertTrue(wait > TimeUnit.MINUTES.toNanos(5), "wait " + wait);
+    }
+
+    @Test
+    public void clientsHaveSeparateBuckets() {
+        RateLimiter limiter = new RateLimiter(1, 1_000_000, 1_000_000, Duration.ZERO);
+        assertEquals(0, limiter.tryAcquire(CLIENT));
+        assertTrue(limiter.tryAcquire(CLIENT) > 0);
+        assertEquals(0, limiter.tryAcquire("other|deployment"));
+
+        limiter.resetCounters(CLIENT);
+        assertEquals(0, limiter.tryAcquire(CLIENT));
+    }
+
+    @Test
+    public void acquireWaitsForTheNextPermit() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(600, 1_000_000, 1_000_000, Duration.ZERO);
+        for (int i = 0; i < 600; i++) {
+            limiter.tryAcquire(CLIENT);
+        }
+        assertFalse(limiter.acquire(CLIENT, Duration.ofMillis(10)));
+        long start = System.nanoTime();
+        assertTrue(limiter.acquire(CLIENT, Duration.ofSeconds(1)));
+        assertTrue(System.nanoTime() - start <= INTERVAL_NANOS + TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void cleanupEvictsOnlyRefilledBuckets() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(600, 1_000_000, 1_000_000, Duration.ZERO);
+        limiter.tryAcquire(CLIENT);
+        limiter.cleanup();
+        assertEquals(1, limiter.getTrackedKeyCount());
+
+        TimeUnit.NANOSECONDS.sleep(INTERVAL_NANOS);
+        limiter.cleanup();
+        assertEquals(0, limiter.getTrackedKeyCount());
+    }
+
+    @Test
+    public void chargesTokensAgainstTheMinuteBudget() {
+        // One token every 10ms
+        RateLimiter limiter = new RateLimiter(1_000_000, 10_000_000, 6000, Duration.ZERO);
+        assertEquals(0, limiter.tryAcquire(CLIENT, 5000));
+        assertEquals(0, limiter.tryAcquire(CLIENT, 1000));
+        long wait = limiter.tryAcquire(CLIENT, 100);
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(900) && wait <= TimeUnit.SECONDS.toNanos(1), "wait " + wait);
+        assertEquals(wait, limiter.peekWaitNanos(CLIENT, 100), TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void capsACallLargerThanTheWholeBudget() {
+        RateLimiter limiter = new RateLimiter(1_000_000, 10_000_000, 6000, Duration.ZERO);
+        assertEquals(0, limiter.tryAcquire(CLIENT, 50_000));
+        assertTrue(limiter.tryAcquire(CLIENT, 1) > 0);
+    }
+
+    @Test
+    public void adjustTokensRefundsAndCharges() {
+        RateLimiter limiter = new RateLimiter(1_000_000, 10_000_000, 6000, Duration.ZERO);
+        assertEquals(0, limiter.tryAcquire(CLIENT, 6000));
+        assertTrue(limiter.tryAcquire(CLIENT, 1000) > 0);
+
+        // The call used 1000 fewer tokens than charged
+        limiter.adjustTokens(CLIENT, -1000);
+        assertEquals(0, limiter.tryAcquire(CLIENT, 1000));
+
+        // The next one used 500 more
+        limiter.adjustTokens(CLIENT, 500);
+        long wait = limiter.peekWaitNanos(CLIENT, 0);
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(4900) && wait <= TimeUnit.SECONDS.toNanos(5), "wait " + wait);
+    }
+
+    @Test
+    public void adjustTokensIgnoresUnknownClients() {
+        RateLimiter limiter = new RateLimiter(1_000_000, 10_000_000, 6000, Duration.ZERO);
+        limiter.adjustTokens(CLIENT, 1000);
+        assertEquals(0, limiter.getTrackedKeyCount());
+        assertEquals(0, limiter.tryAcquire(CLIENT, 6000));
+    }
+
+    @Test
+    public void sharedEvictorRunsOnlyWhileBucketsExist() throws InterruptedException {
+        RateLimiter limiter = RateLimiter.shared();
+        String client = "evictor-test|" + System.nanoTime();
+        limiter.tryAcquire(client);
+        assertTrue(evictorRunning());
+
+        limiter.resetCounters(client);
+        if (limiter.getTrackedKeyCount() == 0) {
+            limiter.cleanup();
+            for (int i = 0; i < 100 && evictorRunning(); i++) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            assertFalse(evictorRunning());
+        }
+    }
+
+    @Test
+    public void appliesEachClientsOwnTokenLimit() {
+        RateLimiter limiter = new RateLimiter(1_000_000, 10_000_000, 6000, Duration.ZERO);
+        limiter.setTokensPerMinute("small", 1000);
+        assertEquals(1000, limiter.getTokensPerMinute("small"));
+        assertEquals(6000, limiter.getTokensPerMinute(CLIENT));
+
+        assertEquals(0, limiter.tryAcquire("small", 1000));
+        long wait = limiter.tryAcquire("small", 100);
+        // 100 of 1000 tokens a minute take six seconds to come back
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(5900) && wait <= TimeUnit.SECONDS.toNanos(6), "wait " + wait);
+        assertEquals(0, limiter.tryAcquire(CLIENT, 5000));
+
+        limiter.adjustTokens("small", -100);
+        assertEquals(0, limiter.tryAcquire("small", 100));
+    }
+
+    private static boolean evictorRunning() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("intellimap-ratelimit-evictor") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,96 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class RecordJsonWriterTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final JsonFactory jsonFactory = mapper.getFactory();
+
+    @Test
+    public void escapesStrings() throws IOException {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("name", "Say \"hi\"\\\n\tbye\u0001");
+        record.put("k\"ey", "v");
+        String json = RecordJsonWriter.write(record, jsonFactory);
+        assertEquals("{\"name\":\"Say \\\"hi\\\"\\\\\\n\\tbye\\u0001\",\"k\\\"ey\":\"v\"}", json);
+        assertEquals("Say \"hi\"\\\n\tbye\u0001", mapper.readTree(json).get("name").asText());
+    }
+
+    @Test
+    public void namesNullAndBlankKeysByPosition() throws IOException {
+        Map<Object, Object> record = new LinkedHashMap<>();
+        record.put("a", 1);
+        record.put(null, 2);
+        record.put("  ", 3);
+        record.put("", 4);
+        record.put(5, 5);
+        assertEquals("{\"a\":1,\"unknown_key_1\":2,\"unknown_key_2\":3,\"unknown_key_3\":4,\"5\":5}",
+                RecordJsonWriter.write(record, jsonFactory));
+    }
+
+    @Test
+    public void writesNestedMapsListsAndArrays() throws IOException {
+        Map<String, Object> inner = new LinkedHashMap<>();
+        inner.put("", null);
+        inner.put("tags", List.of("x", 2L));
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("inner", inner);
+        record.put("list", Arrays.asList(1, null, List.of(true)));
+        record.put("array", new Object[] { "a", new String[] { "b" } });
+        assertEquals("{\"inner\":{\"unknown_key_0\":null,\"tags\":[\"x\",2]},\"list\":[1,null,[true]],"
+                + "\"array\":[\"a\",[\"b\"]]}", RecordJsonWriter.write(record, jsonFactory));
+    }
+
+    @Test
+    public void writesNonFiniteNumbersAsNull() throws IOException {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("nan", Double.NaN);
+        record.put("inf", Double.POSITIVE_INFINITY);
+        record.put("negative", Float.NEGATIVE_INFINITY);
+        record.put("finite", 1.5f);
+        String json = RecordJsonWriter.write(record, jsonFactory);
+        assertEquals("{\"nan\":null,\"inf\":null,\"negative\":null,\"finite\":1.5}", json);
+        mapper.readTree(json);
+    }
+
+    @Test
+    public void keepsExactNumbers() throws IOException {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("decimal", new BigDecimal("12345678901234567890.000000000001"));
+        record.put("integer", new BigInteger("123456789012345678901234567890"));
+        record.put("long", Long.MIN_VALUE);
+        record.put("short", (short) -7);
+        assertEquals("{\"decimal\":12345678901234567890.000000000001,\"integer\":123456789012345678901234567890,"
+                + "\"long\":-9223372036854775808,\"short\":-7}", RecordJsonWriter.write(record, jsonFactory));
+    }
+
+    @Test
+    public void writesOtherValuesAsTheirStringForm() throws IOException {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("date", LocalDate.of(2024, 2, 29));
+        record.put("flag", Boolean.FALSE);
+        record.put("letter", 'c');
+        assertEquals("{\"date\":\"2024-02-29\",\"flag\":false,\"letter\":\"c\"}",
+                RecordJsonWriter.write(record, jsonFactory));
+    }
+
+    @Test
+    public void writesAnEmptyRecord() throws IOException {
+        assertEquals("{}", RecordJsonWriter.write(Map.of(), jsonFactory));
+    }
+}
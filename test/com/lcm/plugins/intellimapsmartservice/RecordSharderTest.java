@@ -0,0 +1,93 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class RecordSharderTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void takesEachFieldFromTheMostConfidentShard() throws IOException {
+        RecordSharder.Merged merged = RecordSharder.merge(
+                List.of(List.of("{\"name\":\"A\",\"city\":\"Paris\"}"), List.of("{\"name\":\"B\",\"zip\":\"75001\"}")),
+                Arrays.asList(60.0, 90.0), mapper);
+        JsonNode record = mapper.readTree(merged.getJson());
+        assertEquals("B", record.get("name").asText());
+        assertEquals("Paris", record.get("city").asText());
+        assertEquals("75001", record.get("zip").asText());
+        // name and zip at 90, city at 60
+        assertEquals(80.0, merged.getConfidence(), 1e-9);
+        assertEquals(80.0, record.get("confidence_level").asDouble(), 1e-9);
+    }
+
+    @Test
+    public void recordConfidenceOverridesTheShardConfidence() throws IOException {
+        RecordSharder.Merged merged = RecordSharder.merge(
+                List.of(List.of("{\"name\":\"A\",\"confidence_level\":95}"), List.of("{\"name\":\"B\"}")),
+                Arrays.asList(50.0, 90.0), mapper);
+        JsonNode record = mapper.readTree(merged.getJson());
+        assertEquals("A", record.get("name").asText());
+        assertEquals(95.0, merged.getConfidence(), 1e-9);
+    }
+
+    @Test
+    public void aNonNullValueBeatsNullWhateverItsConfidence() throws IOException {
+        RecordSharder.Merged merged = RecordSharder.merge(
+                List.of(List.of("{\"name\":null,\"age\":null}"), List.of("{\"name\":\"B\"}")),
+                Arrays.asList(99.0, 10.0), mapper);
+        JsonNode record = mapper.readTree(merged.getJson());
+        assertEquals("B", record.get("name").asText());
+        // A field no shard filled stays null and does not count towards the confidence
+        assertTrue(record.get("age").isNull());
+        assertEquals(10.0, merged.getConfidence(), 1e-9);
+    }
+
+    @Test
+    public void keepsTheFirstShardOnATie() throws IOException {
+        RecordSharder.Merged merged = RecordSharder.merge(
+                List.of(List.of("{\"name\":\"A\"}"), List.of("{\"name\":\"B\"}")), Arrays.asList(70.0, 70.0),
+                mapper);
+        assertEquals("A", mapper.readTree(merged.getJson()).get("name").asText());
+    }
+
+    @Test
+    public void fallsBackToTheDefaultConfidence() throws IOException {
+        RecordSharder.Merged merged = RecordSharder.merge(List.of(List.of("{\"name\":\"A\"}")),
+                Arrays.asList((Double) null), mapper);
+        assertEquals(IntelliMapConfig.DEFAULT_CONFIDENCE_SCORE, merged.getConfidence(), 1e-9);
+    }
+
+    @Test
+    public void returnsNoRecordWhenNoShardMappedAField() throws IOException {
+        RecordSharder.Merged merged = RecordSharder.merge(List.of(List.of("[]"), List.of()),
+                Arrays.asList(40.0, 60.0), mapper);
+        assertNull(merged.getJson());
+        assertEquals(50.0, merged.getConfidence(), 1e-9);
+    }
+
+    @Test
+    public void assignsTargetFieldsToShardsSharingAWord() {
+        Map<String, String> targets = new LinkedHashMap<>();
+        targets.put("first_name", "First Name");
+        targets.put("postalCode", "Postal Code");
+        targets.put("risk_score", "Risk Score");
+        List<Map<String, String>> assigned = RecordSharder.assignTargetFields(
+                List.of(List.of("FirstName", "LastName"), List.of("street_address", "postal_code")), targets);
+
+        assertEquals(List.of("first_name", "risk_score"), List.copyOf(assigned.get(0).keySet()));
+        assertEquals(List.of("postalCode", "risk_score"), List.copyOf(assigned.get(1).keySet()));
+    }
+}
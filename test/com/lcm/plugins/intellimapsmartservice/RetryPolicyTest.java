@@ -0,0 +1,124 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.appiancorp.suiteapi.process.exceptions.SmartServiceException;
+
+public class RetryPolicyTest {
+
+    private static final long BASE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long MAX_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    @Test
+    public void retriesThrottlingServerErrorsAndNetworkFailures() {
+        assertTrue(RetryPolicy.isRetriable(status(429)));
+        assertTrue(RetryPolicy.isRetriable(status(408)));
+        assertTrue(RetryPolicy.isRetriable(status(500)));
+        assertTrue(RetryPolicy.isRetriable(status(503)));
+        assertTrue(RetryPolicy.isRetriable(new IOException("connection reset")));
+        assertTrue(RetryPolicy.isRetriable(new HttpTimeoutException("request timed out")));
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() {
+        assertFalse(RetryPolicy.isRetriable(status(400)));
+        assertFalse(RetryPolicy.isRetriable(status(401)));
+        assertFalse(RetryPolicy.isRetriable(status(404)));
+        assertFalse(RetryPolicy.isRetriable(new IllegalArgumentException("bad input")));
+        assertFalse(RetryPolicy.isRetriable(new InterruptedException()));
+    }
+
+    @Test
+    public void doesNotRetryAnOpenCircuit() {
+        assertFalse(RetryPolicy.isRetriable(
+                new SmartServiceException(IntelliMap.class, null, "Circuit breaker is open for deployment d")));
+    }
+
+    @Test
+    public void looksThroughWrappingExceptions() {
+        assertTrue(RetryPolicy.isRetriable(new SmartServiceException(IntelliMap.class, status(429), "throttled")));
+        assertFalse(RetryPolicy.isRetriable(new SmartServiceException(IntelliMap.class, status(400), "rejected")));
+        assertTrue(RetryPolicy.isRetriable(new SmartServiceException(IntelliMap.class, new IOException("reset"), "")));
+    }
+
+    @Test
+    public void readsTheServerRequestedDelay() {
+        long delay = TimeUnit.SECONDS.toNanos(7);
+        assertEquals(delay, RetryPolicy.serverDelayNanos(
+                new SmartServiceException(IntelliMap.class, new OpenAIStatusException(429, delay, "slow down"), "")));
+        assertEquals(-1, RetryPolicy.serverDelayNanos(status(503)));
+        assertEquals(-1, RetryPolicy.serverDelayNanos(new IOException("reset")));
+    }
+
+    @Test
+    public void keepsJitteredDelaysWithinBounds() {
+        RetryPolicy policy = new RetryPolicy(BASE_NANOS, MAX_NANOS, 0.2, 20, 0.5);
+        long previous = 0;
+        boolean grew = false;
+        for (int i = 0; i < 1000; i++) {
+            long delay = policy.nextDelayNanos(previous);
+            assertTrue(delay >= BASE_NANOS, "delay " + delay + " below the base");
+            assertTrue(delay <= MAX_NANOS, "delay " + delay + " above the maximum");
+            assertTrue(delay <= Math.max(BASE_NANOS + 1, previous * 3), "delay " + delay + " after " + previous);
+            grew |= delay > BASE_NANOS * 3;
+            previous = delay;
+        }
+        assertTrue(grew);
+
+        // The first retry waits between the base delay and just above it
+        long first = policy.nextDelayNanos(0);
+        assertTrue(first >= BASE_NANOS && first <= BASE_NANOS + 1);
+        assertTrue(policy.nextDelayNanos(MAX_NANOS * 10) <= MAX_NANOS);
+    }
+
+    @Test
+    public void stopsRetryingWhenTheBudgetIsSpent() {
+        // Ten retries in the budget, no refill over time
+        RetryPolicy policy = new RetryPolicy(BASE_NANOS, MAX_NANOS, 0.2, 10, 0);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(policy.tryAcquireRetry(), "retry " + i);
+        }
+        assertFalse(policy.tryAcquireRetry());
+        assertTrue(policy.getStats().contains("rejected=1"));
+
+        // Five first attempts earn one retry back
+        for (int i = 0; i < 5; i++) {
+            policy.recordRequest();
+        }
+        assertTrue(policy.tryAcquireRetry());
+        assertFalse(policy.tryAcquireRetry());
+    }
+
+    @Test
+    public void capsTheBudgetAtItsMaximum() {
+        RetryPolicy policy = new RetryPolicy(BASE_NANOS, MAX_NANOS, 0.2, 2, 0);
+        for (int i = 0; i < 100; i++) {
+            policy.recordRequest();
+        }
+        assertTrue(policy.tryAcquireRetry());
+        assertTrue(policy.tryAcquireRetry());
+        assertFalse(policy.tryAcquireRetry());
+    }
+
+    @Test
+    public void refillsOverTimeWithoutTraffic() throws InterruptedException {
+        // Twenty retries a second
+        RetryPolicy policy = new RetryPolicy(BASE_NANOS, MAX_NANOS, 0.2, 1, 20);
+        assertTrue(policy.tryAcquireRetry());
+        assertFalse(policy.tryAcquireRetry());
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertTrue(policy.tryAcquireRetry());
+    }
+
+    private static OpenAIStatusException status(int statusCode) {
+        return new OpenAIStatusException(statusCode, -1, "HTTP " + statusCode);
+    }
+}
@@ -0,0 +1,154 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class StreamingChatCompletionTest {
+
+    private static final long NO_DEADLINE = TimeUnit.MINUTES.toNanos(1);
+
+    private final JsonFactory jsonFactory = new ObjectMapper().getFactory();
+
+    @Test
+    public void assemblesContentDeltasAndTheFinishReason() throws IOException {
+        List<String> records = new ArrayList<>();
+        StreamingChatCompletion completion = read(events(
+                ": keep-alive",
+                "data: {\"choices\":[{\"delta\":{\"role\":\"assistant\"}}]}",
+                "",
+                "event: message",
+                "data: " + delta("[{\\\"a\\\":1},"),
+                "data: " + delta("{\\\"a\\\":\\\"x}]\\\"}"),
+                "data: " + delta("]"),
+                "data: {\"choices\":[{\"delta\":{},\"finish_reason\":\"stop\"}],\"usage\":{\"total_tokens\":9}}",
+                "data: [DONE]"), NO_DEADLINE, records::add);
+
+        assertEquals("[{\"a\":1},{\"a\":\"x}]\"}]", completion.getContent());
+        assertEquals("stop", completion.getFinishReason());
+        assertFalse(completion.isDeadlineReached());
+        assertEquals(2, completion.getRecordCount());
+        assertEquals(List.of("{\"a\":1}", "{\"a\":\"x}]\"}"), records);
+    }
+
+    @Test
+    public void stopsReadingAtDone() throws IOException {
+        StreamingChatCompletion completion = read(events(
+                "data: " + delta("{\\\"a\\\":1}"),
+                "data: [DONE]",
+                "data: " + delta("ignored")), NO_DEADLINE, null);
+        assertEquals("{\"a\":1}", completion.getContent());
+        assertEquals(1, completion.getRecordCount());
+        assertNull(completion.getFinishReason());
+    }
+
+    @Test
+    public void readsAStreamThatEndsWithoutDone() throws IOException {
+        StreamingChatCompletion completion = read(events("data: " + delta("[]")), NO_DEADLINE, null);
+        assertEquals("[]", completion.getContent());
+        assertEquals(0, completion.getRecordCount());
+    }
+
+    @Test
+    public void keepsTheCompleteRecordsAtTheDeadline() throws IOException {
+        StalledStream events = new StalledStream(events(
+                "data: " + delta("{\\\"records\\\":[{\\\"a\\\":1},{\\\"a\\\":2},"),
+                "data: " + delta("{\\\"a\\\":3,\\\"b\\\":\\\"cut")));
+        long start = System.nanoTime();
+        StreamingChatCompletion completion = read(events, TimeUnit.MILLISECONDS.toNanos(200), null);
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        assertTrue(events.closed);
+        assertTrue(completion.isDeadlineReached());
+        assertEquals(StreamingChatCompletion.DEADLINE_FINISH_REASON, completion.getFinishReason());
+        assertEquals(2, completion.getRecordCount());
+        assertEquals("{\"records\":[{\"a\":1},{\"a\":2}]}", completion.getContent());
+    }
+
+    @Test
+    public void returnsNoRecordsWhenNoneCompletedByTheDeadline() throws IOException {
+        StalledStream events = new StalledStream(events("data: " + delta("[{\\\"a\\\":")));
+        StreamingChatCompletion completion = read(events, TimeUnit.MILLISECONDS.toNanos(50), null);
+        assertTrue(completion.isDeadlineReached());
+        assertEquals("[]", completion.getContent());
+    }
+
+    @Test
+    public void passesOnReadErrorsBeforeTheDeadline() {
+        InputStream broken = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection reset");
+            }
+        };
+        assertThrows(IOException.class, () -> read(broken, NO_DEADLINE, null));
+    }
+
+    private StreamingChatCompletion read(InputStream events, long timeoutNanos,
+            Consumer<String> listener) throws IOException {
+        return StreamingChatCompletion.read(events, System.nanoTime() + timeoutNanos, listener, jsonFactory);
+    }
+
+    private static String delta(String content) {
+        return "{\"choices\":[{\"delta\":{\"content\":\"" + content + "\"}}]}";
+    }
+
+    private static InputStream events(String... lines) {
+        return new ByteArrayInputStream((String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Serves its events, then blocks like an idle connection until closed
+     */
+    private static final class StalledStream extends InputStream {
+        private final InputStream events;
+        private final CountDownLatch closeLatch = new CountDownLatch(1);
+        private volatile boolean closed;
+
+        StalledStream(InputStream events) {
+            this.events = events;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (events.available() > 0) {
+                return events.read(buffer, offset, length);
+            }
+            try {
+                closeLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("Stream closed");
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            closeLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class TokenBudgetChunkerTest {
+
+    @Test
+    public void packsLargestFirstIntoTheFirstChunkWithRoom() {
+        // Next-fit in input order would need four chunks
+        TokenBudgetChunker.Plan plan = TokenBudgetChunker.pack(new int[] { 4, 7, 3, 6, 2, 8 }, 10);
+        List<TokenBudgetChunker.Chunk> chunks = plan.getChunks();
+        assertEquals(3, plan.getChunkCount());
+        assertArrayEquals(new int[] { 0, 3 }, chunks.get(0).getItems());
+        assertArrayEquals(new int[] { 1, 2 }, chunks.get(1).getItems());
+        assertArrayEquals(new int[] { 4, 5 }, chunks.get(2).getItems());
+        for (TokenBudgetChunker.Chunk chunk : chunks) {
+            assertEquals(10, chunk.getTokens());
+        }
+        assertEquals(1.0, plan.getFillRatio(), 1e-9);
+        assertEquals(0, plan.getOversizedItems());
+    }
+
+    @Test
+    public void givesAnOversizedItemItsOwnChunk() {
+        TokenBudgetChunker.Plan plan = TokenBudgetChunker.pack(new int[] { 3, 25, 4 }, 10);
+        List<TokenBudgetChunker.Chunk> chunks = plan.getChunks();
+        assertEquals(2, plan.getChunkCount());
+        assertArrayEquals(new int[] { 0, 2 }, chunks.get(0).getItems());
+        assertEquals(7, chunks.get(0).getTokens());
+        assertArrayEquals(new int[] { 1 }, chunks.get(1).getItems());
+        assertEquals(25, chunks.get(1).getTokens());
+        assertEquals(1, plan.getOversizedItems());
+        assertTrue(plan.getFillRatio() > 1);
+        assertTrue(plan.toString().contains("1 over budget"));
+    }
+
+    @Test
+    public void neverPutsSmallItemsWithAnOversizedOne() {
+        TokenBudgetChunker.Plan plan = TokenBudgetChunker.pack(new int[] { 11, 12, 1 }, 10);
+        assertEquals(3, plan.getChunkCount());
+        assertEquals(2, plan.getOversizedItems());
+        for (TokenBudgetChunker.Chunk chunk : plan.getChunks()) {
+            assertEquals(1, chunk.getItems().length);
+        }
+    }
+
+    @Test
+    public void placesEveryItemExactlyOnceWithinBudget() {
+        int[] tokens = new int[200];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = (i * 37) % 50 + 1;
+        }
+        TokenBudgetChunker.Plan plan = TokenBudgetChunker.pack(tokens, 100);
+        boolean[] seen = new boolean[tokens.length];
+        int previousFirst = -1;
+        long total = 0;
+        for (TokenBudgetChunker.Chunk chunk : plan.getChunks()) {
+            int[] items = chunk.getItems();
+            assertTrue(items[0] > previousFirst, "chunks follow input order");
+            previousFirst = items[0];
+            int sum = 0;
+            for (int j = 0; j < items.length; j++) {
+                assertTrue(j == 0 || items[j] > items[j - 1], "items in input order");
+                assertFalse(seen[items[j]], "item " + items[j] + " placed twice");
+                seen[items[j]] = true;
+                sum += tokens[items[j]];
+            }
+            assertEquals(sum, chunk.getTokens());
+            assertTrue(sum <= 100);
+            total += sum;
+        }
+        for (int i = 0; i < seen.length; i++) {
+            assertTrue(seen[i], "item " + i + " dropped");
+        }
+        // First-fit decreasing stays within 11/9 of the optimum plus one chunk
+        long lowerBound = (total + 99) / 100;
+        assertTrue(plan.getChunkCount() <= lowerBound * 11 / 9 + 1, plan.toString());
+    }
+
+    @Test
+    public void packsNothingIntoNoChunks() {
+        TokenBudgetChunker.Plan plan = TokenBudgetChunker.pack(new int[0], 10);
+        assertEquals(0, plan.getChunkCount());
+        assertEquals(0.0, plan.getFillRatio(), 0);
+    }
+}
@@ -0,0 +1,86 @@
+package com.lcm.plugins.intellimapsmartservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class TokenCounterTest {
+
+    // Text and its cl100k_base token count
+    private static final Object[][] REFERENCE_COUNTS = {
+            { "hello world", 2 },
+            { "Hello, world!", 4 },
+            { "The quick brown fox jumps over the lazy dog.", 10 },
+            { "{\"name\": \"John Smith\", \"age\": 42}", 13 },
+            { "1234567890", 4 },
+            { "龘", 3 },
+    };
+
+    @Test
+    public void neverBelowReferenceCounts() {
+        for (Object[] reference : REFERENCE_COUNTS) {
+            String text = (String) reference[0];
+            int tokens = (Integer) reference[1];
+            assertTrue(TokenCounter.count(text) >= tokens, text + " counted below its " + tokens + " tokens");
+        }
+    }
+
+    @Test
+    public void countsUtf8Bytes() {
+        assertEquals(0, TokenCounter.count(null));
+        assertEquals(0, TokenCounter.count(""));
+        assertEquals(6, TokenCounter.count("héllo"));
+        assertEquals(6, TokenCounter.count("日本"));
+        assertEquals(4, TokenCounter.count("😀"));
+
+        Random random = new Random(42);
+        for (int round = 0; round < 1000; round++) {
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(40);
+            for (int i = 0; i < length; i++) {
+                int codePoint;
+                do {
+                    codePoint = random.nextInt(4) == 0 ? random.nextInt(0x110000) : random.nextInt(0x800);
+                } while (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE);
+                text.appendCodePoint(codePoint);
+            }
+            String value = text.toString();
+            assertEquals(value.getBytes(StandardCharsets.UTF_8).length, TokenCounter.count(value), value);
+        }
+    }
+
+    @Test
+    public void estimatesRealTokensFromTheBound() {
+        assertEquals(0, TokenCounter.estimate(0));
+        assertEquals(0, TokenCounter.estimate(-5));
+        assertEquals(1, TokenCounter.estimate(1));
+        assertEquals(1, TokenCounter.estimate(3));
+        assertEquals(2, TokenCounter.estimate(4));
+        assertEquals((Integer.MAX_VALUE - 1) / 3 + 1, TokenCounter.estimate(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void estimatesEnglishAndJsonWithinAFactorOfTwo() {
+        for (Object[] reference : REFERENCE_COUNTS) {
+            String text = (String) reference[0];
+            int tokens = (Integer) reference[1];
+            if (text.chars().anyMatch(c -> c >= 0x80)) {
+                // Rare CJK characters take a token per byte and are underestimated
+                continue;
+            }
+            int estimate = TokenCounter.estimate(TokenCounter.count(text));
+            assertTrue(estimate * 2 >= tokens && estimate <= tokens * 2, text + " estimated " + estimate
+                    + " against " + tokens + " tokens");
+        }
+    }
+
+    @Test
+    public void chargesLoneSurrogatesAtLeastOneToken() {
+        assertTrue(TokenCounter.count("\uD83D") >= 1);
+        assertTrue(TokenCounter.count("a\uDE00b") >= 3);
+    }
+}